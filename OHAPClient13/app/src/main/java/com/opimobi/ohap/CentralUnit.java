@@ -1,7 +1,6 @@
 package com.opimobi.ohap;
 
 import java.net.URL;
-import java.util.HashMap;
 
 /**
  * A central unit in an OHAP application. Acts also as a top-level
@@ -17,15 +16,15 @@ import java.util.HashMap;
  * @see com.opimobi.ohap.Container
  *
  * @author Henrik hedberg &lt;henrik.hedberg@iki.fi>
- * @version 1.4
+ * @version 1.6
  */
 public abstract class CentralUnit extends Container {
 
     /**
      * A map containing the items of the container. The unique identifiers of the items
-     * are used as keys.
+     * are used as keys. A primitive map is used so that the lookups do not box the identifiers.
      */
-    private HashMap<Long, Item> items = new HashMap<>();
+    private final LongMap<Item> items = new LongMap<>();
 
     /**
      * The URL of the central unit.
@@ -90,7 +89,7 @@ public abstract class CentralUnit extends Container {
      * @return The item belonging to the the central unit.
      */
     public Item getItemById(long id) {
-        return items.get(Long.valueOf(id));
+        return items.get(id);
     }
 
     /**
@@ -126,6 +125,18 @@ public abstract class CentralUnit extends Container {
      */
     protected abstract void listeningStateChanged(Container container, boolean listening);
 
+    /**
+     * Notifies the central unit that the value of the specified device has been set. Called by the
+     * device after its value changed listeners.
+     *
+     * The default implementation does nothing. An implementation may override this, for example
+     * to log the change.
+     *
+     * @param device The device of which value has changed.
+     */
+    protected void deviceValueChanged(Device device) {
+    }
+
     /**
      * Registers an item into the central unit.
      *
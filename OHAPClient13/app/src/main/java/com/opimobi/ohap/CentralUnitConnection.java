@@ -10,11 +10,23 @@ package com.opimobi.ohap;
  * v1.1     Aapo Keskimolo      Added logging
  * v1.2     Aapo Keskimolo      Defined methods for networking and method for generating dummy devices in the constructor
  * v1.3     Aapo Keskimolo      Multithreading, message handlers and networking
+ * v1.4     Aapo Keskimolo      Lock-free main thread action queue, one looper message per batch
+ * v1.5     Aapo Keskimolo      Idle timeout and keep-alive pings
+ * v1.6     Aapo Keskimolo      Buffered socket input and pooled outgoing message buffers
+ * v1.7     Aapo Keskimolo      Staged shutdown waiting for posted outgoing messages before closing
+ * v1.8     Aapo Keskimolo      Incoming messages read and dispatched in batches
+ * v1.9     Aapo Keskimolo      Cached encoded item data for item messages
+ * v2.0     Aapo Keskimolo      Optional compressed framing negotiated at login
+ * v2.1     Aapo Keskimolo      Optional batched value changes negotiated at login
+ * v2.2     Aapo Keskimolo      Message types and item data layout taken from the shared message schema
+ * v2.3     Aapo Keskimolo      Simulation mode items loaded from a topology file
+ * v2.4     Aapo Keskimolo      Periodic device value snapshots restored on startup
+ * v2.5     Aapo Keskimolo      Device value changes logged into a write-ahead log between snapshots
  *
  * @see com.opimobi.ohap.CentralUnit
  *
  * @author Aapo Keskimolo &lt;aapokesk@gmail.com>
- * @version 1.3
+ * @version 2.5
  */
 
 
@@ -26,15 +38,23 @@ import android.util.Log;
 
 import com.opimobi.ohap.message.*;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipException;
 
 
 public class CentralUnitConnection extends CentralUnit {
@@ -55,6 +75,8 @@ public class CentralUnitConnection extends CentralUnit {
     private boolean autoConnect = false;
     private boolean listeningStart = false;
     private static final int retryAttempts = 3;
+    private static final int inputBufferSize = 8192;
+    private static final int outputBufferSize = 8192;
     private static HandlerThread handlerThread = null;
     private static IncomingThread incomingThread = null;
     private Socket socket = null;
@@ -64,10 +86,86 @@ public class CentralUnitConnection extends CentralUnit {
     private ConnectionObserver observer = null;
     private static int incomingThreadCtr = 0;
     private boolean reconnectRequest;
-    private boolean outgoingMessageActionFinished = true;
     private boolean stopCalled = false;
     private boolean initialConnection = true;
 
+    // Idle detection. The socket read timeout acts as the timer tick: when nothing has been
+    // received within the ping interval a keep-alive ping is sent, and when nothing has been
+    // received within the idle timeout the connection is considered dead and closed.
+    // Zero disables the corresponding timer.
+    private static final int socketTimeout = 5000;
+    private int pingInterval = 30000;
+    private int idleTimeout = 90000;
+    private long lastReceivedTime;
+    private long lastKeepAliveTime;
+    private long keepAlivePingIdentifier = -1;
+
+    // Device value snapshot. Checkpoints are taken periodically on the main thread, which is the
+    // thread changing the device values, so that each checkpoint is consistent. A checkpoint is
+    // skipped when no device value has changed since the previous one, so an idle timer does not
+    // walk the items and force the file on the main thread.
+    private DeviceSnapshot snapshot = null;
+    private boolean snapshotDirty = false;
+    private WriteAheadLog valueLog = null;
+    private int checkpointInterval = 10000;
+    private final Runnable checkpointAction = new Runnable() {
+        @Override
+        public void run() {
+            if (snapshot == null)
+                return;
+            checkpointSnapshot();
+            mainThreadHandler.postDelayed(this, checkpointInterval);
+        }
+    };
+
+    // Outgoing messages posted to the handler thread, each as its own OutgoingMessageAction.
+    // The pending count lets the staged shutdown wait until the posted messages have been written.
+    private final Object outgoingLock = new Object();
+    private int outgoingPendingMessages = 0;
+    private boolean draining = false;
+    private int outgoingSentMessages = 0;
+    private long outgoingSentBytes = 0;
+
+    // Maximum time in milliseconds the shutdown waits for the posted messages to be written
+    private int shutdownTimeout = 1000;
+    private static final String logoutText = "So long, Dr. Strangelove";
+
+    // Actions waiting for the main thread. Any thread may add actions with execute(), but the
+    // dispatch action is posted to the main looper only when the queue was idle, so a burst of
+    // incoming messages costs a single looper message instead of one per message.
+    private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
+    private final ConcurrentLinkedQueue<Runnable> mainThreadActions = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mainThreadDispatchPosted = new AtomicBoolean(false);
+    private final Runnable mainThreadDispatch = new Runnable() {
+        @Override
+        public void run() {
+            // Clear the flag before draining so that actions added during the drain post a
+            // new dispatch instead of being left in the queue
+            mainThreadDispatchPosted.set(false);
+
+            Runnable action;
+            while ((action = mainThreadActions.poll()) != null) {
+                action.run();
+            }
+        }
+    };
+
+    // Compressed framing. When enabled, the login requests the compressed protocol version and
+    // all messages after the login are compressed with a per-connection MessageCompression.
+    private static final int protocolVersion = 0x01;
+    private static final int compressedProtocolVersion = 0x02;
+
+    // Batched value changes. When enabled, the login appends a capabilities field after the
+    // password with the batched changes bit set, and the server may send value changes as
+    // message-type-values-changed. The protocol version byte is left untouched, and without
+    // capabilities the login is the plain protocol login.
+    private static final long batchedChangesCapability = 0x00000001L;
+    private boolean batchedChangesEnabled = false;
+    private boolean compressionEnabled = false;
+    private MessageCompression compression = null;
+    private OutgoingMessage compressionStartMessage = null;
+    private boolean outgoingCompressed = false;
+
     // connection status
     private Status connectionStatus = Status.OFFLINE;
 
@@ -104,10 +202,42 @@ public class CentralUnitConnection extends CentralUnit {
         this.observer = observer;
     }
 
+    public void clearItems() {
+        // Destroys all items of the central unit, for example the part of a topology loaded
+        // before a failure, so that another set of items can be created without id conflicts
+        while (getItemCount() > 0)
+            getItemByIndex(getItemCount() - 1).destroy();
+    }
+
     public Status getConnectionStatus() {
         return connectionStatus;
     }
 
+    public int initializeWithTopology(URL url, ConnectionObserver observer, Reader reader) throws IOException {
+        // initializes central unit singleton with the items of a topology file and closes the
+        // reader, the load time and the memory taken are logged to measure large topologies
+
+        Runtime runtime = Runtime.getRuntime();
+        long usedMemory = runtime.totalMemory() - runtime.freeMemory();
+        long startTime = SystemClock.uptimeMillis();
+
+        int count;
+        try {
+            count = TopologyLoader.load(this, reader);
+        } finally {
+            reader.close();
+        }
+
+        Log.i(TAG, "initializeWithTopology() Loaded " + count + " items in " +
+                (SystemClock.uptimeMillis() - startTime) + " ms, heap grew by " +
+                (runtime.totalMemory() - runtime.freeMemory() - usedMemory) / 1024 + " kB");
+
+        instance.setURL(url);
+        this.observer = observer;
+
+        return count;
+    }
+
     public void setConnectionStatus(Status connectionStatus) {
         this.connectionStatus = connectionStatus;
         Log.d(TAG, "setConnectionStatus() Connection status set to: " + connectionStatus);
@@ -139,24 +269,36 @@ public class CentralUnitConnection extends CentralUnit {
 
     private class IncomingMessageAction implements Runnable {
         // This will be the action executed on incoming messages. The action is queued in the
-        // HandlerThread
+        // main thread once per batch of messages read from the socket
 
-        private IncomingMessage incomingMessage;
+        private ArrayList<IncomingMessage> incomingMessages;
 
-        public IncomingMessageAction(IncomingMessage incomingMessage) {
-            this.incomingMessage = incomingMessage;
+        public IncomingMessageAction(ArrayList<IncomingMessage> incomingMessages) {
+            this.incomingMessages = incomingMessages;
         }
 
         @Override
         public void run() {
-            // Forward incoming message to the observer activity
-            if (observer != null) {
-                observer.handleMessageResponse(incomingMessage);
+            // Forward incoming messages to the observer activity
+            for (IncomingMessage incomingMessage : incomingMessages) {
+                if (observer != null) {
+                    observer.handleMessageResponse(incomingMessage);
+                }
             }
         }
     }
 
 
+    public void execute(Runnable action) {
+        // Runs the action on the main thread. Safe to call from any thread, the item model is
+        // then accessed only by the main thread without locks.
+
+        mainThreadActions.offer(action);
+        if (mainThreadDispatchPosted.compareAndSet(false, true))
+            mainThreadHandler.post(mainThreadDispatch);
+    }
+
+
     private class OutgoingMessageAction implements Runnable {
         // This will be the action executed on outgoing messages. The actions will be queued in
         // handlerThread
@@ -166,18 +308,28 @@ public class CentralUnitConnection extends CentralUnit {
         public OutgoingMessageAction(OutgoingMessage outgoingMessage) {
             this.outgoingMessage = outgoingMessage;
         }
-        
+
         @Override
         public void run() {
             // Write outgoing message to outputstream and forward it to outgoing handler
 
-            outgoingMessageActionFinished = false;
+            int length = outgoingMessage.length();
 
             if (isConnected()) {
                 if (socket != null) {
 
                     try {
-                        outgoingMessage.writeTo(outputStream);
+                        outgoingMessage.writeTo(outputStream, outgoingCompressed ? compression : null);
+                        outputStream.flush();
+                        if (outgoingMessage == compressionStartMessage) {
+                            // messages after the login are compressed
+                            outgoingCompressed = true;
+                            compressionStartMessage = null;
+                        }
+                        synchronized (outgoingLock) {
+                            outgoingSentMessages++;
+                            outgoingSentBytes += length;
+                        }
                         Log.i(TAG, "OutGoingMessageAction.run() Sent message: " + outgoingMessage);
 
                     } catch (IOException e) {
@@ -190,7 +342,78 @@ public class CentralUnitConnection extends CentralUnit {
                 Log.e(TAG, "OutGoingMessageAction.run() " + errorMsg);
             }
 
-            outgoingMessageActionFinished = true;
+            outgoingMessage.release();
+
+            synchronized (outgoingLock) {
+                outgoingPendingMessages--;
+                outgoingLock.notifyAll();
+            }
+        }
+    }
+
+
+    private void postOutgoingMessage(OutgoingMessage outgoingMessage) {
+        // Posts the message to the handler thread, unless the connection is shutting down
+
+        Handler handler = outgoingMessageHandler;
+        synchronized (outgoingLock) {
+            if (handler == null || draining) {
+                outgoingMessage.release();
+                return;
+            }
+            outgoingPendingMessages++;
+        }
+        handler.post(new OutgoingMessageAction(outgoingMessage));
+    }
+
+    private void drainOutgoingMessages(String reason) {
+        // Staged shutdown of the outgoing path: stop accepting new messages, post a logout with
+        // the reason and wait until the posted messages have been written or the shutdown
+        // timeout expires
+
+        Handler handler = outgoingMessageHandler;
+        if (handler == null || !isConnected())
+            return;
+
+        OutgoingMessage logoutMessage = new OutgoingMessage();
+        logoutMessage.integer8(MessageType.LOGOUT)
+                .text(reason);
+
+        long deadline = SystemClock.uptimeMillis() + shutdownTimeout;
+        int sentMessages;
+        long sentBytes;
+
+        synchronized (outgoingLock) {
+            draining = true;
+            sentMessages = outgoingSentMessages;
+            sentBytes = outgoingSentBytes;
+            outgoingPendingMessages++;
+        }
+        handler.post(new OutgoingMessageAction(logoutMessage));
+
+        synchronized (outgoingLock) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            while (outgoingPendingMessages > 0 && remaining > 0) {
+                try {
+                    outgoingLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Log.e(TAG, "drainOutgoingMessages() Interrupted: " + e.getMessage());
+                    break;
+                }
+                remaining = deadline - SystemClock.uptimeMillis();
+            }
+
+            Log.i(TAG, "drainOutgoingMessages() Drained " + (outgoingSentMessages - sentMessages) +
+                    " message(s), " + (outgoingSentBytes - sentBytes) + " bytes. Unsent: " +
+                    outgoingPendingMessages + " message(s).");
+        }
+    }
+
+    private void clearOutgoingMessages() {
+        // Forgets the messages still posted to a handler thread that is going away
+        synchronized (outgoingLock) {
+            outgoingPendingMessages = 0;
+            draining = false;
         }
     }
 
@@ -247,13 +470,33 @@ public class CentralUnitConnection extends CentralUnit {
             while (running) {
                 // parses and forwards all incoming messages to incoming handler
 
-                IncomingMessage msg = new IncomingMessage();
+                ArrayList<IncomingMessage> messages = new ArrayList<>();
                 boolean dataCame = false;
 
                 if (socket != null) {
                     try {
-                        msg.readFrom(inputStream);
+                        IncomingMessage.readBatch(inputStream, messages, compression);
                         dataCame = true;
+                        lastReceivedTime = SystemClock.uptimeMillis();
+                    } catch (SocketTimeoutException e) {
+                        // read timeout is the tick for idle timeout and keep-alive pings
+                        if (!checkIdle()) {
+                            setConnected(false);
+                            setRunning(false);
+                            execute(new ActivityAction("Connection closed"));
+                            break;
+                        }
+                    } catch (ZipException e) {
+                        // server did not accept compressed framing, reconnect without it
+                        Log.e(TAG, "incomingThread.run() Unable to decompress message, disabling compression: " + e.getMessage());
+                        setCompressionEnabled(false);
+                        setConnected(false);
+                        setRunning(false);
+                        // the activity also turns the preference off, so the next session does
+                        // not negotiate compression again
+                        execute(new ActivityAction("Compression disabled"));
+                        execute(new ActivityAction("Connection closed"));
+                        break;
                     } catch (IOException e) {Log.e(TAG, "incomingThread.run() Socket read error");
 
                         if (e.getMessage() != null) {
@@ -277,7 +520,12 @@ public class CentralUnitConnection extends CentralUnit {
                     }
 
                     if (dataCame) {
-                        incomingHandler.post(new IncomingMessageAction(msg));
+                        for (int i = messages.size() - 1; i >= 0; i--) {
+                            if (isKeepAlivePong(messages.get(i)))
+                                messages.remove(i);
+                        }
+                        if (!messages.isEmpty())
+                            execute(new IncomingMessageAction(messages));
                     }
                 }
             }
@@ -285,6 +533,42 @@ public class CentralUnitConnection extends CentralUnit {
             incomingThreadCtr--;
         }
 
+        private boolean checkIdle() {
+            // Sends a keep-alive ping when the connection has been quiet for the ping interval.
+            // Returns false if nothing has been received within the idle timeout.
+
+            long now = SystemClock.uptimeMillis();
+            long idle = now - lastReceivedTime;
+
+            if (idleTimeout > 0 && idle >= idleTimeout) {
+                Log.e(TAG, "IncomingThread.checkIdle() Nothing received in " + idle + " ms, closing connection.");
+                return false;
+            }
+
+            if (pingInterval > 0 && idle >= pingInterval && now - lastKeepAliveTime >= pingInterval) {
+                lastKeepAliveTime = now;
+                keepAlivePingIdentifier = now & 0xffffffffL;
+                sendPing(keepAlivePingIdentifier);
+            }
+            return true;
+        }
+
+        private boolean isKeepAlivePong(IncomingMessage msg) {
+            // Keep-alive pongs are consumed here and not forwarded to the observer. Messages too
+            // short to be a pong are forwarded as they are.
+
+            if (keepAlivePingIdentifier == -1 || msg.length() < 5 || msg.integer8() != MessageType.PONG) {
+                msg.rewind();
+                return false;
+            }
+
+            boolean keepAlive = msg.integer32() == keepAlivePingIdentifier;
+            if (keepAlive)
+                keepAlivePingIdentifier = -1;
+            msg.rewind();
+            return keepAlive;
+        }
+
         private void connect(Handler incomingHandler) {
             // Connect to server socket
             // Timeout = 5000 ms
@@ -311,16 +595,21 @@ public class CentralUnitConnection extends CentralUnit {
                                     instance.getURL().getHost(),
                                     instance.getURL().getPort()),
                                     timeout);
-                    socket.setSoTimeout(timeout);
-                    inputStream = socket.getInputStream();
-                    outputStream = socket.getOutputStream();
+                    socket.setSoTimeout(socketTimeout);
+                    inputStream = new BufferedInputStream(socket.getInputStream(), inputBufferSize);
+                    outputStream = new BufferedOutputStream(socket.getOutputStream(), outputBufferSize);
                     Log.i(TAG, "IncomingThread.connect() Connected to " + getURL() + ".");
 
                     setConnected(true);
                     setConnectionStatus(Status.ONLINE);
+                    lastReceivedTime = SystemClock.uptimeMillis();
+                    lastKeepAliveTime = lastReceivedTime;
+                    keepAlivePingIdentifier = -1;
 
-                    incomingHandler.post(new ActivityAction("Connected"));
+                    execute(new ActivityAction("Connected"));
 
+                    compression = compressionEnabled ? new MessageCompression() : null;
+                    outgoingCompressed = false;
                     sendLogin("someguy", "password");
 
                     return;
@@ -340,7 +629,7 @@ public class CentralUnitConnection extends CentralUnit {
 //                            String errorMsg = "No connection";
 //                            incomingHandler.post(new ActivityAction(errorMsg));
                         } else if (attempt > 1) {
-                            incomingHandler.post(new ActivityAction("Reconnecting"));
+                            execute(new ActivityAction("Reconnecting"));
                         }
                     }
                     try {
@@ -369,10 +658,8 @@ public class CentralUnitConnection extends CentralUnit {
 
             if (socket != null) {
 
-                sendLogout();
-
-                // wait for the outgoing message action to finish
-                while(!outgoingMessageActionFinished) {}
+                // send logout and flush the outgoing queue before closing the socket
+                drainOutgoingMessages(logoutText);
 
                 try {
                     if (socket != null) {
@@ -390,6 +677,11 @@ public class CentralUnitConnection extends CentralUnit {
                 outgoingMessageHandler = null;
                 inputStream = null;
                 outputStream = null;
+                if (compression != null) {
+                    // release the native compression memory instead of waiting for finalization
+                    compression.end();
+                    compression = null;
+                }
                 Log.i(TAG, "close() Connection to server was closed.");
 
                 setConnected(false);
@@ -444,6 +736,7 @@ public class CentralUnitConnection extends CentralUnit {
     public void startNetworking() {
         Log.d(TAG, "startNetworking() Called");
         setRunning(true);
+        clearOutgoingMessages();
         handlerThread = new HandlerThread("handlerThread");
         handlerThread.start();
         incomingThread = new IncomingThread();
@@ -454,7 +747,8 @@ public class CentralUnitConnection extends CentralUnit {
 
         Log.d(TAG, "stopNetworking() Called");
 
-        sendLogout();
+        // send logout and flush the outgoing queue before closing the socket
+        drainOutgoingMessages(logoutText);
 
         setRunning(false);
 
@@ -468,9 +762,10 @@ public class CentralUnitConnection extends CentralUnit {
         }
 
         setConnected(false);
+        clearOutgoingMessages();
 
         if (handlerThread != null) {
-            handlerThread.interrupt();
+            handlerThread.quit();
             handlerThread = null;
         }
 
@@ -485,6 +780,129 @@ public class CentralUnitConnection extends CentralUnit {
         }
     }
 
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        // Takes effect on the next connection
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public void setBatchedChangesEnabled(boolean batchedChangesEnabled) {
+        // Takes effect on the next connection
+        this.batchedChangesEnabled = batchedChangesEnabled;
+    }
+
+    public boolean isBatchedChangesEnabled() {
+        return batchedChangesEnabled;
+    }
+
+    public void setShutdownTimeout(int shutdownTimeout) {
+        // Time in milliseconds the shutdown waits for queued messages to be sent
+        this.shutdownTimeout = shutdownTimeout;
+    }
+
+    public int getShutdownTimeout() {
+        return shutdownTimeout;
+    }
+
+    public void setPingInterval(int pingInterval) {
+        // Keep-alive ping interval in milliseconds, zero disables pings
+        this.pingInterval = pingInterval;
+    }
+
+    public int getPingInterval() {
+        return pingInterval;
+    }
+
+    public void setIdleTimeout(int idleTimeout) {
+        // Idle timeout in milliseconds, zero disables the timeout
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public int setSnapshot(DeviceSnapshot snapshot, WriteAheadLog valueLog, int checkpointInterval) {
+        // Restores the device values from the snapshot, replays the changes logged after it and
+        // starts taking checkpoints every checkpoint interval milliseconds. The value log is
+        // optional. A null snapshot takes a last checkpoint and stops. Must be called on the
+        // main thread.
+
+        mainThreadHandler.removeCallbacks(checkpointAction);
+        if (this.snapshot != null) {
+            checkpointSnapshot();
+            this.snapshot.close();
+        }
+        if (this.valueLog != null) {
+            try {
+                this.valueLog.close();
+            } catch (IOException e) {
+                Log.e(TAG, "setSnapshot() Unable to close value log: " + e.getMessage());
+            }
+            this.valueLog = null;
+        }
+
+        this.snapshot = snapshot;
+        this.checkpointInterval = checkpointInterval;
+        if (snapshot == null) {
+            // a log is never used without a snapshot, so a given one is closed
+            if (valueLog != null) {
+                try {
+                    valueLog.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "setSnapshot() Unable to close value log: " + e.getMessage());
+                }
+            }
+            return 0;
+        }
+
+        long startTime = SystemClock.uptimeMillis();
+        int count = snapshot.restore(this);
+        Log.i(TAG, "setSnapshot() Restored " + count + " device values in " + (SystemClock.uptimeMillis() - startTime) + " ms");
+        snapshotDirty = false;
+
+        if (valueLog != null) {
+            try {
+                startTime = SystemClock.uptimeMillis();
+                int changes = valueLog.replay(this, snapshot.getLogPosition());
+                Log.i(TAG, "setSnapshot() Replayed " + changes + " logged changes in " + (SystemClock.uptimeMillis() - startTime) + " ms");
+            } catch (IOException e) {
+                Log.e(TAG, "setSnapshot() Unable to replay value log: " + e.getMessage());
+            }
+            // the log is attached only after the replay, so the replayed changes are not logged again
+            this.valueLog = valueLog;
+        }
+
+        mainThreadHandler.postDelayed(checkpointAction, checkpointInterval);
+        return count;
+    }
+
+    public void checkpointSnapshot() {
+        // Writes a checkpoint now, for example before the application may be killed
+
+        if (snapshot == null || !snapshotDirty)
+            return;
+        try {
+            long startTime = SystemClock.uptimeMillis();
+            snapshotDirty = false;
+            // the values include every change appended so far, because both happen on this thread
+            long logPosition = valueLog != null ? valueLog.getLastPosition() : 0;
+            int count = snapshot.checkpoint(this, logPosition);
+            Log.d(TAG, "checkpointSnapshot() Wrote " + count + " device values in " + (SystemClock.uptimeMillis() - startTime) + " ms");
+            if (valueLog != null) {
+                int segments = valueLog.compact(logPosition);
+                if (segments > 0)
+                    Log.d(TAG, "checkpointSnapshot() Deleted " + segments + " value log segments");
+            }
+        } catch (IOException e) {
+            snapshotDirty = true;
+            Log.e(TAG, "checkpointSnapshot() Unable to write snapshot: " + e.getMessage());
+        }
+    }
+
     public void setAutoConnect(boolean autoConnect) {
         this.autoConnect = autoConnect;
     }
@@ -533,6 +951,19 @@ public class CentralUnitConnection extends CentralUnit {
         Log.d(TAG, "listeningStateChanged() Number of listeners: " + nListeners);
     }
 
+    @Override
+    protected void deviceValueChanged(Device device) {
+        // Appending only buffers the change, the log writer thread forces the changes in batches
+        snapshotDirty = true;
+        if (valueLog == null)
+            return;
+        try {
+            valueLog.append(device);
+        } catch (IOException e) {
+            Log.e(TAG, "deviceValueChanged() Unable to log device " + device.getId() + ": " + e.getMessage());
+        }
+    }
+
     @Override
     protected void changeBinaryValue(Device device, boolean value) {
         Log.d(TAG, "Connection status: " + getConnectionStatus());
@@ -575,11 +1006,15 @@ public class CentralUnitConnection extends CentralUnit {
         if (null != outgoingMessageHandler) {
             Log.d(TAG, "Send login message");
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x00)
-                    .integer8(0x01)
+            outgoingMessage.integer8(MessageType.LOGIN)
+                    .integer8(compression != null ? compressedProtocolVersion : protocolVersion)
                     .text(username)
                     .text(password);
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+            if (batchedChangesEnabled)
+                outgoingMessage.integer32(batchedChangesCapability);
+            if (compression != null)
+                compressionStartMessage = outgoingMessage;
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendLogin() Sent login to server: " + getURL().getHost() + ":" + getURL().getPort());
         }
     }
@@ -589,22 +1024,25 @@ public class CentralUnitConnection extends CentralUnit {
 
         if (outgoingMessageHandler != null) {
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x01)
-                    .text("So long, Dr. Strangelove");
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+            outgoingMessage.integer8(MessageType.LOGOUT)
+                    .text(logoutText);
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendLogout() Sent logout to server: " + getURL().getHost() + ":" + getURL().getPort());
         }
     }
 
 
     public void sendPing() {
+        sendPing(SystemClock.uptimeMillis());
+    }
+
+    private void sendPing(long pingIdentifier) {
 
         if (null != outgoingMessageHandler) {
-            long pingIdentifier = SystemClock.uptimeMillis();
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x02)
+            outgoingMessage.integer8(MessageType.PING)
                     .integer32(pingIdentifier);
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendPing() Sent ping to server: " + getURL().getHost() + ":" + getURL().getPort());
         }
     }
@@ -614,29 +1052,44 @@ public class CentralUnitConnection extends CentralUnit {
         if (null != outgoingMessageHandler) {
             long pongIdentifier = SystemClock.uptimeMillis();
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x03)
+            outgoingMessage.integer8(MessageType.PONG)
                     .integer32(pongIdentifier);
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendPong() Sent pong to server: " + getURL().getHost() + ":" + getURL().getPort());
         }
     }
 
+    private byte[] getItemData(Item item) {
+        // Returns the encoded item data following the item identifier and value in the item
+        // messages. The data is encoded only when the item properties have changed.
+
+        byte[] itemData = item.itemData;
+        if (itemData == null) {
+            OutgoingMessage outgoingMessage = ItemMessage.writeItemData(new OutgoingMessage(),
+                    item.getParent().getId(), item.getName(), item.getDescription(), item.isInternal());
+
+            if (item instanceof Device && ((Device)item).getValueType() == Device.ValueType.DECIMAL) {
+                Device device = (Device)item;
+                ItemMessage.writeDecimalData(outgoingMessage, device.getMinValue(), device.getMaxValue(),
+                        device.getUnit(), device.getUnitAbbreviation());
+            }
+
+            itemData = outgoingMessage.toByteArray();
+            outgoingMessage.release();
+            item.itemData = itemData;
+        }
+        return itemData;
+    }
+
     public void sendDecimalSensorChanged(Device device) {
 
         if (null != outgoingMessageHandler) {
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x04)
+            outgoingMessage.integer8(MessageType.DECIMAL_SENSOR)
                     .integer32(device.getId())
                     .decimal64(device.getDecimalValue())
-                    .integer32(device.getParent().getId())
-                    .text(device.getName())
-                    .text(device.getDescription())
-                    .binary8(device.isInternal())
-                    .decimal64(device.getMinValue())
-                    .decimal64(device.getMaxValue())
-                    .text(device.getUnit())
-                    .text(device.getUnitAbbreviation());
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+                    .allBytes(getItemData(device));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendDecimalSensorChanged() Sent new decimal sensor info for item " + device.getId());
         }
     }
@@ -646,18 +1099,11 @@ public class CentralUnitConnection extends CentralUnit {
 
         if (null != outgoingMessageHandler) {
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x05)
+            outgoingMessage.integer8(MessageType.DECIMAL_ACTUATOR)
                     .integer32(device.getId())
                     .decimal64(device.getDecimalValue())
-                    .integer32(device.getParent().getId())
-                    .text(device.getName())
-                    .text(device.getDescription())
-                    .binary8(device.isInternal())
-                    .decimal64(device.getMinValue())
-                    .decimal64(device.getMaxValue())
-                    .text(device.getUnit())
-                    .text(device.getUnitAbbreviation());
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+                    .allBytes(getItemData(device));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendDecimalActuatorChanged() Sent new decimal actuator info for item " + device.getId());
         }
     }
@@ -667,14 +1113,11 @@ public class CentralUnitConnection extends CentralUnit {
 
         if (null != outgoingMessageHandler) {
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x06)
+            outgoingMessage.integer8(MessageType.BINARY_SENSOR)
                     .integer32(device.getId())
                     .binary8(device.getBinaryValue())
-                    .integer32(device.getParent().getId())
-                    .text(device.getName())
-                    .text(device.getDescription())
-                    .binary8(device.isInternal());
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+                    .allBytes(getItemData(device));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendBinarySensorChanged() Sent new binary sensor info for item " + device.getId());
         }
     }
@@ -683,14 +1126,11 @@ public class CentralUnitConnection extends CentralUnit {
 
         if (null != outgoingMessageHandler) {
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x07)
+            outgoingMessage.integer8(MessageType.BINARY_ACTUATOR)
                     .integer32(device.getId())
                     .binary8(device.getBinaryValue())
-                    .integer32(device.getParent().getId())
-                    .text(device.getName())
-                    .text(device.getDescription())
-                    .binary8(device.isInternal());
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+                    .allBytes(getItemData(device));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendBinarySensorChanged() Sent new binary actuator info for item " + device.getId());
         }
     }
@@ -700,13 +1140,10 @@ public class CentralUnitConnection extends CentralUnit {
 
         if (null != outgoingMessageHandler) {
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x08)
+            outgoingMessage.integer8(MessageType.CONTAINER)
                     .integer32(container.getId())
-                    .integer32(container.getParent().getId())
-                    .text(container.getName())
-                    .text(container.getDescription())
-                    .binary8(container.isInternal());
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+                    .allBytes(getItemData(container));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendContainerChanged() Sent new container info for container " + container.getId());
         }
     }
@@ -716,10 +1153,10 @@ public class CentralUnitConnection extends CentralUnit {
 
         if (null != outgoingMessageHandler) {
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x09)
+            outgoingMessage.integer8(MessageType.DECIMAL_CHANGED)
                     .integer32(device.getId())
                     .decimal64(value);
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendDecimalValueChanged() Sent device " + device.getId() + " new decimal value = " + value);
         }
     }
@@ -729,10 +1166,10 @@ public class CentralUnitConnection extends CentralUnit {
 
         if (null != outgoingMessageHandler) {
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x0a)
+            outgoingMessage.integer8(MessageType.BINARY_CHANGED)
                     .integer32(device.getId())
                     .binary8(value);
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendBinaryValueChanged() Sent device " + device.getId() + " new binary value = " + value);
         }
     }
@@ -742,9 +1179,9 @@ public class CentralUnitConnection extends CentralUnit {
 
         if (null != outgoingMessageHandler) {
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x0b)
+            outgoingMessage.integer8(MessageType.ITEM_REMOVED)
                     .integer32(item.getId());
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendItemRemoved() Sent ping to server: " + getURL().getHost() + ":" + getURL().getPort());
         }
     }
@@ -755,9 +1192,9 @@ public class CentralUnitConnection extends CentralUnit {
 
         if (outgoingMessageHandler != null) {
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x0c)
+            outgoingMessage.integer8(MessageType.LISTENING_START)
                     .integer32(container.getId());
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendListeningStart() Sent listening start for container " + container.getId());
          }
         else
@@ -770,9 +1207,9 @@ public class CentralUnitConnection extends CentralUnit {
 
         if (outgoingMessageHandler != null) {
             OutgoingMessage outgoingMessage = new OutgoingMessage();
-            outgoingMessage.integer8(0x0d)
+            outgoingMessage.integer8(MessageType.LISTENING_STOP)
                     .integer32(container.getId());
-            outgoingMessageHandler.post(new OutgoingMessageAction(outgoingMessage));
+            postOutgoingMessage(outgoingMessage);
             Log.d(TAG, "sendListeningStop() Sent listening stop for container " + container.getId());
         }
         else
@@ -17,7 +17,7 @@ package com.opimobi.ohap;
  * @see com.opimobi.ohap.Item
  *
  * @author Henrik hedberg &lt;henrik.hedberg@iki.fi>
- * @version 1.1
+ * @version 1.2
  */
 public class Device extends Item {
     /**
@@ -247,7 +247,8 @@ public class Device extends Item {
      * Sets the binary value of the device, if the type of the value is binary. If the type of
      * the value is not binary, throws an {@link java.lang.IllegalStateException}.
      *
-     * Calls the listeners of the {@link #valueChangedEventSource} after the value has been changed.
+     * Calls the listeners of the {@link #valueChangedEventSource} after the value has been changed,
+     * and then {@link com.opimobi.ohap.CentralUnit#deviceValueChanged(Device)}.
      *
      * This method is for protocol implementations only. For user-initiated changes to the value
      * the {@link #changeBinaryValue(boolean)} method must be used.
@@ -265,13 +266,17 @@ public class Device extends Item {
 
         this.binaryValue = binaryValue;
         valueChangedEventSource.fireEvent(null);
+        // a destroyed device has no central unit
+        if (getCentralUnit() != null)
+            getCentralUnit().deviceValueChanged(this);
     }
 
     /**
      * Sets the decimal value of the device, if the type of the value is decimal. If the type of
      * the value is not decimal, throws an {@link java.lang.IllegalStateException}.
      *
-     * Calls the listeners of the {@link #valueChangedEventSource} after the value has been changed.
+     * Calls the listeners of the {@link #valueChangedEventSource} after the value has been changed,
+     * and then {@link com.opimobi.ohap.CentralUnit#deviceValueChanged(Device)}.
      *
      * This method is for protocol implementations only. For user-initiated changes to the value
      * the {@link #changeDecimalValue(double)} method must be used.
@@ -289,6 +294,9 @@ public class Device extends Item {
 
         this.decimalValue = decimalValue;
         valueChangedEventSource.fireEvent(null);
+        // a destroyed device has no central unit
+        if (getCentralUnit() != null)
+            getCentralUnit().deviceValueChanged(this);
     }
 
     /**
@@ -306,6 +314,7 @@ public class Device extends Item {
 
         this.minValue = minValue;
         this.maxValue = maxValue;
+        itemData = null;
     }
 
     /**
@@ -323,5 +332,6 @@ public class Device extends Item {
 
         this.unit = unit;
         this.unitAbbreviation = unitAbbreviation;
+        itemData = null;
     }
 }
@@ -0,0 +1,314 @@
+package com.opimobi.ohap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot of the device values of a central unit in a memory-mapped file, so that the values
+ * survive a restart. The values are written only when a checkpoint is taken, so changing a value
+ * costs nothing extra.
+ *
+ * The file holds two regions of the same fixed layout. A checkpoint is written into the region
+ * not holding the latest checkpoint, and its header is written last, so a crash during a
+ * checkpoint leaves the previous checkpoint intact. The region with the highest sequence number
+ * and a valid CRC is restored.
+ *
+ * <pre>
+ * region header (32 bytes)
+ *    magic                 int32
+ *    version               int32
+ *    sequence              int64
+ *    count                 int32
+ *    crc                   int32 (CRC-32 of the slots, the sequence, the count and the log position)
+ *    log-position          int64 (the last change of the write-ahead log included, 0 if none)
+ * slots (16 bytes each)
+ *    item-identifier       int32
+ *    flags                 int32 (bit 0: binary device, bit 1: binary value)
+ *    decimal-value         decimal64
+ * </pre>
+ *
+ * A snapshot must be used from the thread modifying the devices, so that a checkpoint sees
+ * consistent values. Together with a {@link com.opimobi.ohap.WriteAheadLog} the checkpoint
+ * records the log position it includes, so that only the later changes are replayed.
+ *
+ * @author Aapo Keskimolo &lt;aapokesk@gmail.com>
+ * @version 1.1
+ */
+public class DeviceSnapshot {
+
+    private static final int MAGIC = 0x4f48534e;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+    private static final int MIN_CAPACITY = 1024;
+
+    private static final int FLAG_BINARY = 0x01;
+    private static final int FLAG_BINARY_VALUE = 0x02;
+
+    /**
+     * The amount of slots copied into the file at a time.
+     */
+    private static final int CHUNK_SLOTS = 256;
+
+    private final File file;
+
+    /**
+     * The mapped file, or null if the file does not exist yet.
+     */
+    private MappedByteBuffer mappedBuffer;
+
+    /**
+     * The amount of slots in one region of the mapped file.
+     */
+    private int capacity;
+
+    /**
+     * The region holding the latest checkpoint, or -1 if none.
+     */
+    private int latestRegion = -1;
+    private long latestSequence;
+    private long latestLogPosition;
+
+    private final byte[] chunk = new byte[CHUNK_SLOTS * SLOT_SIZE];
+    private final ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Opens a snapshot file. The file is created on the first checkpoint if it does not exist.
+     *
+     * @param file The snapshot file.
+     * @exception java.io.IOException If an existing file can not be mapped.
+     */
+    public DeviceSnapshot(File file) throws IOException {
+        this.file = file;
+
+        if (file.exists() && file.length() >= 2 * (HEADER_SIZE + SLOT_SIZE)) {
+            map(file, (int)((file.length() / 2 - HEADER_SIZE) / SLOT_SIZE));
+            for (int region = 0; region < 2; region++) {
+                long sequence = validSequence(region);
+                if (sequence > latestSequence) {
+                    latestSequence = sequence;
+                    latestRegion = region;
+                    latestLogPosition = mappedBuffer.getLong(regionOffset(region) + 24);
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores the values of the latest valid checkpoint into the devices of the central unit in
+     * one sequential pass. Devices not found in the central unit or of a different value type
+     * are skipped.
+     *
+     * @param centralUnit The central unit of which devices are restored.
+     * @return The amount of restored devices.
+     */
+    public int restore(CentralUnit centralUnit) {
+        if (latestRegion == -1)
+            return 0;
+
+        ByteBuffer buffer = mappedBuffer.duplicate();
+        int offset = regionOffset(latestRegion);
+        int count = buffer.getInt(offset + 16);
+        buffer.position(offset + HEADER_SIZE);
+
+        int restored = 0;
+        for (int i = 0; i < count; i++) {
+            long id = buffer.getInt() & 0xffffffffL;
+            int flags = buffer.getInt();
+            double decimalValue = buffer.getDouble();
+
+            Item item = centralUnit.getItemById(id);
+            if (!(item instanceof Device))
+                continue;
+
+            Device device = (Device)item;
+            boolean binary = (flags & FLAG_BINARY) != 0;
+            if (binary && device.getValueType() == Device.ValueType.BINARY) {
+                device.setBinaryValue((flags & FLAG_BINARY_VALUE) != 0);
+                restored++;
+            } else if (!binary && device.getValueType() == Device.ValueType.DECIMAL) {
+                device.setDecimalValue(decimalValue);
+                restored++;
+            }
+        }
+
+        return restored;
+    }
+
+    /**
+     * Returns the log position recorded in the latest valid checkpoint.
+     *
+     * @return The log position, or 0 if there is no checkpoint or no log was used.
+     */
+    public long getLogPosition() {
+        return latestLogPosition;
+    }
+
+    /**
+     * Writes the current values of all devices of the central unit as a new checkpoint. The
+     * file is grown when the devices do not fit into it.
+     *
+     * @param centralUnit The central unit of which devices are written.
+     * @param logPosition The log position of the last change included in the values, or 0.
+     * @return The amount of written devices.
+     * @exception java.io.IOException If the file can not be grown.
+     */
+    public int checkpoint(CentralUnit centralUnit, long logPosition) throws IOException {
+        ArrayDeque<Device> devices = collectDevices(centralUnit);
+        int count = devices.size();
+
+        if (mappedBuffer == null || count > capacity) {
+            // a new file is built beside the old one and renamed over it when complete
+            File newFile = new File(file.getPath() + ".tmp");
+            newFile.delete();
+            map(newFile, Math.max(MIN_CAPACITY, count + count / 2));
+            latestRegion = -1;
+            writeRegion(0, devices, logPosition);
+            if (!newFile.renameTo(file))
+                throw new IOException("Unable to replace snapshot file " + file);
+            return count;
+        }
+
+        writeRegion(latestRegion == 0 ? 1 : 0, devices, logPosition);
+        return count;
+    }
+
+    /**
+     * Releases the mapped file. The snapshot must not be used after this.
+     */
+    public void close() {
+        mappedBuffer = null;
+    }
+
+    private void writeRegion(int region, ArrayDeque<Device> devices, long logPosition) {
+        ByteBuffer buffer = mappedBuffer.duplicate();
+        int offset = regionOffset(region);
+        int count = devices.size();
+        long sequence = latestSequence + 1;
+
+        // invalidate the region before writing its slots
+        buffer.putInt(offset, 0);
+        buffer.position(offset + HEADER_SIZE);
+
+        crc.reset();
+        chunkBuffer.clear();
+        for (Device device : devices) {
+            int flags = 0;
+            double decimalValue = 0;
+            if (device.getValueType() == Device.ValueType.BINARY)
+                flags = FLAG_BINARY | (device.getBinaryValue() ? FLAG_BINARY_VALUE : 0);
+            else
+                decimalValue = device.getDecimalValue();
+
+            chunkBuffer.putInt((int)device.getId())
+                    .putInt(flags)
+                    .putDouble(decimalValue);
+            if (!chunkBuffer.hasRemaining())
+                flushChunk(buffer);
+        }
+        flushChunk(buffer);
+        updateCrc(sequence, count, logPosition);
+        mappedBuffer.force();
+
+        // the header is written last, so the checkpoint becomes valid only when complete
+        buffer.putInt(offset + 4, VERSION);
+        buffer.putLong(offset + 8, sequence);
+        buffer.putInt(offset + 16, count);
+        buffer.putInt(offset + 20, (int)crc.getValue());
+        buffer.putLong(offset + 24, logPosition);
+        buffer.putInt(offset, MAGIC);
+        mappedBuffer.force();
+
+        latestRegion = region;
+        latestSequence = sequence;
+        latestLogPosition = logPosition;
+    }
+
+    private void flushChunk(ByteBuffer buffer) {
+        int length = chunkBuffer.position();
+        buffer.put(chunk, 0, length);
+        crc.update(chunk, 0, length);
+        chunkBuffer.clear();
+    }
+
+    private void updateCrc(long sequence, int count, long logPosition) {
+        chunkBuffer.clear();
+        chunkBuffer.putLong(sequence).putInt(count).putLong(logPosition);
+        crc.update(chunk, 0, chunkBuffer.position());
+        chunkBuffer.clear();
+    }
+
+    /**
+     * Checks the header and the CRC of a region.
+     *
+     * @param region The region to be checked.
+     * @return The sequence number of the region, or 0 if the region is not valid.
+     */
+    private long validSequence(int region) {
+        ByteBuffer buffer = mappedBuffer.duplicate();
+        int offset = regionOffset(region);
+        if (buffer.getInt(offset) != MAGIC || buffer.getInt(offset + 4) != VERSION)
+            return 0;
+
+        long sequence = buffer.getLong(offset + 8);
+        int count = buffer.getInt(offset + 16);
+        if (count < 0 || count > capacity)
+            return 0;
+
+        crc.reset();
+        buffer.position(offset + HEADER_SIZE);
+        int remaining = count * SLOT_SIZE;
+        while (remaining > 0) {
+            int length = Math.min(remaining, chunk.length);
+            buffer.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+            remaining -= length;
+        }
+        updateCrc(sequence, count, buffer.getLong(offset + 24));
+
+        return (int)crc.getValue() == buffer.getInt(offset + 20) ? sequence : 0;
+    }
+
+    private void map(File mappedFile, int capacity) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mappedFile, "rw");
+        try {
+            long size = 2L * (HEADER_SIZE + (long)capacity * SLOT_SIZE);
+            randomAccessFile.setLength(size);
+            mappedBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            this.capacity = capacity;
+        } finally {
+            // the mapping stays valid after the file has been closed
+            randomAccessFile.close();
+        }
+    }
+
+    private int regionOffset(int region) {
+        return region * (HEADER_SIZE + capacity * SLOT_SIZE);
+    }
+
+    private static ArrayDeque<Device> collectDevices(CentralUnit centralUnit) {
+        ArrayDeque<Device> devices = new ArrayDeque<>();
+        ArrayDeque<Container> containers = new ArrayDeque<>();
+        containers.push(centralUnit);
+        while (!containers.isEmpty()) {
+            Container container = containers.pop();
+            int itemCount = container.getItemCount();
+            for (int i = 0; i < itemCount; i++) {
+                Item item = container.getItemByIndex(i);
+                if (item instanceof Device)
+                    devices.add((Device)item);
+                else if (item instanceof Container)
+                    containers.push((Container)item);
+            }
+        }
+
+        return devices;
+    }
+}
@@ -55,6 +55,13 @@ public abstract class Item {
      */
     private Container parent;
 
+    /**
+     * The encoded item data of the item, cached by the central unit implementation so that the
+     * texts are not encoded again every time the item is sent. Cleared whenever a property
+     * included in the item data changes.
+     */
+    byte[] itemData;
+
     /**
      * An implementation-only constructor that is used to initialise a central unit.
      */
@@ -113,6 +120,7 @@ public abstract class Item {
         if (parent != null) {
             parent.remove(this);
             parent = null;
+            itemData = null;
         }
     }
 
@@ -176,6 +184,7 @@ public abstract class Item {
      */
     public void setDescription(String description) {
         this.description = description;
+        itemData = null;
     }
 
     /**
@@ -186,6 +195,7 @@ public abstract class Item {
 
     public void setInternal(boolean internal) {
         this.internal = internal;
+        itemData = null;
     }
 
     /**
@@ -195,5 +205,6 @@ public abstract class Item {
      */
     public void setName(String name) {
         this.name = name;
+        itemData = null;
     }
 }
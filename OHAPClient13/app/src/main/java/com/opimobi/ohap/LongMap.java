@@ -0,0 +1,193 @@
+package com.opimobi.ohap;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive long keys to values, used by the central unit to find items by their
+ * identifiers. The keys are stored in an open-addressing table with linear probing, so that a
+ * lookup boxes nothing and reads adjacent array slots instead of following entry objects.
+ *
+ * Null values are not supported, an empty slot is marked by a null value. Removal shifts the
+ * following entries of the probe sequence back, so no tombstones are left behind.
+ *
+ * @param <V> The type of the values.
+ */
+class LongMap<V> {
+
+    /**
+     * The initial capacity of the table. Always a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The keys of the table.
+     */
+    private long[] keys;
+
+    /**
+     * The values of the table. A null value marks an empty slot.
+     */
+    private Object[] values;
+
+    /**
+     * The amount of entries in the map.
+     */
+    private int size;
+
+    /**
+     * The amount of entries after which the table is grown, half of the capacity.
+     */
+    private int threshold;
+
+    /**
+     * Constructs an empty map.
+     */
+    LongMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns the value mapped to the specified key.
+     *
+     * @param key The key.
+     * @return The value, or null if the key is not mapped.
+     */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        int mask = keys.length - 1;
+        for (int index = hash(key) & mask; ; index = (index + 1) & mask) {
+            Object value = values[index];
+            if (value == null)
+                return null;
+            if (keys[index] == key)
+                return (V)value;
+        }
+    }
+
+    /**
+     * Maps the specified key to the specified value.
+     *
+     * @param key The key.
+     * @param value The value, not null.
+     * @return The previous value of the key, or null if the key was not mapped.
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (value == null)
+            throw new IllegalArgumentException("Null values are not supported.");
+
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V previousValue = (V)values[index];
+                values[index] = value;
+                return previousValue;
+            }
+            index = (index + 1) & mask;
+        }
+
+        keys[index] = key;
+        values[index] = value;
+        if (++size > threshold)
+            grow();
+
+        return null;
+    }
+
+    /**
+     * Removes the mapping of the specified key.
+     *
+     * @param key The key.
+     * @return The removed value, or null if the key was not mapped.
+     */
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        int mask = keys.length - 1;
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V removedValue = (V)values[index];
+                shiftBack(index);
+                size--;
+                return removedValue;
+            }
+            index = (index + 1) & mask;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the amount of entries in the map.
+     *
+     * @return The amount of entries.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries from the map. The capacity of the table is kept.
+     */
+    void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * Empties the specified slot and moves the following entries of the probe sequence back to
+     * the slots they would be found from.
+     *
+     * @param index The slot to be emptied.
+     */
+    private void shiftBack(int index) {
+        int mask = keys.length - 1;
+        int next = (index + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            // move the entry if its home slot is not between the gap and its current slot
+            if (((next - home) & mask) >= ((next - index) & mask)) {
+                keys[index] = keys[next];
+                values[index] = values[next];
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[index] = null;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(keys.length * 2);
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == null)
+                continue;
+            int index = hash(oldKeys[i]) & mask;
+            while (values[index] != null)
+                index = (index + 1) & mask;
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        threshold = capacity / 2;
+    }
+
+    /**
+     * Spreads the key bits so that sequential identifiers do not form long probe runs.
+     *
+     * @param key The key.
+     * @return The hash of the key.
+     */
+    private static int hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int)(h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,312 @@
+package com.opimobi.ohap;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Generates reproducible synthetic topologies and listening scenarios for benchmarks and load
+ * tests. The topology is a tree of containers with the given depth and fan-out, and every
+ * container below the central unit holds the given amount of devices with a configurable mix of
+ * decimal and binary sensors and actuators. The same seed and settings always give the same
+ * topology.
+ *
+ * The topology is produced in the format of {@link com.opimobi.ohap.TopologyLoader}. It is
+ * generated lazily through a Reader, so it can be loaded straight into a central unit without
+ * a file or written into a file. Containers get the identifiers 1..getContainerCount() in
+ * depth-first order and devices the identifiers after them.
+ *
+ * The scenario tells which containers each simulated session listens to, one session per line:
+ *
+ * <pre>
+ * session  index  container-id  container-id ...
+ * </pre>
+ *
+ * The containers are chosen with a skewed distribution favouring the low identifiers, so that a
+ * few containers are listened by many sessions like in a real site. As the identifiers are
+ * assigned depth-first, the favoured containers are those of the first top-level container's
+ * subtree, from the top-level container down to the lowest level, not the top levels of the tree.
+ *
+ * @author Aapo Keskimolo &lt;aapokesk@gmail.com>
+ * @version 1.0
+ */
+public class TopologyGenerator {
+
+    private static final String[] decimalSensorNames = { "Temperature", "Humidity", "Power meter", "Light level" };
+    private static final String[] decimalActuatorNames = { "Thermostate", "Dimmer", "Fan speed" };
+    private static final String[] binarySensorNames = { "Motion", "Window", "Door", "Smoke detector" };
+    private static final String[] binaryActuatorNames = { "Ceiling lamp", "Socket", "Lock", "Coffee maker" };
+    private static final String[][] decimalUnits = {
+            { "Celsius", "C" }, { "Percent", "%" }, { "Watt", "W" }, { "Lux", "lx" } };
+
+    private final long seed;
+    private int depth = 3;
+    private int fanOut = 10;
+    private int devicesPerContainer = 10;
+    private double decimalShare = 0.5;
+    private double actuatorShare = 0.5;
+    private double listeningSkew = 3.0;
+
+    /**
+     * Constructs a generator with the default shape: three levels of ten containers, each
+     * holding ten devices, half of them decimal and half of them actuators.
+     *
+     * @param seed The seed of the random values.
+     */
+    public TopologyGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the amount of container levels below the central unit.
+     *
+     * @param depth The amount of levels, at least 1.
+     */
+    public void setDepth(int depth) {
+        if (depth < 1)
+            throw new IllegalArgumentException("The depth must be at least 1.");
+        this.depth = depth;
+    }
+
+    /**
+     * Sets the amount of child containers of each container above the lowest level.
+     *
+     * @param fanOut The amount of child containers, at least 1.
+     */
+    public void setFanOut(int fanOut) {
+        if (fanOut < 1)
+            throw new IllegalArgumentException("The fan-out must be at least 1.");
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Sets the amount of devices in each container below the central unit.
+     *
+     * @param devicesPerContainer The amount of devices.
+     */
+    public void setDevicesPerContainer(int devicesPerContainer) {
+        if (devicesPerContainer < 0)
+            throw new IllegalArgumentException("The amount of devices must not be negative.");
+        this.devicesPerContainer = devicesPerContainer;
+    }
+
+    /**
+     * Sets the device mix.
+     *
+     * @param decimalShare The share of decimal devices, between 0 and 1.
+     * @param actuatorShare The share of actuators, between 0 and 1.
+     */
+    public void setDeviceMix(double decimalShare, double actuatorShare) {
+        if (decimalShare < 0 || decimalShare > 1 || actuatorShare < 0 || actuatorShare > 1)
+            throw new IllegalArgumentException("The shares must be between 0 and 1.");
+        this.decimalShare = decimalShare;
+        this.actuatorShare = actuatorShare;
+    }
+
+    /**
+     * Sets how strongly the scenario favours the first containers in depth-first order. 1 chooses
+     * the containers uniformly, larger values concentrate the sessions on the lowest identifiers.
+     *
+     * @param listeningSkew The skew, at least 1.
+     */
+    public void setListeningSkew(double listeningSkew) {
+        if (listeningSkew < 1)
+            throw new IllegalArgumentException("The skew must be at least 1.");
+        this.listeningSkew = listeningSkew;
+    }
+
+    /**
+     * Returns the amount of containers in the topology, not including the central unit.
+     *
+     * @return The amount of containers.
+     */
+    public long getContainerCount() {
+        long count = 0;
+        long level = 1;
+        for (int i = 0; i < depth; i++) {
+            level *= fanOut;
+            count += level;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the amount of items in the topology, not including the central unit.
+     *
+     * @return The amount of containers and devices.
+     */
+    public long getItemCount() {
+        return getContainerCount() * (1 + devicesPerContainer);
+    }
+
+    /**
+     * Returns a Reader producing the topology. The topology is generated while it is read.
+     *
+     * @return The reader of the topology.
+     */
+    public Reader openReader() {
+        return new TopologyReader();
+    }
+
+    /**
+     * Writes the topology.
+     *
+     * @param writer The writer into which the topology is written.
+     * @exception java.io.IOException If writing fails.
+     */
+    public void write(Writer writer) throws IOException {
+        Reader reader = openReader();
+        char[] buffer = new char[8192];
+        int got;
+        while ((got = reader.read(buffer, 0, buffer.length)) != -1)
+            writer.write(buffer, 0, got);
+        writer.flush();
+    }
+
+    /**
+     * Writes a listening scenario for the topology.
+     *
+     * @param writer The writer into which the scenario is written.
+     * @param sessions The amount of sessions.
+     * @param containersPerSession The amount of containers each session listens to.
+     * @exception java.io.IOException If writing fails.
+     */
+    public void writeScenario(Writer writer, int sessions, int containersPerSession) throws IOException {
+        Random random = new Random(seed ^ 0x5deece66dL);
+        long containerCount = getContainerCount();
+        int count = (int)Math.min(containersPerSession, containerCount);
+        long[] containerIds = new long[count];
+
+        writer.write("# session\tindex\tcontainer-id...\n");
+        for (int session = 0; session < sessions; session++) {
+            writer.write("session\t" + session);
+            for (int i = 0; i < count; i++) {
+                long id = 1 + (long)(Math.pow(random.nextDouble(), listeningSkew) * containerCount);
+                // a container already chosen for the session is replaced by the next free one
+                while (contains(containerIds, i, id))
+                    id = id % containerCount + 1;
+                containerIds[i] = id;
+                writer.write("\t" + id);
+            }
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    private static boolean contains(long[] ids, int count, long id) {
+        for (int i = 0; i < count; i++)
+            if (ids[i] == id)
+                return true;
+        return false;
+    }
+
+    /**
+     * Generates the topology lines in depth-first order: a container, its devices and then its
+     * child containers.
+     */
+    private class TopologyReader extends Reader {
+
+        private final Random random = new Random(seed);
+        private final StringBuilder line = new StringBuilder(128);
+        private int linePosition;
+
+        // the containers on the current path, index 0 is the central unit
+        private final long[] pathIds = new long[depth + 1];
+        private final int[] pathChildren = new int[depth + 1];
+        private int level = -1;
+        private int devicesLeft;
+
+        private long nextContainerId = 1;
+        private long nextDeviceId = getContainerCount() + 1;
+        private boolean finished;
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (length == 0)
+                return 0;
+
+            int count = 0;
+            while (count < length) {
+                if (linePosition == line.length() && !nextLine())
+                    break;
+                int chunk = Math.min(length - count, line.length() - linePosition);
+                line.getChars(linePosition, linePosition + chunk, buffer, offset + count);
+                linePosition += chunk;
+                count += chunk;
+            }
+
+            return count == 0 ? -1 : count;
+        }
+
+        @Override
+        public void close() {
+            finished = true;
+        }
+
+        /**
+         * Generates the next line.
+         *
+         * @return Whether a line was generated.
+         */
+        private boolean nextLine() {
+            line.setLength(0);
+            linePosition = 0;
+
+            while (!finished) {
+                if (level == -1) {
+                    level = 0;
+                    line.append("container\t0\t0\tSynthetic site\tDepth ").append(depth)
+                            .append(", fan-out ").append(fanOut).append(", seed ").append(seed).append('\n');
+                    return true;
+                }
+
+                if (level > 0 && devicesLeft > 0) {
+                    devicesLeft--;
+                    appendDevice(pathIds[level]);
+                    return true;
+                }
+
+                if (level < depth && pathChildren[level] < fanOut) {
+                    pathChildren[level]++;
+                    long parentId = pathIds[level];
+                    level++;
+                    pathIds[level] = nextContainerId++;
+                    pathChildren[level] = 0;
+                    devicesLeft = devicesPerContainer;
+                    line.append("container\t").append(pathIds[level]).append('\t').append(parentId)
+                            .append("\tRoom ").append(pathIds[level])
+                            .append("\tContainer on level ").append(level).append('\n');
+                    return true;
+                }
+
+                if (level == 0)
+                    finished = true;
+                else
+                    level--;
+            }
+
+            return false;
+        }
+
+        private void appendDevice(long parentId) {
+            long id = nextDeviceId++;
+            boolean decimal = random.nextDouble() < decimalShare;
+            boolean actuator = random.nextDouble() < actuatorShare;
+            String[] names = decimal ? (actuator ? decimalActuatorNames : decimalSensorNames) :
+                    (actuator ? binaryActuatorNames : binarySensorNames);
+
+            line.append(decimal ? "decimal-" : "binary-").append(actuator ? "actuator\t" : "sensor\t")
+                    .append(id).append('\t').append(parentId).append('\t')
+                    .append(names[random.nextInt(names.length)]).append("\tDevice ").append(id);
+            if (decimal) {
+                String[] unit = decimalUnits[random.nextInt(decimalUnits.length)];
+                line.append('\t').append(Math.round(random.nextDouble() * 400) / 10.0)
+                        .append("\t0.0\t40.0\t").append(unit[0]).append('\t').append(unit[1]);
+            } else {
+                line.append('\t').append(random.nextBoolean());
+            }
+            line.append('\n');
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.opimobi.ohap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+
+/**
+ * Builds the item tree of a central unit from a topology file. The file is read line by line and
+ * each line creates one item straight away, so no intermediate representation of the whole file
+ * is kept in memory. The created items register themselves into the central unit as usual.
+ *
+ * The file is line-oriented text and the fields of a line are separated by tabs, so that names
+ * and descriptions may contain spaces. Empty lines and lines starting with '#' are ignored.
+ * A parent must appear before its children. The identifier 0 refers to the central unit itself,
+ * and a container line with identifier 0 sets the name and description of the central unit.
+ *
+ * <pre>
+ * container         id  parent-id  name  description
+ * decimal-sensor    id  parent-id  name  description  value  min  max  unit  abbreviation
+ * decimal-actuator  id  parent-id  name  description  value  min  max  unit  abbreviation
+ * binary-sensor     id  parent-id  name  description  value (true or false)
+ * binary-actuator   id  parent-id  name  description  value (true or false)
+ * </pre>
+ *
+ * @author Aapo Keskimolo &lt;aapokesk@gmail.com>
+ * @version 1.0
+ */
+public class TopologyLoader {
+
+    /**
+     * The line being parsed.
+     */
+    private String line;
+
+    /**
+     * The position of the next field in the line.
+     */
+    private int position;
+
+    private final CentralUnit centralUnit;
+
+    /**
+     * The names and units read so far. Large sites repeat the same few names and units, so equal
+     * texts are shared by the items instead of keeping a copy per item.
+     */
+    private final HashMap<String, String> sharedTexts = new HashMap<>();
+
+    /**
+     * The maximum amount of shared texts, so that unique names do not fill the map.
+     */
+    private static final int MAX_SHARED_TEXTS = 4096;
+
+    private TopologyLoader(CentralUnit centralUnit) {
+        this.centralUnit = centralUnit;
+    }
+
+    /**
+     * Reads a topology file and creates its items into the central unit.
+     *
+     * @param centralUnit The central unit into which the items are created.
+     * @param reader The reader of the topology file.
+     * @return The amount of items created.
+     * @exception java.io.IOException If reading fails or a line is not valid. The items created
+     *                                before the invalid line are kept, the invalid line creates
+     *                                no item.
+     */
+    public static int load(CentralUnit centralUnit, Reader reader) throws IOException {
+        TopologyLoader loader = new TopologyLoader(centralUnit);
+        BufferedReader bufferedReader = new BufferedReader(reader, 65536);
+
+        int count = 0;
+        int lineNumber = 0;
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            lineNumber++;
+            if (line.isEmpty() || line.charAt(0) == '#')
+                continue;
+
+            try {
+                if (loader.parse(line))
+                    count++;
+            } catch (IllegalArgumentException | IllegalStateException | ClassCastException e) {
+                throw new IOException("Invalid topology at line " + lineNumber + ": " + e.getMessage());
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Creates the item described by a line.
+     *
+     * @param line The line to be parsed.
+     * @return Whether a new item was created.
+     */
+    private boolean parse(String line) {
+        this.line = line;
+        position = 0;
+
+        String kind = nextField();
+        long id = Long.parseLong(nextField());
+        Container parent = (Container)centralUnit.getItemById(Long.parseLong(nextField()));
+        if (parent == null)
+            throw new IllegalArgumentException("Unknown parent container.");
+
+        // all fields are parsed before the item is created, so an invalid line creates nothing
+        String name = nextSharedField();
+        String description = nextField();
+
+        Item item;
+        switch (kind) {
+            case "container":
+                if (id == 0) {
+                    centralUnit.setName(name);
+                    centralUnit.setDescription(description);
+                    return false;
+                }
+                item = new Container(parent, id);
+                break;
+
+            case "decimal-sensor":
+            case "decimal-actuator":
+                double value = Double.parseDouble(nextField());
+                double min = Double.parseDouble(nextField());
+                double max = Double.parseDouble(nextField());
+                String unit = nextSharedField();
+                String abbreviation = nextSharedField();
+
+                Device decimalDevice = new Device(parent, id,
+                        kind.equals("decimal-actuator") ? Device.Type.ACTUATOR : Device.Type.SENSOR,
+                        Device.ValueType.DECIMAL);
+                decimalDevice.setDecimalValue(value);
+                decimalDevice.setMinMaxValues(min, max);
+                decimalDevice.setUnit(unit, abbreviation);
+                item = decimalDevice;
+                break;
+
+            case "binary-sensor":
+            case "binary-actuator":
+                boolean binaryValue = parseBoolean(nextField());
+
+                Device binaryDevice = new Device(parent, id,
+                        kind.equals("binary-actuator") ? Device.Type.ACTUATOR : Device.Type.SENSOR,
+                        Device.ValueType.BINARY);
+                binaryDevice.setBinaryValue(binaryValue);
+                item = binaryDevice;
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown item kind \"" + kind + "\".");
+        }
+
+        item.setName(name);
+        item.setDescription(description);
+
+        return true;
+    }
+
+    /**
+     * Returns the next tab separated field of the line.
+     *
+     * @return The field.
+     */
+    private String nextField() {
+        if (position > line.length())
+            throw new IllegalArgumentException("Missing field.");
+
+        int end = line.indexOf('\t', position);
+        if (end == -1)
+            end = line.length();
+        String field = line.substring(position, end);
+        position = end + 1;
+
+        return field;
+    }
+
+    /**
+     * Returns the next field of the line, shared with the earlier equal fields.
+     *
+     * @return The field.
+     */
+    private String nextSharedField() {
+        String field = nextField();
+        String sharedField = sharedTexts.get(field);
+        if (sharedField != null)
+            return sharedField;
+
+        if (sharedTexts.size() < MAX_SHARED_TEXTS)
+            sharedTexts.put(field, field);
+        return field;
+    }
+
+    private static boolean parseBoolean(String field) {
+        if (field.equals("true"))
+            return true;
+        if (field.equals("false"))
+            return false;
+        throw new IllegalArgumentException("Invalid binary value \"" + field + "\".");
+    }
+}
@@ -0,0 +1,465 @@
+package com.opimobi.ohap;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of device value changes, used together with a
+ * {@link com.opimobi.ohap.DeviceSnapshot} to restore the exact device values after a crash: the
+ * snapshot is restored first and then the changes logged after it are replayed.
+ *
+ * Appending only copies the change into a memory buffer. A writer thread writes the buffered
+ * changes into the log file and forces them to the storage with group commit: all changes
+ * appended while the previous batch was written are written and forced together, so a burst of
+ * changes costs one force instead of one per change. The durability level tells whether the
+ * changes are forced at all and whether append waits for it.
+ *
+ * The log is split into segment files named by the log position of their first change. When a
+ * segment grows over the segment size, the next change starts a new segment. Segments of which
+ * all changes are included in a snapshot are deleted with {@link #compact(long)}.
+ *
+ * <pre>
+ * change record (28 bytes)
+ *    log-position          int64 (1 for the first change, increasing by one)
+ *    item-identifier       int32
+ *    flags                 int32 (bit 0: binary device, bit 1: binary value)
+ *    decimal-value         decimal64
+ *    crc                   int32 (CRC-32 of the preceding fields)
+ * </pre>
+ *
+ * A torn record at the end of the last segment, left by a crash, is truncated when the log is
+ * opened.
+ *
+ * @author Aapo Keskimolo &lt;aapokesk@gmail.com>
+ * @version 1.0
+ */
+public class WriteAheadLog {
+
+    /**
+     * The durability levels of the log.
+     */
+    public enum Durability {
+        /**
+         * The changes are written by the writer thread but never forced. A crash of the
+         * application loses the changes appended but not yet written by the writer thread. A
+         * crash of the device also loses the written changes the system has not yet stored.
+         */
+        NONE,
+
+        /**
+         * The changes are forced by the writer thread once per batch. Appending does not wait,
+         * so a crash of the application or the device loses the changes appended but not yet
+         * forced, that is the batch being written and the changes appended after it.
+         */
+        BATCH,
+
+        /**
+         * The changes are forced once per batch and appending waits until the batch of the
+         * change has been forced. No acknowledged change is lost.
+         */
+        SYNC
+    }
+
+    private static final int RECORD_SIZE = 28;
+    private static final String SEGMENT_SUFFIX = ".wal";
+
+    private static final int FLAG_BINARY = 0x01;
+    private static final int FLAG_BINARY_VALUE = 0x02;
+
+    private final File directory;
+    private final Durability durability;
+    private final int segmentSize;
+
+    /**
+     * The segment being written, or null if the next change starts a new segment.
+     */
+    private FileChannel segment;
+    private long segmentLength;
+
+    /**
+     * The changes appended but not yet taken by the writer thread, and the buffer being written
+     * by it. The buffers are swapped for each batch. Guarded by lock.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(64 * RECORD_SIZE);
+    private ByteBuffer writing = ByteBuffer.allocate(64 * RECORD_SIZE);
+
+    private final Object lock = new Object();
+    private long lastPosition;
+    private long committedPosition;
+    private boolean closing;
+    private IOException writeError;
+
+    private final CRC32 crc = new CRC32();
+    private final Thread writerThread;
+
+    /**
+     * Opens the log in the specified directory, creating the directory if needed. The last
+     * segment is checked and a torn change at its end is truncated.
+     *
+     * @param directory The directory of the segment files.
+     * @param durability The durability level.
+     * @param segmentSize The size in bytes after which a new segment is started.
+     * @exception java.io.IOException If the directory or the last segment can not be opened.
+     */
+    public WriteAheadLog(File directory, Durability durability, int segmentSize) throws IOException {
+        if (segmentSize < RECORD_SIZE)
+            throw new IllegalArgumentException("The segment size is too small.");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create log directory " + directory);
+
+        this.directory = directory;
+        this.durability = durability;
+        this.segmentSize = segmentSize;
+
+        File[] segments = listSegments();
+        if (segments.length > 0)
+            openLastSegment(segments[segments.length - 1]);
+        committedPosition = lastPosition;
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        }, "WriteAheadLog");
+        writerThread.start();
+    }
+
+    /**
+     * Appends the current value of the device into the log.
+     *
+     * @param device The device of which value has changed.
+     * @return The log position of the change.
+     * @exception java.io.IOException If the log can not be written, or the log is closed.
+     */
+    public long append(Device device) throws IOException {
+        int flags = 0;
+        double decimalValue = 0;
+        if (device.getValueType() == Device.ValueType.BINARY)
+            flags = FLAG_BINARY | (device.getBinaryValue() ? FLAG_BINARY_VALUE : 0);
+        else
+            decimalValue = device.getDecimalValue();
+
+        synchronized (lock) {
+            if (writeError != null)
+                throw writeError;
+            if (closing)
+                throw new IOException("The log is closed.");
+
+            if (pending.remaining() < RECORD_SIZE) {
+                ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+                pending.flip();
+                grown.put(pending);
+                pending = grown;
+            }
+
+            long position = ++lastPosition;
+            int start = pending.position();
+            pending.putLong(position)
+                    .putInt((int)device.getId())
+                    .putInt(flags)
+                    .putDouble(decimalValue);
+            crc.reset();
+            crc.update(pending.array(), start, RECORD_SIZE - 4);
+            pending.putInt((int)crc.getValue());
+            lock.notifyAll();
+
+            if (durability == Durability.SYNC) {
+                while (committedPosition < position && writeError == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for the log.");
+                    }
+                }
+                if (writeError != null)
+                    throw writeError;
+            }
+
+            return position;
+        }
+    }
+
+    /**
+     * Returns the log position of the last appended change.
+     *
+     * @return The log position, or 0 if nothing has been logged.
+     */
+    public long getLastPosition() {
+        synchronized (lock) {
+            return lastPosition;
+        }
+    }
+
+    /**
+     * Applies the logged changes after the specified log position into the devices of the
+     * central unit, in the order they were logged. Must be called before appending, with the
+     * log position of the restored snapshot. Changes of devices not found in the central unit
+     * or of a different value type are skipped.
+     *
+     * @param centralUnit The central unit of which devices are restored.
+     * @param afterPosition The log position of the restored snapshot, 0 if none.
+     * @return The amount of applied changes.
+     * @exception java.io.IOException If a segment can not be read.
+     */
+    public int replay(CentralUnit centralUnit, long afterPosition) throws IOException {
+        int applied = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(256 * RECORD_SIZE);
+
+        for (File file : listSegments()) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                buffer.clear();
+                while (channel.read(buffer) > 0 || buffer.position() > 0) {
+                    buffer.flip();
+                    while (buffer.remaining() >= RECORD_SIZE) {
+                        if (!isValidRecord(buffer, crc))
+                            break;
+                        long position = buffer.getLong();
+                        long id = buffer.getInt() & 0xffffffffL;
+                        int flags = buffer.getInt();
+                        double decimalValue = buffer.getDouble();
+                        buffer.getInt();
+                        if (position > afterPosition && apply(centralUnit, id, flags, decimalValue))
+                            applied++;
+                    }
+                    if (buffer.remaining() >= RECORD_SIZE || (buffer.hasRemaining() && channel.position() == channel.size()))
+                        break; // invalid or torn record, the rest of the segment is ignored
+                    buffer.compact();
+                }
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        synchronized (lock) {
+            // the changes after the snapshot continue from its log position
+            if (lastPosition < afterPosition) {
+                lastPosition = afterPosition;
+                committedPosition = afterPosition;
+            }
+        }
+
+        return applied;
+    }
+
+    /**
+     * Deletes the segments of which all changes are at or before the specified log position,
+     * that is, included in a snapshot. The segment being written is never deleted.
+     *
+     * @param snapshotPosition The log position of the latest snapshot.
+     * @return The amount of deleted segments.
+     */
+    public int compact(long snapshotPosition) {
+        File[] segments = listSegments();
+        int deleted = 0;
+        // a segment ends where the next one starts
+        for (int i = 0; i + 1 < segments.length; i++) {
+            if (firstPosition(segments[i + 1]) - 1 > snapshotPosition)
+                break;
+            if (segments[i].delete())
+                deleted++;
+        }
+
+        return deleted;
+    }
+
+    /**
+     * Writes and forces the remaining changes and stops the writer thread.
+     *
+     * @exception java.io.IOException If the last changes could not be written.
+     */
+    public void close() throws IOException {
+        synchronized (lock) {
+            closing = true;
+            lock.notifyAll();
+        }
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (lock) {
+            if (writeError != null)
+                throw writeError;
+        }
+    }
+
+    /**
+     * The loop of the writer thread. Takes all pending changes as one batch, writes them and
+     * forces them once.
+     */
+    private void writeBatches() {
+        while (true) {
+            long batchLastPosition;
+            synchronized (lock) {
+                while (pending.position() == 0 && !closing) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        closing = true;
+                    }
+                }
+                if (pending.position() == 0)
+                    break;
+
+                ByteBuffer batch = pending;
+                pending = writing;
+                writing = batch;
+                batchLastPosition = lastPosition;
+            }
+
+            try {
+                writing.flip();
+                writeBatch(writing);
+                if (durability != Durability.NONE)
+                    segment.force(false);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    writeError = e;
+                    lock.notifyAll();
+                }
+                break;
+            } finally {
+                writing.clear();
+            }
+
+            synchronized (lock) {
+                committedPosition = batchLastPosition;
+                lock.notifyAll();
+            }
+        }
+
+        try {
+            if (segment != null)
+                segment.close();
+        } catch (IOException e) {
+            synchronized (lock) {
+                if (writeError == null)
+                    writeError = e;
+            }
+        }
+    }
+
+    /**
+     * Writes the records of a batch, starting a new segment when the current one is full.
+     *
+     * @param batch The records to be written.
+     * @exception java.io.IOException If writing fails.
+     */
+    private void writeBatch(ByteBuffer batch) throws IOException {
+        while (batch.hasRemaining()) {
+            if (segment == null || segmentLength >= segmentSize)
+                startSegment(batch.getLong(batch.position()));
+
+            // write the records fitting into the segment
+            long room = segmentSize - segmentLength;
+            int records = (int)Math.max(1, Math.min(batch.remaining() / RECORD_SIZE, (room + RECORD_SIZE - 1) / RECORD_SIZE));
+            int limit = batch.limit();
+            batch.limit(batch.position() + records * RECORD_SIZE);
+            while (batch.hasRemaining())
+                segmentLength += segment.write(batch);
+            batch.limit(limit);
+        }
+    }
+
+    private void startSegment(long firstPosition) throws IOException {
+        if (segment != null) {
+            if (durability != Durability.NONE)
+                segment.force(false);
+            segment.close();
+        }
+
+        File file = new File(directory, String.format("%016x", firstPosition) + SEGMENT_SUFFIX);
+        segment = new RandomAccessFile(file, "rw").getChannel();
+        segment.truncate(0);
+        segmentLength = 0;
+    }
+
+    /**
+     * Finds the last valid change of the last segment and truncates anything after it. The
+     * segment is continued by the next change.
+     *
+     * @param file The last segment.
+     * @exception java.io.IOException If the segment can not be read.
+     */
+    private void openLastSegment(File file) throws IOException {
+        lastPosition = firstPosition(file) - 1;
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+
+        ByteBuffer buffer = ByteBuffer.allocate(256 * RECORD_SIZE);
+        long validLength = 0;
+        boolean valid = true;
+        while (valid && channel.read(buffer) > 0) {
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                if (!isValidRecord(buffer, crc)) {
+                    valid = false;
+                    break;
+                }
+                lastPosition = buffer.getLong(buffer.position());
+                buffer.position(buffer.position() + RECORD_SIZE);
+                validLength += RECORD_SIZE;
+            }
+            buffer.compact();
+        }
+
+        channel.truncate(validLength);
+        channel.position(validLength);
+        segment = channel;
+        segmentLength = validLength;
+    }
+
+    private static boolean isValidRecord(ByteBuffer buffer, CRC32 crc) {
+        int start = buffer.position();
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + start, RECORD_SIZE - 4);
+        return (int)crc.getValue() == buffer.getInt(start + RECORD_SIZE - 4);
+    }
+
+    private static boolean apply(CentralUnit centralUnit, long id, int flags, double decimalValue) {
+        Item item = centralUnit.getItemById(id);
+        if (!(item instanceof Device))
+            return false;
+
+        Device device = (Device)item;
+        boolean binary = (flags & FLAG_BINARY) != 0;
+        if (binary && device.getValueType() == Device.ValueType.BINARY) {
+            device.setBinaryValue((flags & FLAG_BINARY_VALUE) != 0);
+            return true;
+        } else if (!binary && device.getValueType() == Device.ValueType.DECIMAL) {
+            device.setDecimalValue(decimalValue);
+            return true;
+        }
+        return false;
+    }
+
+    private File[] listSegments() {
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segments == null)
+            return new File[0];
+
+        // the fixed width hexadecimal names sort in log order
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static long firstPosition(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+    }
+}
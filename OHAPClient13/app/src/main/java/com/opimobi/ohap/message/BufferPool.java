@@ -0,0 +1,55 @@
+package com.opimobi.ohap.message;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of message buffers shared by all outgoing messages. Only buffers of the initial
+ * message size are pooled; buffers that have been grown are left to the garbage collector.
+ */
+class BufferPool {
+
+    /**
+     * The size of the pooled buffers.
+     */
+    static final int BUFFER_SIZE = 256;
+
+    /**
+     * The maximum amount of buffers kept in the pool.
+     */
+    private static final int MAX_POOLED = 64;
+
+    /**
+     * The free buffers.
+     */
+    private static final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+
+    /**
+     * Takes a buffer from the pool, or allocates a new one if the pool is empty.
+     *
+     * @return a buffer of which length is BUFFER_SIZE
+     */
+    static byte[] acquire() {
+        synchronized (buffers) {
+            byte[] buffer = buffers.poll();
+            if (buffer != null)
+                return buffer;
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers of other sizes and buffers exceeding the pool
+     * capacity are dropped.
+     *
+     * @param buffer the buffer to be returned
+     */
+    static void release(byte[] buffer) {
+        if (buffer.length != BUFFER_SIZE)
+            return;
+
+        synchronized (buffers) {
+            if (buffers.size() < MAX_POOLED)
+                buffers.push(buffer);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
+import java.util.List;
 
 /**
  * Created by hhedberg on 30.3.2015.
@@ -22,17 +23,96 @@ public class IncomingMessage {
     private int position;
 
     /**
-     * Character set used to convert strings.
+     * Character set used to convert strings. Shared by all messages to avoid a charset lookup
+     * per message.
      */
-    private final Charset charset = Charset.forName("UTF-8");
+    private static final Charset charset = Charset.forName("UTF-8");
 
     public void readFrom(InputStream inputStream) throws IOException {
-        buffer = readExactly(inputStream, 2);
-        position = 0;
-        int length = integer16();
+        readFrom(inputStream, null);
+    }
+
+    /**
+     * Reads a message, which is in the compressed framing mode if a compression context is
+     * given.
+     *
+     * @param inputStream the InputStream from which the message is read
+     * @param compression the compression context of the connection, or null if not compressed
+     * @throws java.io.IOException when the actual read throws an exception
+     * @throws java.util.zip.ZipException when a compressed message can not be decompressed
+     */
+    public void readFrom(InputStream inputStream, MessageCompression compression) throws IOException {
+        int length = readByte(inputStream) << 8 | readByte(inputStream);
 
         buffer = readExactly(inputStream, length);
         position = 0;
+
+        if (compression != null)
+            buffer = compression.decompress(buffer);
+    }
+
+    /**
+     * Reads a batch of messages from the given InputStream. The first message is read blocking,
+     * after that every message that is already completely available in the stream is read
+     * without blocking. Pipelined messages are thus decoded with one call. Requires an
+     * InputStream supporting mark and reset, such as a BufferedInputStream, to read more than
+     * one message.
+     *
+     * @param inputStream the InputStream from which the messages are read
+     * @param messages the list into which the read messages are appended
+     * @return the amount of messages read
+     * @throws java.io.IOException when the actual read throws an exception
+     */
+    public static int readBatch(InputStream inputStream, List<IncomingMessage> messages) throws IOException {
+        return readBatch(inputStream, messages, null);
+    }
+
+    /**
+     * Reads a batch of messages, which are in the compressed framing mode if a compression
+     * context is given.
+     *
+     * @see #readBatch(java.io.InputStream, java.util.List)
+     * @param inputStream the InputStream from which the messages are read
+     * @param messages the list into which the read messages are appended
+     * @param compression the compression context of the connection, or null if not compressed
+     * @return the amount of messages read
+     * @throws java.io.IOException when the actual read throws an exception
+     */
+    public static int readBatch(InputStream inputStream, List<IncomingMessage> messages, MessageCompression compression) throws IOException {
+        int count = 0;
+        do {
+            IncomingMessage message = new IncomingMessage();
+            message.readFrom(inputStream, compression);
+            messages.add(message);
+            count++;
+        } while (isMessageAvailable(inputStream));
+
+        return count;
+    }
+
+    /**
+     * Returns the length of the message content, not including the length header.
+     *
+     * @return the amount of bytes in the message
+     */
+    public int length() {
+        return buffer.length;
+    }
+
+    /**
+     * Returns the amount of bytes left to be read in the message.
+     *
+     * @return the amount of unread bytes
+     */
+    public int remaining() {
+        return buffer.length - position;
+    }
+
+    /**
+     * Moves the read position back to the beginning of the message.
+     */
+    public void rewind() {
+        position = 0;
     }
 
     public int integer8() {
@@ -86,6 +166,27 @@ public class IncomingMessage {
         return Double.longBitsToDouble(value);
     }
 
+    /**
+     * Reads a variable length unsigned integer. Each byte carries seven bits of the value, least
+     * significant first, and the high bit tells whether more bytes follow.
+     *
+     * @return the value
+     */
+    public long integerVar() {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 56)
+                throw new IllegalStateException("The variable length integer is too long.");
+            b = integer8();
+            value |= (long)(b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
     public void allBytes(byte[] bytes) {
         if (position + bytes.length > buffer.length)
             throw new ArrayIndexOutOfBoundsException();
@@ -101,12 +202,56 @@ public class IncomingMessage {
         return i == 1;
     }
 
+    /**
+     * Decodes a text straight from the internal buffer without an intermediate byte array.
+     *
+     * @return the decoded text
+     */
     public String text() {
         int length = integer16();
-        byte[] bytes = new byte[length];
-        allBytes(bytes);
+        if (position + length > buffer.length)
+            throw new ArrayIndexOutOfBoundsException();
 
-        return new String(bytes, charset);
+        String value = new String(buffer, position, length, charset);
+        position += length;
+
+        return value;
+    }
+
+    /**
+     * Checks whether a complete message is available in the given InputStream so that it can
+     * be read without blocking. The stream position is not changed.
+     *
+     * @param inputStream the InputStream to be checked
+     * @return whether a complete message is available
+     * @throws java.io.IOException when the actual read throws an exception
+     */
+    private static boolean isMessageAvailable(InputStream inputStream) throws IOException {
+        if (!inputStream.markSupported() || inputStream.available() < 2)
+            return false;
+
+        inputStream.mark(2);
+        int length = inputStream.read() << 8 | inputStream.read();
+        boolean available = inputStream.available() >= length;
+        inputStream.reset();
+
+        return available;
+    }
+
+    /**
+     * Reads a single byte from the given InputStream. Used for the length header so that
+     * it does not need a buffer of its own.
+     *
+     * @param inputStream the InputStream from which the byte is read
+     * @return the byte as an unsigned value
+     * @throws java.io.IOException when the actual read throws an exception
+     */
+    private static int readByte(InputStream inputStream) throws IOException {
+        int value = inputStream.read();
+        if (value == -1)
+            throw new EOFException("End of message input.");
+
+        return value;
     }
 
     /**
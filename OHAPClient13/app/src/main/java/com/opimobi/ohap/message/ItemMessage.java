@@ -0,0 +1,141 @@
+package com.opimobi.ohap.message;
+
+/**
+ * The layout of the item messages, that is the device and container messages. Used both to
+ * encode the item data and to decode a received item message into primitive fields, so that the
+ * field order of the item messages is written out only here.
+ *
+ * The layout of an item message is:
+ *    message-type                  int8
+ *    item-identifier               int32
+ *    value                         decimal64 or binary8 (devices only)
+ *    item-data-parent-identifier   int32
+ *    item-data-name                text
+ *    item-data-description         text
+ *    item-data-internal            binary8
+ *    decimal-min                   decimal64 (decimal devices only)
+ *    decimal-max                   decimal64 (decimal devices only)
+ *    decimal-unit                  text (decimal devices only)
+ *    decimal-abbreviation          text (decimal devices only)
+ *
+ * An instance can be reused for decoding several messages.
+ */
+public class ItemMessage {
+
+    public int messageType;
+    public long identifier;
+    public double decimalValue;
+    public boolean binaryValue;
+    public long parentIdentifier;
+    public String name;
+    public String description;
+    public boolean internal;
+    public double decimalMin;
+    public double decimalMax;
+    public String decimalUnit;
+    public String decimalAbbreviation;
+
+    /**
+     * Decodes an item message of which message type has already been read.
+     *
+     * @param messageType the message type, one of the device types or the container type
+     * @param incomingMessage the message positioned after the message type
+     * @return this item message
+     */
+    public ItemMessage readFrom(int messageType, IncomingMessage incomingMessage) {
+        if (!MessageType.isItem(messageType))
+            throw new IllegalArgumentException("Not an item message type: " + messageType);
+
+        boolean device = messageType != MessageType.CONTAINER;
+        boolean decimal = device && MessageType.isDecimal(messageType);
+
+        this.messageType = messageType;
+        identifier = incomingMessage.integer32();
+        decimalValue = decimal ? incomingMessage.decimal64() : Double.NaN;
+        binaryValue = device && !decimal && incomingMessage.binary8();
+        parentIdentifier = incomingMessage.integer32();
+        name = incomingMessage.text();
+        description = incomingMessage.text();
+        internal = incomingMessage.binary8();
+        if (decimal) {
+            decimalMin = incomingMessage.decimal64();
+            decimalMax = incomingMessage.decimal64();
+            decimalUnit = incomingMessage.text();
+            decimalAbbreviation = incomingMessage.text();
+        } else {
+            decimalMin = Double.NaN;
+            decimalMax = Double.NaN;
+            decimalUnit = null;
+            decimalAbbreviation = null;
+        }
+
+        return this;
+    }
+
+    /**
+     * Encodes the item data common to all item messages, that is the fields following the item
+     * identifier and value.
+     *
+     * @param outgoingMessage the message into which the fields are appended
+     * @param parentIdentifier the identifier of the parent container
+     * @param name the name of the item
+     * @param description the description of the item
+     * @param internal whether the item is internal
+     * @return the given message
+     */
+    public static OutgoingMessage writeItemData(OutgoingMessage outgoingMessage, long parentIdentifier,
+                                                String name, String description, boolean internal) {
+        return outgoingMessage.integer32(parentIdentifier)
+                .text(name)
+                .text(description)
+                .binary8(internal);
+    }
+
+    /**
+     * Encodes the decimal device data following the item data.
+     *
+     * @param outgoingMessage the message into which the fields are appended
+     * @param min the minimum value of the device
+     * @param max the maximum value of the device
+     * @param unit the unit of the device value
+     * @param abbreviation the abbreviation of the unit
+     * @return the given message
+     */
+    public static OutgoingMessage writeDecimalData(OutgoingMessage outgoingMessage, double min, double max,
+                                                   String unit, String abbreviation) {
+        return outgoingMessage.decimal64(min)
+                .decimal64(max)
+                .text(unit)
+                .text(abbreviation);
+    }
+
+    /**
+     * Returns the decoded fields in the format used in logging.
+     *
+     * @return the message type and the fields, one per line
+     */
+    @Override
+    public String toString() {
+        boolean device = messageType != MessageType.CONTAINER;
+        boolean decimal = device && MessageType.isDecimal(messageType);
+
+        String text = MessageType.getName(messageType) + "\n";
+        text += "item-identifier: " + identifier + "\n";
+        if (decimal)
+            text += "decimal-value: " + decimalValue + "\n";
+        else if (device)
+            text += "binary-value: " + binaryValue + "\n";
+        text += "item-data-parent-identifier: " + parentIdentifier + "\n";
+        text += "item-data-name: " + name + "\n";
+        text += "item-data-description: " + description + "\n";
+        text += "item-data-internal: " + internal + "\n";
+        if (decimal) {
+            text += "decimal-min: " + decimalMin + "\n";
+            text += "decimal-max: " + decimalMax + "\n";
+            text += "decimal-unit: " + decimalUnit + "\n";
+            text += "decimal-abbreviation: " + decimalAbbreviation + "\n";
+        }
+
+        return text;
+    }
+}
@@ -0,0 +1,152 @@
+package com.opimobi.ohap.message;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The compression context of a connection using the compressed framing mode. Each message is
+ * compressed as a raw DEFLATE stream, and the most recent message contents in each direction are
+ * used as the preset dictionary of the next message. Texts repeated across messages, such as
+ * units and descriptions, are thus compressed as references into the earlier messages.
+ *
+ * The same context must be used for all messages of a connection in the order they are sent
+ * and received. A context must not be shared between connections.
+ */
+public class MessageCompression {
+
+    /**
+     * The amount of recent message content used as the preset dictionary.
+     */
+    private static final int HISTORY_SIZE = 8192;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+
+    /**
+     * The most recent content of the sent messages.
+     */
+    private final byte[] outgoingHistory = new byte[HISTORY_SIZE];
+    private int outgoingHistoryLength;
+
+    /**
+     * The most recent content of the received messages.
+     */
+    private final byte[] incomingHistory = new byte[HISTORY_SIZE];
+    private int incomingHistoryLength;
+
+    /**
+     * Scratch buffer for compressed and decompressed data. Grown when needed.
+     */
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Whether the native resources have been released.
+     */
+    private boolean ended;
+
+    /**
+     * Compresses the given message content.
+     *
+     * @param bytes the array containing the message content
+     * @param offset the position of the content in the array
+     * @param length the length of the content
+     * @return the compressed content
+     * @throws java.util.zip.ZipException when the context has been ended
+     */
+    public synchronized byte[] compress(byte[] bytes, int offset, int length) throws ZipException {
+        checkNotEnded();
+        deflater.reset();
+        if (outgoingHistoryLength > 0)
+            deflater.setDictionary(outgoingHistory, HISTORY_SIZE - outgoingHistoryLength, outgoingHistoryLength);
+        deflater.setInput(bytes, offset, length);
+        deflater.finish();
+
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == scratch.length)
+                scratch = Arrays.copyOf(scratch, scratch.length * 2);
+            compressedLength += deflater.deflate(scratch, compressedLength, scratch.length - compressedLength);
+        }
+
+        outgoingHistoryLength = appendHistory(outgoingHistory, outgoingHistoryLength, bytes, offset, length);
+
+        return Arrays.copyOf(scratch, compressedLength);
+    }
+
+    /**
+     * Decompresses the given message content.
+     *
+     * @param bytes the compressed content
+     * @return the decompressed message content
+     * @throws java.util.zip.ZipException when the content is not valid compressed data
+     */
+    public synchronized byte[] decompress(byte[] bytes) throws ZipException {
+        checkNotEnded();
+        inflater.reset();
+        if (incomingHistoryLength > 0)
+            inflater.setDictionary(incomingHistory, HISTORY_SIZE - incomingHistoryLength, incomingHistoryLength);
+        inflater.setInput(bytes);
+
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == scratch.length)
+                    scratch = Arrays.copyOf(scratch, scratch.length * 2);
+                int got = inflater.inflate(scratch, length, scratch.length - length);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new ZipException("Truncated compressed message.");
+                length += got;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid compressed message: " + e.getMessage());
+        }
+
+        incomingHistoryLength = appendHistory(incomingHistory, incomingHistoryLength, scratch, 0, length);
+
+        return Arrays.copyOf(scratch, length);
+    }
+
+    /**
+     * Releases the native resources of the context. Must be called when the connection is
+     * closed, the native memory is otherwise held until the context is finalized. Compressing or
+     * decompressing after this throws a ZipException, ending again does nothing.
+     */
+    public synchronized void end() {
+        if (ended)
+            return;
+
+        deflater.end();
+        inflater.end();
+        ended = true;
+    }
+
+    private void checkNotEnded() throws ZipException {
+        if (ended)
+            throw new ZipException("The compression context has been ended.");
+    }
+
+    /**
+     * Appends bytes to the end of a history buffer, dropping the oldest bytes when it is full.
+     *
+     * @param history the history buffer, of which valid bytes are at its end
+     * @param historyLength the amount of valid bytes in the history
+     * @param bytes the array containing the bytes to be appended
+     * @param offset the position of the bytes in the array
+     * @param length the amount of bytes to be appended
+     * @return the new amount of valid bytes in the history
+     */
+    private static int appendHistory(byte[] history, int historyLength, byte[] bytes, int offset, int length) {
+        if (length >= HISTORY_SIZE) {
+            System.arraycopy(bytes, offset + length - HISTORY_SIZE, history, 0, HISTORY_SIZE);
+            return HISTORY_SIZE;
+        }
+
+        System.arraycopy(history, length, history, 0, HISTORY_SIZE - length);
+        System.arraycopy(bytes, offset, history, HISTORY_SIZE - length, length);
+
+        return Math.min(HISTORY_SIZE, historyLength + length);
+    }
+}
@@ -0,0 +1,117 @@
+package com.opimobi.ohap.message;
+
+/**
+ * The message types of the OHAP protocol and the properties derived from them. This is the single
+ * description of the message types shared by the encoders and decoders, so that new message types
+ * are added here instead of as literal values in each sender and receiver.
+ *
+ * The device message types are laid out so that bit 0 tells an actuator from a sensor and bit 1
+ * a binary device from a decimal one. The properties are thus resolved with a range check and a
+ * bit test instead of a switch.
+ */
+public final class MessageType {
+
+    public static final int LOGIN = 0x00;
+    public static final int LOGOUT = 0x01;
+    public static final int PING = 0x02;
+    public static final int PONG = 0x03;
+    public static final int DECIMAL_SENSOR = 0x04;
+    public static final int DECIMAL_ACTUATOR = 0x05;
+    public static final int BINARY_SENSOR = 0x06;
+    public static final int BINARY_ACTUATOR = 0x07;
+    public static final int CONTAINER = 0x08;
+    public static final int DECIMAL_CHANGED = 0x09;
+    public static final int BINARY_CHANGED = 0x0a;
+    public static final int ITEM_REMOVED = 0x0b;
+    public static final int LISTENING_START = 0x0c;
+    public static final int LISTENING_STOP = 0x0d;
+    public static final int VALUES_CHANGED = 0x0e;
+
+    /**
+     * The protocol names of the message types, indexed by the message type.
+     */
+    private static final String[] names = {
+            "message-type-login",
+            "message-type-logout",
+            "message-type-ping",
+            "message-type-pong",
+            "message-type-decimal-sensor",
+            "message-type-decimal-actuator",
+            "message-type-binary-sensor",
+            "message-type-binary-actuator",
+            "message-type-container",
+            "message-type-decimal-changed",
+            "message-type-binary-changed",
+            "message-type-item-removed",
+            "message-type-listening-start",
+            "message-type-listening-stop",
+            "message-type-values-changed"
+    };
+
+    private MessageType() {
+    }
+
+    /**
+     * Returns whether the message type describes a device.
+     *
+     * @param messageType the message type
+     * @return whether the message is a sensor or actuator message
+     */
+    public static boolean isDevice(int messageType) {
+        return messageType >= DECIMAL_SENSOR && messageType <= BINARY_ACTUATOR;
+    }
+
+    /**
+     * Returns whether the message type describes an item, that is a device or a container.
+     *
+     * @param messageType the message type
+     * @return whether the message carries item data
+     */
+    public static boolean isItem(int messageType) {
+        return messageType >= DECIMAL_SENSOR && messageType <= CONTAINER;
+    }
+
+    /**
+     * Returns whether the device message type describes a decimal device.
+     *
+     * @param messageType the device message type
+     * @return whether the device has a decimal value
+     */
+    public static boolean isDecimal(int messageType) {
+        return (messageType & 0x02) == 0;
+    }
+
+    /**
+     * Returns whether the device message type describes an actuator.
+     *
+     * @param messageType the device message type
+     * @return whether the device is an actuator
+     */
+    public static boolean isActuator(int messageType) {
+        return (messageType & 0x01) != 0;
+    }
+
+    /**
+     * Returns the device message type for the given device properties.
+     *
+     * @param actuator whether the device is an actuator
+     * @param decimal whether the device has a decimal value
+     * @return the device message type
+     */
+    public static int deviceType(boolean actuator, boolean decimal) {
+        return DECIMAL_SENSOR | (decimal ? 0 : 0x02) | (actuator ? 0x01 : 0);
+    }
+
+    /**
+     * Returns the protocol name of the message type, used in logging.
+     *
+     * @param messageType the message type
+     * @return the name of the message type
+     */
+    public static String getName(int messageType) {
+        if (messageType < 0 || messageType >= names.length)
+            return "unsupported-message-type";
+
+        return names[messageType];
+    }
+}
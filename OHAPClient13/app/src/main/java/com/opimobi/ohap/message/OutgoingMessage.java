@@ -11,9 +11,10 @@ import java.util.Arrays;
 public class OutgoingMessage {
 
     /**
-     * The internal buffer. It will be grown if the message do not fit to it.
+     * The internal buffer. It is taken from the BufferPool and will be grown if the message
+     * do not fit to it.
      */
-    private byte[] buffer = new byte[256];
+    private byte[] buffer = BufferPool.acquire();
 
     /**
      * The position where the next byte should be appended. The initial position
@@ -22,9 +23,10 @@ public class OutgoingMessage {
     private int position = 2;
 
     /**
-     * Character set used to convert strings.
+     * Character set used to convert strings. Shared by all messages to avoid a charset lookup
+     * per message.
      */
-    private final Charset charset = Charset.forName("UTF-8");
+    private static final Charset charset = Charset.forName("UTF-8");
 
 
     public OutgoingMessage integer8(int value) {
@@ -71,6 +73,22 @@ public class OutgoingMessage {
         return this;
     }
 
+    /**
+     * Appends a variable length unsigned integer. Each byte carries seven bits of the value,
+     * least significant first, and the high bit tells whether more bytes follow.
+     *
+     * @param value the non-negative value
+     * @return this message
+     */
+    public OutgoingMessage integerVar(long value) {
+        while ((value & ~0x7fL) != 0) {
+            integer8((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+
+        return integer8((int)value);
+    }
+
     public OutgoingMessage allBytes(byte[] bytes) {
         ensureCapacity(bytes.length);
         System.arraycopy(bytes, 0, buffer, position, bytes.length);
@@ -91,12 +109,62 @@ public class OutgoingMessage {
         return integer8(value ? 1 : 0);
     }
 
+    /**
+     * Returns the length of the message in bytes including the length header.
+     *
+     * @return the amount of bytes the message takes in the stream
+     */
+    public int length() {
+        return position;
+    }
+
+    /**
+     * Returns a copy of the message content without the length header. Used to cache encoded
+     * fields that are later appended into other messages with allBytes().
+     *
+     * @return the encoded content of the message
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(buffer, 2, position);
+    }
+
     public void writeTo(OutputStream outputStream) throws IOException {
-        int length = position;
-        position = 0;
-        integer16(length - 2);
+        int length = position - 2;
+        buffer[0] = (byte)(length >> 8);
+        buffer[1] = (byte)length;
+
+        outputStream.write(buffer, 0, position);
+    }
+
+    /**
+     * Writes the message in the compressed framing mode. The length header is followed by the
+     * compressed content of the message.
+     *
+     * @param outputStream the OutputStream into which the message is written
+     * @param compression the compression context of the connection, or null if not compressed
+     * @throws java.io.IOException when the actual write throws an exception
+     */
+    public void writeTo(OutputStream outputStream, MessageCompression compression) throws IOException {
+        if (compression == null) {
+            writeTo(outputStream);
+            return;
+        }
 
-        outputStream.write(buffer, 0, length);
+        byte[] compressed = compression.compress(buffer, 2, position - 2);
+        if (compressed.length > 0xffff)
+            throw new IOException("Compressed message is too long.");
+
+        outputStream.write(compressed.length >> 8);
+        outputStream.write(compressed.length);
+        outputStream.write(compressed);
+    }
+
+    /**
+     * Returns the internal buffer to the pool. The message must not be used after this.
+     */
+    public void release() {
+        BufferPool.release(buffer);
+        buffer = null;
     }
 
     /**
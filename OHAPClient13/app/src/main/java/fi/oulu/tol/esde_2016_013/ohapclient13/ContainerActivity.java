@@ -12,8 +12,12 @@ package fi.oulu.tol.esde_2016_013.ohapclient13;
  * v1.3     Aapo Keskimolo      Fixed inconsistent container listener list
  * v2.0     Aapo Keskimolo      Ready for final review
  * v2.1     Aapo Keskimolo      Added offline simulation mode
+ * v2.2     Aapo Keskimolo      Item messages decoded with the shared message schema
+ * v2.3     Aapo Keskimolo      Simulation mode items loaded from a topology asset
+ * v2.4     Aapo Keskimolo      Simulation mode device values saved in a snapshot
+ * v2.5     Aapo Keskimolo      Simulation mode device value changes logged between snapshots
  * @author Aapo Keskimolo &lt;aapokesk@gmail.com>
- * @version 2.1
+ * @version 2.5
  */
 
 import android.app.AlertDialog;
@@ -45,9 +49,16 @@ import com.opimobi.ohap.CentralUnitConnection;
 import com.opimobi.ohap.ConnectionObserver;
 import com.opimobi.ohap.Container;
 import com.opimobi.ohap.Device;
+import com.opimobi.ohap.DeviceSnapshot;
 import com.opimobi.ohap.Item;
+import com.opimobi.ohap.WriteAheadLog;
 import com.opimobi.ohap.message.IncomingMessage;
+import com.opimobi.ohap.message.ItemMessage;
+import com.opimobi.ohap.message.MessageType;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -67,6 +78,15 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
     private final static String DEVICE_ID = "fi.oulu.tol.esde_2016_013.ohapclient13.DEVICE_ID";
     private final static String CONTAINER_ID = "fi.oulu.tol.esde_2016_013.ohapclient13.CONTAINER_ID";
 
+    // topology asset loaded in simulation mode
+    private final static String SIMULATION_TOPOLOGY = "simulation_topology.txt";
+
+    // device value snapshot of simulation mode and its checkpoint interval in milliseconds
+    private final static String SIMULATION_SNAPSHOT = "simulation_snapshot";
+    private final static int SNAPSHOT_INTERVAL = 10000;
+    private final static String SIMULATION_LOG = "simulation_log";
+    private final static int LOG_SEGMENT_SIZE = 1024 * 1024;
+
     // central unit container
     private static CentralUnitConnection centralUnit = null;
 
@@ -91,6 +111,9 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
     ArrayList<Container> listeningContainers = new ArrayList<>();
     ArrayList<Item> listItems = new ArrayList<>();
 
+    // decoded item message, reused for every received item message
+    private final ItemMessage itemMessage = new ItemMessage();
+
     // log utilities place holder
     LogContainer logContainer = null;
 
@@ -235,6 +258,10 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
 
         activityActive = false;
         stop();
+
+        // the process may be killed after pause, save the simulated device values
+        if (centralUnit != null)
+            centralUnit.checkpointSnapshot();
     }
 
 
@@ -367,13 +394,19 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
         String url_value;
         String autoconnect_key;
         String shake_key;
+        String compression_key;
+        String batched_changes_key;
         boolean autoConnect;
+        boolean compression;
+        boolean batchedChanges;
 
         // preference keys
         autoconnect_key = getString(R.string.pref_autoconnect_key);
         port_key = getString(R.string.pref_port_key);
         url_key = getString(R.string.pref_url_key);
         shake_key = getString(R.string.pref_reconnect_on_shake_key);
+        compression_key = getString(R.string.pref_compression_key);
+        batched_changes_key = getString(R.string.pref_batched_changes_key);
 
 
         // load auto-connect setting
@@ -398,6 +431,26 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
         }
         Log.i(TAG, "loadPreferences() Preference loaded, key = " + shake_key + ", value = " + shakeReconnectEnabled);
 
+        // load compression setting
+        try {
+            compression = shared.getBoolean(compression_key,
+                    Boolean.parseBoolean(getString(R.string.pref_compression_default)));
+        } catch (Exception e) {
+            Log.e(TAG, "loadPreferences() Unable to parse resource default value: " + getString(R.string.pref_compression_default) + " to boolean. Forcing default value = false.");
+            compression = false;
+        }
+        Log.i(TAG, "loadPreferences() Preference loaded, key = " + compression_key + ", value = " + compression);
+
+        // load batched value changes setting
+        try {
+            batchedChanges = shared.getBoolean(batched_changes_key,
+                    Boolean.parseBoolean(getString(R.string.pref_batched_changes_default)));
+        } catch (Exception e) {
+            Log.e(TAG, "loadPreferences() Unable to parse resource default value: " + getString(R.string.pref_batched_changes_default) + " to boolean. Forcing default value = false.");
+            batchedChanges = false;
+        }
+        Log.i(TAG, "loadPreferences() Preference loaded, key = " + batched_changes_key + ", value = " + batchedChanges);
+
         // load port settings
         port_value = shared.getString(port_key, getString(R.string.pref_port_default));
 
@@ -433,6 +486,8 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
         try {
             // set central unit with the url obtained from preferences
             centralUnit.setAutoConnect(autoConnect);
+            centralUnit.setCompressionEnabled(compression);
+            centralUnit.setBatchedChangesEnabled(batchedChanges);
             centralUnit.initialize(new URL(address), this);
 
             Log.i(TAG, "loadPreferences() CentralUnit initialized with URL: " + centralUnit.getURL());
@@ -632,8 +687,31 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
                         case DialogInterface.BUTTON_NEGATIVE:
                             if (centralUnit != null) {
                                 if (centralUnit.getConnectionStatus() != CentralUnitConnection.Status.ONLINE) {
-                                    Log.i(TAG, "Initializing central unit with dummy devices for simulation mode:");
-                                    centralUnit.initializeWithDummies(new URL(urlStr), context, container, 10);
+                                    Log.i(TAG, "Initializing central unit with the simulation topology:");
+                                    try {
+                                        centralUnit.initializeWithTopology(new URL(urlStr), context,
+                                                new InputStreamReader(getAssets().open(SIMULATION_TOPOLOGY), "UTF-8"));
+                                    } catch (IOException e) {
+                                        // fall back to random dummy devices, the items loaded before the
+                                        // failure are removed first so that their ids can not conflict
+                                        Log.e(TAG, "alertDialogQuestionOnlineOrSimulation() Unable to load simulation topology: " + e.getMessage());
+                                        centralUnit.clearItems();
+                                        if (container.getCentralUnit() == null)
+                                            container = centralUnit;
+                                        centralUnit.initializeWithDummies(new URL(urlStr), context, container, 10);
+                                    }
+                                    DeviceSnapshot snapshot = null;
+                                    try {
+                                        // restore the simulated device values of the previous run
+                                        snapshot = new DeviceSnapshot(new File(getFilesDir(), SIMULATION_SNAPSHOT));
+                                        WriteAheadLog valueLog = new WriteAheadLog(new File(getFilesDir(), SIMULATION_LOG),
+                                                WriteAheadLog.Durability.BATCH, LOG_SEGMENT_SIZE);
+                                        centralUnit.setSnapshot(snapshot, valueLog, SNAPSHOT_INTERVAL);
+                                    } catch (IOException e) {
+                                        Log.e(TAG, "alertDialogQuestionOnlineOrSimulation() Unable to open simulation snapshot or log: " + e.getMessage());
+                                        if (snapshot != null)
+                                            snapshot.close();
+                                    }
                                     centralUnit.setConnectionStatus(CentralUnitConnection.Status.SIMULATION);
                                     simulationMode = true;
                                     Log.i(TAG, "Initialisation of simulation mode is finished.");
@@ -701,15 +779,10 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
             long itemDataParentIdentifier;
             String itemDataName;
             String itemDataDescription;
-            boolean itemDataInternal;
             boolean itemBinaryValue;
             long pingIdentifier;
             String logoutErrorMsg;
             double itemDecimalValue;
-            double decimalMin;
-            double decimalMax;
-            String decimalUnit;
-            String decimalAbbreviation;
 
             Device newDevice = null;
             Container newContainer = null;
@@ -720,7 +793,7 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
             msgType = incomingMessage.integer8(); // get message type
             switch (msgType) {
 
-                case 0x01:
+                case MessageType.LOGOUT:
                     // handle error message (=server logout identifier)
                     msgTypeText = "message-type-logout";
 
@@ -737,7 +810,7 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
 
                     break;
 
-                case 0x02:
+                case MessageType.PING:
                     // handle message type ping
                     msgTypeText = "message-type-ping";
 
@@ -756,7 +829,7 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
 
                     break;
 
-                case 0x03:
+                case MessageType.PONG:
                     // handle message type pong
                     msgTypeText = "message-type-pong";
 
@@ -775,185 +848,40 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
 
                     break;
 
-                case 0x04:
-                    // handle message type decimal sensor
-                    msgTypeText = "message-type-decimal-sensor";
-
-                    itemIdentifier = incomingMessage.integer32();
-                    itemDecimalValue = incomingMessage.decimal64();
-                    itemDataParentIdentifier = incomingMessage.integer32();
-                    itemDataName = incomingMessage.text();
-                    itemDataDescription = incomingMessage.text();
-                    itemDataInternal = incomingMessage.binary8();
-                    decimalMin = incomingMessage.decimal64();
-                    decimalMax = incomingMessage.decimal64();
-                    decimalUnit= incomingMessage.text();
-                    decimalAbbreviation= incomingMessage.text();
-
-                    msg = msgTypeText + "\n";
-                    msg += "item-identifier: " + itemIdentifier + "\n";
-                    msg += "decimal-value: " + itemDecimalValue + "\n";
-                    msg += "item-data-parent-identifier: " + itemDataParentIdentifier + "\n";
-                    msg += "item-data-name: " + itemDataName + "\n";
-                    msg += "item-data-description: " + itemDataDescription + "\n";
-                    msg += "item-data-internal: " + itemDataInternal + "\n";
-                    msg += "decimal-min: " + decimalMin + "\n";
-                    msg += "decimal-max: " + decimalMax + "\n";
-                    msg += "decimal-unit: " + decimalUnit + "\n";
-                    msg += "decimal-abbreviation: " + decimalAbbreviation + "\n";
-
-                    Log.i(TAG, "handleMessageResponse() \n" + msg);
-
-                    try {
-                        // get parent container
-                        newContainer = (Container)centralUnit.getItemById(itemDataParentIdentifier);
-
-                        // create new decimal sensor device
-                        newDevice = new Device(newContainer, itemIdentifier, Device.Type.SENSOR, Device.ValueType.DECIMAL);
-                        newDevice.setDecimalValue(itemDecimalValue);
-                        newDevice.setMinMaxValues(decimalMin, decimalMax);
-                        newDevice.setUnit(decimalUnit, decimalAbbreviation);
-                        newDevice.setName(itemDataName);
-                        newDevice.setDescription(itemDataDescription);
-
-                        // add item to placeholder
-                        listItems.add(newDevice);
-
-                        Log.i(TAG, "handleMessageResponse() New device " + itemIdentifier + " added to container " + itemDataParentIdentifier);
-
-                    } catch (Exception e) {
-                        Log.e(TAG, "handleMessageResponse() Unable to create device: " + e.getMessage());
-                    }
-
-                    break;
-
-                case 0x05:
-                    msgTypeText = "message-type-decimal-actuator";
-
-                    itemIdentifier = incomingMessage.integer32();
-                    itemDecimalValue = incomingMessage.decimal64();
-                    itemDataParentIdentifier = incomingMessage.integer32();
-                    itemDataName = incomingMessage.text();
-                    itemDataDescription = incomingMessage.text();
-                    itemDataInternal = incomingMessage.binary8();
-                    decimalMin = incomingMessage.decimal64();
-                    decimalMax = incomingMessage.decimal64();
-                    decimalUnit= incomingMessage.text();
-                    decimalAbbreviation= incomingMessage.text();
-
-                    msg = msgTypeText + "\n";
-                    msg += "item-identifier: " + itemIdentifier + "\n";
-                    msg += "decimal-value: " + itemDecimalValue + "\n";
-                    msg += "item-data-parent-identifier: " + itemDataParentIdentifier + "\n";
-                    msg += "item-data-name: " + itemDataName + "\n";
-                    msg += "item-data-description: " + itemDataDescription + "\n";
-                    msg += "item-data-internal: " + itemDataInternal + "\n";
-                    msg += "decimal-min: " + decimalMin + "\n";
-                    msg += "decimal-max: " + decimalMax + "\n";
-                    msg += "decimal-unit: " + decimalUnit + "\n";
-                    msg += "decimal-abbreviation: " + decimalAbbreviation + "\n";
-
-                    Log.i(TAG, "handleMessageResponse() \n" + msg);
-
-                    try {
-                        // get parent container
-                        newContainer = (Container)centralUnit.getItemById(itemDataParentIdentifier);
-
-                        // create new decimal sensor device
-                        newDevice = new Device(newContainer, itemIdentifier, Device.Type.ACTUATOR, Device.ValueType.DECIMAL);
-                        newDevice.setDecimalValue(itemDecimalValue);
-                        newDevice.setMinMaxValues(decimalMin, decimalMax);
-                        newDevice.setUnit(decimalUnit, decimalAbbreviation);
-                        newDevice.setName(itemDataName);
-                        newDevice.setDescription(itemDataDescription);
-
-                        // add item to placeholder
-                        listItems.add(newDevice);
-
-                        Log.i(TAG, "handleMessageResponse() New device " + itemIdentifier + " added to container " + itemDataParentIdentifier);
-
-                    } catch (Exception e) {
-                        Log.e(TAG, "handleMessageResponse() Unable to create device: " + e.getMessage());
-                    }
-
-                    break;
-
-                case 0x06:
-                    msgTypeText = "message-type-binary-sensor";
-
-                    itemIdentifier = incomingMessage.integer32();
-                    itemBinaryValue = incomingMessage.binary8();
-                    itemDataParentIdentifier = incomingMessage.integer32();
-                    itemDataName = incomingMessage.text();
-                    itemDataDescription = incomingMessage.text();
-                    itemDataInternal = incomingMessage.binary8();
-
-                    msg = msgTypeText + "\n";
-                    msg += "item-identifier: " + itemIdentifier + "\n";
-                    msg += "binary-value: " + itemBinaryValue + "\n";
-                    msg += "item-data-parent-identifier: " + itemDataParentIdentifier + "\n";
-                    msg += "item-data-name: " + itemDataName + "\n";
-                    msg += "item-data-description: " + itemDataDescription + "\n";
-                    msg += "item-data-internal: " + itemDataInternal + "\n";
-
-                    Log.i(TAG, "handleMessageResponse() \n" + msg);
-
-                    try {
-                        // get parent container
-                        newContainer = (Container)centralUnit.getItemById(itemDataParentIdentifier);
-
-                        // create new binary actuator
-                        newDevice = new Device(newContainer, itemIdentifier, Device.Type.SENSOR, Device.ValueType.BINARY);
-                        newDevice.setBinaryValue(itemBinaryValue);
-                        newDevice.setName(itemDataName);
-                        newDevice.setDescription(itemDataDescription);
-
-                        // add item to placeholder
-                        listItems.add(newDevice);
-
-                        Log.i(TAG, "handleMessageResponse() New device " + itemIdentifier + " added to container " + itemDataParentIdentifier);
-
-                    } catch (Exception e) {
-                        Log.e(TAG, "handleMessageResponse() Unable to create device: " + e.getMessage());
-                    }
-
-                    break;
-
-                case 0x07:
-                    // handle message type binary actuator
-                    msgTypeText = "message-type-binary-actuator";
+                case MessageType.DECIMAL_SENSOR:
+                case MessageType.DECIMAL_ACTUATOR:
+                case MessageType.BINARY_SENSOR:
+                case MessageType.BINARY_ACTUATOR:
+                    // handle device messages, decoded with the shared item message layout
+                    msgTypeText = MessageType.getName(msgType);
 
-                    itemIdentifier = incomingMessage.integer32();
-                    itemBinaryValue = incomingMessage.binary8();
-                    itemDataParentIdentifier = incomingMessage.integer32();
-                    itemDataName = incomingMessage.text();
-                    itemDataDescription = incomingMessage.text();
-                    itemDataInternal = incomingMessage.binary8();
+                    itemMessage.readFrom(msgType, incomingMessage);
 
-                    msg = msgTypeText + "\n";
-                    msg += "item-identifier: " + itemIdentifier + "\n";
-                    msg += "binary-value: " + itemBinaryValue + "\n";
-                    msg += "item-data-parent-identifier: " + itemDataParentIdentifier + "\n";
-                    msg += "item-data-name: " + itemDataName + "\n";
-                    msg += "item-data-description: " + itemDataDescription + "\n";
-                    msg += "item-data-internal: " + itemDataInternal + "\n";
+                    msg = itemMessage.toString();
 
                     Log.i(TAG, "handleMessageResponse() \n" + msg);
 
                     try {
                         // get parent container
-                        newContainer = (Container)centralUnit.getItemById(itemDataParentIdentifier);
-
-                        // create new binary actuator
-                        newDevice = new Device(newContainer, itemIdentifier, Device.Type.ACTUATOR, Device.ValueType.BINARY);
-                        newDevice.setBinaryValue(itemBinaryValue);
-                        newDevice.setName(itemDataName);
-                        newDevice.setDescription(itemDataDescription);
+                        newContainer = (Container)centralUnit.getItemById(itemMessage.parentIdentifier);
+
+                        // create new device of the given type
+                        newDevice = new Device(newContainer, itemMessage.identifier,
+                                MessageType.isActuator(msgType) ? Device.Type.ACTUATOR : Device.Type.SENSOR,
+                                MessageType.isDecimal(msgType) ? Device.ValueType.DECIMAL : Device.ValueType.BINARY);
+                        if (MessageType.isDecimal(msgType)) {
+                            newDevice.setDecimalValue(itemMessage.decimalValue);
+                            newDevice.setMinMaxValues(itemMessage.decimalMin, itemMessage.decimalMax);
+                            newDevice.setUnit(itemMessage.decimalUnit, itemMessage.decimalAbbreviation);
+                        } else
+                            newDevice.setBinaryValue(itemMessage.binaryValue);
+                        newDevice.setName(itemMessage.name);
+                        newDevice.setDescription(itemMessage.description);
 
                         // add item to placeholder
                         listItems.add(newDevice);
 
-                        Log.i(TAG, "handleMessageResponse() New device " + itemIdentifier + " added to container " + itemDataParentIdentifier);
+                        Log.i(TAG, "handleMessageResponse() New device " + itemMessage.identifier + " added to container " + itemMessage.parentIdentifier);
 
                     } catch (Exception e) {
                         Log.e(TAG, "handleMessageResponse() Unable to create device: " + e.getMessage());
@@ -961,22 +889,17 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
 
                     break;
 
-                case 0x08:
+                case MessageType.CONTAINER:
                     // handle message type container
-                    msgTypeText = "message-type-container";
+                    msgTypeText = MessageType.getName(msgType);
 
-                    itemIdentifier = incomingMessage.integer32();
-                    itemDataParentIdentifier = incomingMessage.integer32();
-                    itemDataName = incomingMessage.text();
-                    itemDataDescription = incomingMessage.text();
-                    itemDataInternal = incomingMessage.binary8();
+                    itemMessage.readFrom(msgType, incomingMessage);
+                    itemIdentifier = itemMessage.identifier;
+                    itemDataParentIdentifier = itemMessage.parentIdentifier;
+                    itemDataName = itemMessage.name;
+                    itemDataDescription = itemMessage.description;
 
-                    msg = msgTypeText + "\n";
-                    msg += "item-identifier: " + itemIdentifier + "\n";
-                    msg += "item-data-parent-identifier: " + itemDataParentIdentifier + "\n";
-                    msg += "item-data-name: " + itemDataName + "\n";
-                    msg += "item-data-description: " + itemDataDescription + "\n";
-                    msg += "item-data-internal: " + itemDataInternal+ "\n";
+                    msg = itemMessage.toString();
 
                     Log.i(TAG, "handleMessageResponse() \n" + msg);
 
@@ -1048,7 +971,7 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
 
                     break;
 
-                case 0x09:
+                case MessageType.DECIMAL_CHANGED:
                     // handle decimal value changed
 
                     msgTypeText = "message-type-decimal-changed";
@@ -1072,7 +995,7 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
                     }
                     break;
 
-                case 0x0a:
+                case MessageType.BINARY_CHANGED:
                     // handle binary value changed
                     msgTypeText = "message-type-binary-changed";
 
@@ -1096,7 +1019,7 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
 
                     break;
 
-                case 0x0b:
+                case MessageType.ITEM_REMOVED:
                     // item removed message
                     msgTypeText = "message-type-item-removed";
 
@@ -1118,7 +1041,7 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
 
                     break;
 
-                case 0x0c:
+                case MessageType.LISTENING_START:
                     // container start listening
                     msgTypeText = "message-type-listening-start";
 
@@ -1142,7 +1065,7 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
 
                     break;
 
-                case 0x0d:
+                case MessageType.LISTENING_STOP:
                     msgTypeText = "message-type-listening-stop";
 
                     itemIdentifier = incomingMessage.integer32();
@@ -1165,6 +1088,65 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
 
                     break;
 
+                case MessageType.VALUES_CHANGED:
+                    // handle batched value changes of a container
+                    //    message-type-values-changed       int8
+                    //    container-identifier              int32
+                    //    change-count                      int16
+                    //    for each change:
+                    //        identifier-delta-and-type     varint ((id - previous id) << 1 | binary)
+                    //        value                         decimal64 or binary8
+                    msgTypeText = "message-type-values-changed";
+
+                    // a truncated message is logged and ignored, each change takes at least two bytes
+                    if (incomingMessage.remaining() < 6) {
+                        msg = msgTypeText + "\ntruncated header\n";
+                        Log.e(TAG, "handleMessageResponse() \n" + msg);
+                        break;
+                    }
+                    itemDataParentIdentifier = incomingMessage.integer32();
+                    int changeCount = incomingMessage.integer16();
+                    if (incomingMessage.remaining() < changeCount * 2) {
+                        msg = msgTypeText + "\ntruncated: " + changeCount + " changes in " + incomingMessage.remaining() + " bytes\n";
+                        Log.e(TAG, "handleMessageResponse() \n" + msg);
+                        break;
+                    }
+
+                    msg = msgTypeText + "\n";
+                    msg += "container-identifier: " + itemDataParentIdentifier + "\n";
+                    msg += "change-count: " + changeCount + "\n";
+
+                    Log.i(TAG, "handleMessageResponse() \n" + msg);
+
+                    itemIdentifier = 0;
+                    for (int i = 0; i < changeCount; i++) {
+                        boolean binary;
+                        try {
+                            long deltaAndType = incomingMessage.integerVar();
+                            binary = (deltaAndType & 1) != 0;
+                            itemIdentifier += deltaAndType >>> 1;
+
+                            // the value is read before the lookup to keep the message in sync
+                            itemBinaryValue = binary && incomingMessage.binary8();
+                            itemDecimalValue = binary ? Double.NaN : incomingMessage.decimal64();
+                        } catch (ArrayIndexOutOfBoundsException | IllegalStateException e) {
+                            // the rest of a truncated or malformed message is ignored
+                            Log.e(TAG, "handleMessageResponse() Invalid " + msgTypeText + " at change " + i);
+                            break;
+                        }
+
+                        try {
+                            newDevice = (Device) centralUnit.getItemById(itemIdentifier);
+                            if (binary)
+                                newDevice.setBinaryValue(itemBinaryValue);
+                            else
+                                newDevice.setDecimalValue(itemDecimalValue);
+                        } catch (Exception e) {
+                            Log.e(TAG, "handleMessageResponse() Unable to set device " + itemIdentifier + " value, reason: " + e.getMessage());
+                        }
+                    }
+                    break;
+
                 default:
                     msgTypeText = "unsupported-message-type";
 
@@ -1201,6 +1183,14 @@ public class ContainerActivity extends ActionBarActivity implements ConnectionOb
             stop();
             connect();
 
+        } else if (messageAction.equals("Compression disabled")) {
+            // the server did not accept compressed framing, keep it off for the next sessions too
+            SharedPreferences.Editor editor = PreferenceManager.getDefaultSharedPreferences(this).edit();
+            editor.putBoolean(getString(R.string.pref_compression_key), false);
+            editor.commit();
+            msg = "Server does not support compression, compression disabled";
+            Toast.makeText(this, msg, Toast.LENGTH_LONG).show();
+
         } else if (messageAction.equals("Connected")){
             msg = "Connected to server: " + centralUnit.getURL().getHost() + ":" + centralUnit.getURL().getPort();
             Toast.makeText(this, msg, Toast.LENGTH_LONG).show();
@@ -55,6 +55,8 @@ public class PreferencesFragment extends PreferenceFragment {
         Preference urlPref = findPreference(getString(R.string.pref_url_key));
         Preference portPref = findPreference(getString(R.string.pref_port_key));
         Preference autoConnectPref = findPreference(getString(R.string.pref_autoconnect_key));
+        Preference compressionPref = findPreference(getString(R.string.pref_compression_key));
+        Preference batchedChangesPref = findPreference(getString(R.string.pref_batched_changes_key));
         Preference logPref = findPreference(getString(R.string.pref_log_key));
 //        Preference shakePref = findPreference(getString(R.string.pref_reconnect_on_shake_key));
 
@@ -168,6 +170,42 @@ public class PreferencesFragment extends PreferenceFragment {
             }
         });
 
+        compressionPref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            // Compression preference change listener
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                String key = preference.getKey();
+                boolean value = (boolean)newValue;
+
+                if ( key.equals(getString(R.string.pref_compression_key)) ) {
+                    // compression key value, takes effect after reconnect
+                    Log.d(TAG, "onSharedPreferencesChanged(): key = " + key + ", value = " + value);
+                    centralUnit.setCompressionEnabled( value );
+                    connectionPreferenceChanged = true;
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        batchedChangesPref.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            // Batched value changes preference change listener
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                String key = preference.getKey();
+                boolean value = (boolean)newValue;
+
+                if ( key.equals(getString(R.string.pref_batched_changes_key)) ) {
+                    // batched changes key value, takes effect after reconnect
+                    Log.d(TAG, "onSharedPreferencesChanged(): key = " + key + ", value = " + value);
+                    centralUnit.setBatchedChangesEnabled( value );
+                    connectionPreferenceChanged = true;
+                    return true;
+                }
+                return false;
+            }
+        });
+
         logPref.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
             // Message log preference on click listener
             public boolean onPreferenceClick(Preference preference) {
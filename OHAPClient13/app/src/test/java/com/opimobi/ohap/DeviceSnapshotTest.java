@@ -0,0 +1,184 @@
+package com.opimobi.ohap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests recovering device values from a snapshot and the changes logged after it.
+ */
+public class DeviceSnapshotTest {
+
+    private static final int SEGMENT_SIZE = 4 * 28;
+    private static final double DELTA = 0;
+
+    private File directory;
+    private File snapshotFile;
+    private File logDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TestCentralUnit.createTempDirectory();
+        snapshotFile = new File(directory, "snapshot");
+        logDirectory = new File(directory, "log");
+    }
+
+    @After
+    public void tearDown() {
+        TestCentralUnit.delete(directory);
+    }
+
+    @Test
+    public void checkpointIsRestored() throws IOException {
+        TestCentralUnit centralUnit = new TestCentralUnit().withDevices(3);
+        centralUnit.getDevice(1).setDecimalValue(1.5);
+        centralUnit.getDevice(2).setBinaryValue(true);
+        centralUnit.getDevice(3).setDecimalValue(3.5);
+        DeviceSnapshot snapshot = new DeviceSnapshot(snapshotFile);
+        assertEquals(3, snapshot.checkpoint(centralUnit, 7));
+        centralUnit.getDevice(1).setDecimalValue(2.5);
+        assertEquals(3, snapshot.checkpoint(centralUnit, 8));
+        snapshot.close();
+
+        TestCentralUnit restored = new TestCentralUnit().withDevices(3);
+        snapshot = new DeviceSnapshot(snapshotFile);
+        assertEquals(8, snapshot.getLogPosition());
+        assertEquals(3, snapshot.restore(restored));
+        snapshot.close();
+
+        assertEquals(2.5, restored.getDevice(1).getDecimalValue(), DELTA);
+        assertTrue(restored.getDevice(2).getBinaryValue());
+        assertEquals(3.5, restored.getDevice(3).getDecimalValue(), DELTA);
+    }
+
+    @Test
+    public void changesAfterCheckpointAreReplayedOverIt() throws IOException {
+        TestCentralUnit centralUnit = new TestCentralUnit().withDevices(3);
+        WriteAheadLog log = new WriteAheadLog(logDirectory, WriteAheadLog.Durability.SYNC, SEGMENT_SIZE);
+        centralUnit.valueLog = log;
+        DeviceSnapshot snapshot = new DeviceSnapshot(snapshotFile);
+        for (int i = 1; i <= 6; i++)
+            centralUnit.getDevice(1).setDecimalValue(i);
+        centralUnit.getDevice(3).setDecimalValue(30);
+        snapshot.checkpoint(centralUnit, log.getLastPosition());
+        log.compact(snapshot.getLogPosition());
+        centralUnit.getDevice(3).setDecimalValue(31);
+        centralUnit.getDevice(2).setBinaryValue(true);
+        snapshot.close();
+        log.close();
+
+        TestCentralUnit restored = new TestCentralUnit().withDevices(3);
+        snapshot = new DeviceSnapshot(snapshotFile);
+        log = new WriteAheadLog(logDirectory, WriteAheadLog.Durability.SYNC, SEGMENT_SIZE);
+        assertEquals(7, snapshot.getLogPosition());
+        snapshot.restore(restored);
+        // the segment of the checkpoint still holds changes included in it
+        assertEquals(2, log.replay(restored, snapshot.getLogPosition()));
+        assertEquals(9, log.getLastPosition());
+        snapshot.close();
+        log.close();
+
+        assertEquals(6, restored.getDevice(1).getDecimalValue(), DELTA);
+        assertTrue(restored.getDevice(2).getBinaryValue());
+        assertEquals(31, restored.getDevice(3).getDecimalValue(), DELTA);
+    }
+
+    @Test
+    public void changesBeforeCheckpointDoNotOverrideIt() throws IOException {
+        TestCentralUnit centralUnit = new TestCentralUnit().withDevices(1);
+        WriteAheadLog log = new WriteAheadLog(logDirectory, WriteAheadLog.Durability.SYNC, SEGMENT_SIZE);
+        centralUnit.valueLog = log;
+        centralUnit.getDevice(1).setDecimalValue(1);
+        centralUnit.getDevice(1).setDecimalValue(2);
+        DeviceSnapshot snapshot = new DeviceSnapshot(snapshotFile);
+        snapshot.checkpoint(centralUnit, log.getLastPosition());
+        snapshot.close();
+        log.close();
+
+        TestCentralUnit restored = new TestCentralUnit().withDevices(1);
+        snapshot = new DeviceSnapshot(snapshotFile);
+        log = new WriteAheadLog(logDirectory, WriteAheadLog.Durability.SYNC, SEGMENT_SIZE);
+        snapshot.restore(restored);
+        assertEquals(0, log.replay(restored, snapshot.getLogPosition()));
+        log.close();
+        snapshot.close();
+
+        assertEquals(2, restored.getDevice(1).getDecimalValue(), DELTA);
+    }
+
+    @Test
+    public void corruptCheckpointFallsBackToPreviousOne() throws IOException {
+        TestCentralUnit centralUnit = new TestCentralUnit().withDevices(2);
+        WriteAheadLog log = new WriteAheadLog(logDirectory, WriteAheadLog.Durability.SYNC, SEGMENT_SIZE);
+        centralUnit.valueLog = log;
+        DeviceSnapshot snapshot = new DeviceSnapshot(snapshotFile);
+        centralUnit.getDevice(1).setDecimalValue(1);
+        snapshot.checkpoint(centralUnit, log.getLastPosition());
+        centralUnit.getDevice(1).setDecimalValue(2);
+        centralUnit.getDevice(2).setBinaryValue(true);
+        snapshot.checkpoint(centralUnit, log.getLastPosition());
+        centralUnit.getDevice(1).setDecimalValue(3);
+        snapshot.close();
+        log.close();
+
+        // the second checkpoint is written into the second half of the file
+        RandomAccessFile randomAccessFile = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            long slot = randomAccessFile.length() / 2 + 32 + 8;
+            randomAccessFile.seek(slot);
+            randomAccessFile.writeLong(randomAccessFile.readLong() ^ -1L);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        TestCentralUnit restored = new TestCentralUnit().withDevices(2);
+        snapshot = new DeviceSnapshot(snapshotFile);
+        log = new WriteAheadLog(logDirectory, WriteAheadLog.Durability.SYNC, SEGMENT_SIZE);
+        assertEquals(1, snapshot.getLogPosition());
+        snapshot.restore(restored);
+        assertEquals(3, log.replay(restored, snapshot.getLogPosition()));
+        snapshot.close();
+        log.close();
+
+        assertEquals(3, restored.getDevice(1).getDecimalValue(), DELTA);
+        assertTrue(restored.getDevice(2).getBinaryValue());
+    }
+
+    @Test
+    public void appendsContinueAfterCheckpointNewerThanLog() throws IOException {
+        TestCentralUnit centralUnit = new TestCentralUnit().withDevices(1);
+        centralUnit.getDevice(1).setDecimalValue(5);
+        DeviceSnapshot snapshot = new DeviceSnapshot(snapshotFile);
+        snapshot.checkpoint(centralUnit, 7);
+        snapshot.close();
+
+        // the log has been lost, so its positions must not restart below the checkpoint
+        TestCentralUnit restored = new TestCentralUnit().withDevices(1);
+        snapshot = new DeviceSnapshot(snapshotFile);
+        WriteAheadLog log = new WriteAheadLog(logDirectory, WriteAheadLog.Durability.SYNC, SEGMENT_SIZE);
+        snapshot.restore(restored);
+        assertEquals(0, log.replay(restored, snapshot.getLogPosition()));
+        restored.valueLog = log;
+        restored.getDevice(1).setDecimalValue(6);
+        assertEquals(8, log.getLastPosition());
+        snapshot.close();
+        log.close();
+
+        TestCentralUnit recovered = new TestCentralUnit().withDevices(1);
+        snapshot = new DeviceSnapshot(snapshotFile);
+        log = new WriteAheadLog(logDirectory, WriteAheadLog.Durability.SYNC, SEGMENT_SIZE);
+        snapshot.restore(recovered);
+        assertEquals(1, log.replay(recovered, snapshot.getLogPosition()));
+        snapshot.close();
+        log.close();
+
+        assertEquals(6, recovered.getDevice(1).getDecimalValue(), DELTA);
+    }
+}
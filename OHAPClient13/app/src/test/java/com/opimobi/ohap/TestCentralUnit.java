@@ -0,0 +1,82 @@
+package com.opimobi.ohap;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * A central unit for tests. Value changes are applied directly and logged into the attached
+ * write-ahead log like CentralUnitConnection does in simulation mode.
+ */
+class TestCentralUnit extends CentralUnit {
+
+    WriteAheadLog valueLog;
+
+    TestCentralUnit() throws MalformedURLException {
+        super(new URL("http://localhost:18001/"));
+    }
+
+    /**
+     * Creates the devices 1..count, the odd ones decimal and the even ones binary, with the
+     * values zero and false.
+     *
+     * @param count The amount of devices.
+     * @return This central unit.
+     */
+    TestCentralUnit withDevices(int count) {
+        for (long id = 1; id <= count; id++)
+            new Device(this, id, Device.Type.ACTUATOR, id % 2 == 1 ? Device.ValueType.DECIMAL : Device.ValueType.BINARY);
+        return this;
+    }
+
+    Device getDevice(long id) {
+        return (Device)getItemById(id);
+    }
+
+    @Override
+    protected void changeBinaryValue(Device device, boolean value) {
+        device.setBinaryValue(value);
+    }
+
+    @Override
+    protected void changeDecimalValue(Device device, double value) {
+        device.setDecimalValue(value);
+    }
+
+    @Override
+    protected void listeningStateChanged(Container container, boolean listening) {
+    }
+
+    @Override
+    protected void deviceValueChanged(Device device) {
+        if (valueLog == null)
+            return;
+        try {
+            valueLog.append(device);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates an empty temporary directory.
+     *
+     * @return The directory.
+     * @exception java.io.IOException If the directory can not be created.
+     */
+    static File createTempDirectory() throws IOException {
+        File directory = File.createTempFile("ohap", "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Unable to create " + directory);
+        return directory;
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File child : files)
+                delete(child);
+        file.delete();
+    }
+}
@@ -0,0 +1,206 @@
+package com.opimobi.ohap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests appending, replaying, segment rollover and compaction of the write-ahead log.
+ */
+public class WriteAheadLogTest {
+
+    private static final int RECORD_SIZE = 28;
+    private static final double DELTA = 0;
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = TestCentralUnit.createTempDirectory();
+    }
+
+    @After
+    public void tearDown() {
+        TestCentralUnit.delete(directory);
+    }
+
+    @Test
+    public void appendedChangesAreReplayedAfterReopening() throws IOException {
+        for (WriteAheadLog.Durability durability : WriteAheadLog.Durability.values()) {
+            File logDirectory = new File(directory, durability.name());
+            TestCentralUnit centralUnit = new TestCentralUnit().withDevices(4);
+            WriteAheadLog log = new WriteAheadLog(logDirectory, durability, 1024);
+            centralUnit.valueLog = log;
+            centralUnit.getDevice(1).setDecimalValue(1.5);
+            centralUnit.getDevice(2).setBinaryValue(true);
+            centralUnit.getDevice(3).setDecimalValue(-3.25);
+            centralUnit.getDevice(4).setBinaryValue(true);
+            centralUnit.getDevice(4).setBinaryValue(false);
+            assertEquals(5, log.getLastPosition());
+            log.close();
+
+            TestCentralUnit restored = new TestCentralUnit().withDevices(4);
+            log = new WriteAheadLog(logDirectory, durability, 1024);
+            assertEquals(5, log.getLastPosition());
+            assertEquals(5, log.replay(restored, 0));
+            log.close();
+
+            assertEquals(1.5, restored.getDevice(1).getDecimalValue(), DELTA);
+            assertTrue(restored.getDevice(2).getBinaryValue());
+            assertEquals(-3.25, restored.getDevice(3).getDecimalValue(), DELTA);
+            assertFalse(restored.getDevice(4).getBinaryValue());
+        }
+    }
+
+    @Test
+    public void replaySkipsChangesAtOrBeforePosition() throws IOException {
+        TestCentralUnit centralUnit = new TestCentralUnit().withDevices(3);
+        WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 1024);
+        centralUnit.valueLog = log;
+        centralUnit.getDevice(1).setDecimalValue(1);
+        centralUnit.getDevice(3).setDecimalValue(3);
+        centralUnit.getDevice(1).setDecimalValue(10);
+        log.close();
+
+        TestCentralUnit restored = new TestCentralUnit().withDevices(3);
+        log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 1024);
+        assertEquals(1, log.replay(restored, 2));
+        log.close();
+
+        assertEquals(10, restored.getDevice(1).getDecimalValue(), DELTA);
+        assertEquals(0, restored.getDevice(3).getDecimalValue(), DELTA);
+    }
+
+    @Test
+    public void replayOfUnknownDevicesIsSkipped() throws IOException {
+        TestCentralUnit centralUnit = new TestCentralUnit().withDevices(3);
+        WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 1024);
+        centralUnit.valueLog = log;
+        centralUnit.getDevice(1).setDecimalValue(1);
+        centralUnit.getDevice(3).setDecimalValue(3);
+        log.close();
+
+        TestCentralUnit restored = new TestCentralUnit().withDevices(1);
+        log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 1024);
+        assertEquals(1, log.replay(restored, 0));
+        log.close();
+
+        assertEquals(1, restored.getDevice(1).getDecimalValue(), DELTA);
+    }
+
+    @Test
+    public void segmentsRollOverAndAreReplayedInOrder() throws IOException {
+        TestCentralUnit centralUnit = new TestCentralUnit().withDevices(1);
+        WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 4 * RECORD_SIZE);
+        centralUnit.valueLog = log;
+        for (int i = 1; i <= 10; i++)
+            centralUnit.getDevice(1).setDecimalValue(i);
+        log.close();
+
+        File[] segments = listSegments();
+        assertEquals(3, segments.length);
+        assertEquals(String.format("%016x.wal", 1), segments[0].getName());
+        assertEquals(String.format("%016x.wal", 5), segments[1].getName());
+        assertEquals(String.format("%016x.wal", 9), segments[2].getName());
+        assertEquals(4 * RECORD_SIZE, segments[0].length());
+        assertEquals(2 * RECORD_SIZE, segments[2].length());
+
+        TestCentralUnit restored = new TestCentralUnit().withDevices(1);
+        log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 4 * RECORD_SIZE);
+        assertEquals(10, log.replay(restored, 0));
+        assertEquals(10, log.getLastPosition());
+        log.close();
+
+        assertEquals(10, restored.getDevice(1).getDecimalValue(), DELTA);
+    }
+
+    @Test
+    public void tornTailIsTruncatedOnOpen() throws IOException {
+        TestCentralUnit centralUnit = new TestCentralUnit().withDevices(1);
+        WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 1024);
+        centralUnit.valueLog = log;
+        for (int i = 1; i <= 5; i++)
+            centralUnit.getDevice(1).setDecimalValue(i);
+        log.close();
+
+        // a change torn in the middle of writing it
+        File segment = listSegments()[0];
+        FileOutputStream outputStream = new FileOutputStream(segment, true);
+        try {
+            outputStream.write(new byte[RECORD_SIZE / 2]);
+        } finally {
+            outputStream.close();
+        }
+
+        log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 1024);
+        assertEquals(5, log.getLastPosition());
+        assertEquals(5 * RECORD_SIZE, segment.length());
+        centralUnit.valueLog = log;
+        centralUnit.getDevice(1).setDecimalValue(6);
+        assertEquals(6, log.getLastPosition());
+        log.close();
+
+        TestCentralUnit restored = new TestCentralUnit().withDevices(1);
+        log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 1024);
+        assertEquals(6, log.replay(restored, 0));
+        log.close();
+
+        assertEquals(6, restored.getDevice(1).getDecimalValue(), DELTA);
+    }
+
+    @Test
+    public void compactDeletesOnlyCoveredSegments() throws IOException {
+        TestCentralUnit centralUnit = new TestCentralUnit().withDevices(1);
+        WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 4 * RECORD_SIZE);
+        centralUnit.valueLog = log;
+        for (int i = 1; i <= 10; i++)
+            centralUnit.getDevice(1).setDecimalValue(i);
+
+        assertEquals(0, log.compact(3));
+        assertEquals(3, listSegments().length);
+        assertEquals(1, log.compact(4));
+        assertEquals(2, listSegments().length);
+        assertEquals(1, log.compact(8));
+        // the segment being written is kept even when all of its changes are covered
+        assertEquals(0, log.compact(10));
+        assertEquals(1, listSegments().length);
+        log.close();
+
+        TestCentralUnit restored = new TestCentralUnit().withDevices(1);
+        log = new WriteAheadLog(directory, WriteAheadLog.Durability.SYNC, 4 * RECORD_SIZE);
+        assertEquals(10, log.getLastPosition());
+        assertEquals(2, log.replay(restored, 0));
+        log.close();
+
+        assertEquals(10, restored.getDevice(1).getDecimalValue(), DELTA);
+    }
+
+    @Test
+    public void appendAfterCloseFails() throws IOException {
+        TestCentralUnit centralUnit = new TestCentralUnit().withDevices(1);
+        WriteAheadLog log = new WriteAheadLog(directory, WriteAheadLog.Durability.BATCH, 1024);
+        log.close();
+
+        try {
+            log.append(centralUnit.getDevice(1));
+            fail("Appending into a closed log succeeded.");
+        } catch (IOException expected) {
+        }
+    }
+
+    private File[] listSegments() {
+        File[] segments = directory.listFiles();
+        Arrays.sort(segments);
+        return segments;
+    }
+}
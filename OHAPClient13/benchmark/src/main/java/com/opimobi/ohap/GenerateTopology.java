@@ -0,0 +1,51 @@
+package com.opimobi.ohap;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes a synthetic topology and listening scenario of a {@link TopologyGenerator} into files
+ * for load tests. Run by the topology task of the benchmark module.
+ */
+public class GenerateTopology {
+
+    /**
+     * Writes a topology and a scenario into files.
+     *
+     * Arguments: output-prefix seed depth fan-out devices-per-container sessions
+     * containers-per-session. Creates the files output-prefix.topology and output-prefix.scenario.
+     *
+     * @param args The arguments.
+     * @exception java.io.IOException If writing fails.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 7) {
+            System.err.println("Usage: GenerateTopology output-prefix seed depth fan-out " +
+                    "devices-per-container sessions containers-per-session");
+            System.exit(1);
+        }
+
+        TopologyGenerator generator = new TopologyGenerator(Long.parseLong(args[1]));
+        generator.setDepth(Integer.parseInt(args[2]));
+        generator.setFanOut(Integer.parseInt(args[3]));
+        generator.setDevicesPerContainer(Integer.parseInt(args[4]));
+
+        Writer topologyWriter = new OutputStreamWriter(new FileOutputStream(args[0] + ".topology"), "UTF-8");
+        try {
+            generator.write(topologyWriter);
+        } finally {
+            topologyWriter.close();
+        }
+
+        Writer scenarioWriter = new OutputStreamWriter(new FileOutputStream(args[0] + ".scenario"), "UTF-8");
+        try {
+            generator.writeScenario(scenarioWriter, Integer.parseInt(args[5]), Integer.parseInt(args[6]));
+        } finally {
+            scenarioWriter.close();
+        }
+
+        System.out.println("Generated " + generator.getItemCount() + " items into " + args[0] + ".topology");
+    }
+}
@@ -0,0 +1,97 @@
+package com.opimobi.ohap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for looking up items by identifier in the primitive map of the central unit,
+ * compared with the boxed HashMap it replaced. The identifiers are random 32-bit values like the
+ * identifiers assigned by a server, and they are looked up in random order.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+@State(Scope.Thread)
+public class ItemMapBenchmark {
+
+    private static final int LOOKUPS = 1024;
+
+    @Param({"1000000", "10000000"})
+    public int size;
+
+    private LongMap<Object> longMap;
+    private HashMap<Long, Object> hashMap;
+
+    private long[] identifiers;
+    private long[] lookups;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        Object item = new Object();
+
+        longMap = new LongMap<>();
+        hashMap = new HashMap<>();
+        identifiers = new long[size];
+        for (int i = 0; i < size; i++) {
+            long identifier;
+            do {
+                identifier = random.nextInt() & 0xffffffffL;
+            } while (longMap.put(identifier, item) != null);
+            hashMap.put(identifier, item);
+            identifiers[i] = identifier;
+        }
+
+        lookups = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++)
+            lookups[i] = identifiers[random.nextInt(size)];
+    }
+
+    private long nextIdentifier() {
+        next = (next + 1) & (LOOKUPS - 1);
+        return lookups[next];
+    }
+
+    @Benchmark
+    public Object getFromLongMap() {
+        return longMap.get(nextIdentifier());
+    }
+
+    @Benchmark
+    public Object getFromHashMap() {
+        return hashMap.get(Long.valueOf(nextIdentifier()));
+    }
+
+    @Benchmark
+    public Object putAndRemoveInLongMap() {
+        long identifier = nextIdentifier();
+        Object item = longMap.remove(identifier);
+        longMap.put(identifier, item);
+        return item;
+    }
+
+    @Benchmark
+    public Object putAndRemoveInHashMap() {
+        Long identifier = nextIdentifier();
+        Object item = hashMap.remove(identifier);
+        hashMap.put(identifier, item);
+        return item;
+    }
+}
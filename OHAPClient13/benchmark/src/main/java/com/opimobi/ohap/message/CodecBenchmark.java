@@ -0,0 +1,265 @@
+package com.opimobi.ohap.message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for encoding and decoding every OHAP message shape with the client codec. Run with
+ * the gc profiler (the default of the jmh task) to see the bytes allocated per operation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    /**
+     * An OutputStream discarding everything, so that only the codec allocates.
+     */
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    private static final int BATCH_SIZE = 32;
+
+    private final OutputStream sink = new NullOutputStream();
+    private final ItemMessage itemMessage = new ItemMessage();
+
+    private ByteArrayInputStream login;
+    private ByteArrayInputStream ping;
+    private ByteArrayInputStream container;
+    private ByteArrayInputStream decimalDevice;
+    private ByteArrayInputStream binaryDevice;
+    private ByteArrayInputStream decimalChanged;
+    private ByteArrayInputStream binaryChanged;
+    private ByteArrayInputStream valuesChanged;
+
+    @Setup
+    public void setup() throws IOException {
+        login = encode(encodeLogin());
+        ping = encode(encodePing());
+        container = encode(encodeContainer());
+        decimalDevice = encode(encodeDecimalDevice());
+        binaryDevice = encode(encodeBinaryDevice());
+        decimalChanged = encode(encodeDecimalChanged());
+        binaryChanged = encode(encodeBinaryChanged());
+        valuesChanged = encode(encodeValuesChanged());
+    }
+
+    private static ByteArrayInputStream encode(OutgoingMessage outgoingMessage) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outgoingMessage.writeTo(outputStream);
+        outgoingMessage.release();
+
+        return new ByteArrayInputStream(outputStream.toByteArray());
+    }
+
+    private static OutgoingMessage encodeLogin() {
+        return new OutgoingMessage()
+                .integer8(MessageType.LOGIN)
+                .integer8(0x01)
+                .text("someguy")
+                .text("password");
+    }
+
+    private static OutgoingMessage encodePing() {
+        return new OutgoingMessage()
+                .integer8(MessageType.PING)
+                .integer32(123456789L);
+    }
+
+    // The item messages are encoded and decoded through the ItemMessage schema like in the client
+
+    private static OutgoingMessage encodeContainer() {
+        OutgoingMessage outgoingMessage = new OutgoingMessage()
+                .integer8(MessageType.CONTAINER)
+                .integer32(2);
+        return ItemMessage.writeItemData(outgoingMessage, 0, "Living room", "The living room on the first floor", false);
+    }
+
+    private static OutgoingMessage encodeDecimalDevice() {
+        OutgoingMessage outgoingMessage = new OutgoingMessage()
+                .integer8(MessageType.DECIMAL_ACTUATOR)
+                .integer32(3)
+                .decimal64(21.5);
+        ItemMessage.writeItemData(outgoingMessage, 2, "Thermostate", "Thermostate of the living room", false);
+        return ItemMessage.writeDecimalData(outgoingMessage, 0.0, 40.0, "Celsius Degrees", "C");
+    }
+
+    private static OutgoingMessage encodeBinaryDevice() {
+        OutgoingMessage outgoingMessage = new OutgoingMessage()
+                .integer8(MessageType.BINARY_ACTUATOR)
+                .integer32(4)
+                .binary8(true);
+        return ItemMessage.writeItemData(outgoingMessage, 2, "Ceiling lamp", "The ceiling lamp of the living room", false);
+    }
+
+    private static OutgoingMessage encodeDecimalChanged() {
+        return new OutgoingMessage()
+                .integer8(MessageType.DECIMAL_CHANGED)
+                .integer32(3)
+                .decimal64(22.0);
+    }
+
+    private static OutgoingMessage encodeBinaryChanged() {
+        return new OutgoingMessage()
+                .integer8(MessageType.BINARY_CHANGED)
+                .integer32(4)
+                .binary8(false);
+    }
+
+    private static OutgoingMessage encodeValuesChanged() {
+        OutgoingMessage outgoingMessage = new OutgoingMessage()
+                .integer8(MessageType.VALUES_CHANGED)
+                .integer32(2)
+                .integer16(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            if ((i & 1) == 0)
+                outgoingMessage.integerVar(1 << 1).decimal64(20.0 + i);
+            else
+                outgoingMessage.integerVar(1 << 1 | 1).binary8(true);
+        }
+
+        return outgoingMessage;
+    }
+
+    private void write(OutgoingMessage outgoingMessage) throws IOException {
+        outgoingMessage.writeTo(sink);
+        outgoingMessage.release();
+    }
+
+    private static IncomingMessage read(ByteArrayInputStream inputStream) throws IOException {
+        inputStream.reset();
+        IncomingMessage incomingMessage = new IncomingMessage();
+        incomingMessage.readFrom(inputStream);
+
+        return incomingMessage;
+    }
+
+    @Benchmark
+    public void encodeLoginMessage() throws IOException {
+        write(encodeLogin());
+    }
+
+    @Benchmark
+    public void encodePingMessage() throws IOException {
+        write(encodePing());
+    }
+
+    @Benchmark
+    public void encodeContainerMessage() throws IOException {
+        write(encodeContainer());
+    }
+
+    @Benchmark
+    public void encodeDecimalDeviceMessage() throws IOException {
+        write(encodeDecimalDevice());
+    }
+
+    @Benchmark
+    public void encodeBinaryDeviceMessage() throws IOException {
+        write(encodeBinaryDevice());
+    }
+
+    @Benchmark
+    public void encodeDecimalChangedMessage() throws IOException {
+        write(encodeDecimalChanged());
+    }
+
+    @Benchmark
+    public void encodeBinaryChangedMessage() throws IOException {
+        write(encodeBinaryChanged());
+    }
+
+    @Benchmark
+    public void encodeValuesChangedMessage() throws IOException {
+        write(encodeValuesChanged());
+    }
+
+    @Benchmark
+    public void decodeLoginMessage(Blackhole blackhole) throws IOException {
+        IncomingMessage incomingMessage = read(login);
+        blackhole.consume(incomingMessage.integer8());
+        blackhole.consume(incomingMessage.integer8());
+        blackhole.consume(incomingMessage.text());
+        blackhole.consume(incomingMessage.text());
+    }
+
+    @Benchmark
+    public void decodePingMessage(Blackhole blackhole) throws IOException {
+        IncomingMessage incomingMessage = read(ping);
+        blackhole.consume(incomingMessage.integer8());
+        blackhole.consume(incomingMessage.integer32());
+    }
+
+    @Benchmark
+    public void decodeContainerMessage(Blackhole blackhole) throws IOException {
+        IncomingMessage incomingMessage = read(container);
+        blackhole.consume(itemMessage.readFrom(incomingMessage.integer8(), incomingMessage));
+    }
+
+    @Benchmark
+    public void decodeDecimalDeviceMessage(Blackhole blackhole) throws IOException {
+        IncomingMessage incomingMessage = read(decimalDevice);
+        blackhole.consume(itemMessage.readFrom(incomingMessage.integer8(), incomingMessage));
+    }
+
+    @Benchmark
+    public void decodeBinaryDeviceMessage(Blackhole blackhole) throws IOException {
+        IncomingMessage incomingMessage = read(binaryDevice);
+        blackhole.consume(itemMessage.readFrom(incomingMessage.integer8(), incomingMessage));
+    }
+
+    @Benchmark
+    public void decodeDecimalChangedMessage(Blackhole blackhole) throws IOException {
+        IncomingMessage incomingMessage = read(decimalChanged);
+        blackhole.consume(incomingMessage.integer8());
+        blackhole.consume(incomingMessage.integer32());
+        blackhole.consume(incomingMessage.decimal64());
+    }
+
+    @Benchmark
+    public void decodeBinaryChangedMessage(Blackhole blackhole) throws IOException {
+        IncomingMessage incomingMessage = read(binaryChanged);
+        blackhole.consume(incomingMessage.integer8());
+        blackhole.consume(incomingMessage.integer32());
+        blackhole.consume(incomingMessage.binary8());
+    }
+
+    @Benchmark
+    public void decodeValuesChangedMessage(Blackhole blackhole) throws IOException {
+        IncomingMessage incomingMessage = read(valuesChanged);
+        blackhole.consume(incomingMessage.integer8());
+        blackhole.consume(incomingMessage.integer32());
+        int count = incomingMessage.integer16();
+        for (int i = 0; i < count; i++) {
+            if ((incomingMessage.integerVar() & 1) != 0)
+                blackhole.consume(incomingMessage.binary8());
+            else
+                blackhole.consume(incomingMessage.decimal64());
+        }
+    }
+}
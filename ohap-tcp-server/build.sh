@@ -19,6 +19,22 @@ javac -d ../../bin/class com/henrikhedberg/ohap/TcpOhapServer.java) &&
 (cd bin/class &&
 jar cfm ../jar/tcp-ohap-server.jar ../../src/manifest/tcp-ohap-server.manifest com)
 
+echo "Building virtual-thread-ohap-server.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -d ../../bin/class com/henrikhedberg/ohap/VirtualThreadOhapServer.java) &&
+(cd bin/class &&
+jar cfm ../jar/virtual-thread-ohap-server.jar ../../src/manifest/virtual-thread-ohap-server.manifest com)
+
+echo "Building asynchronous-ohap-server.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -d ../../bin/class com/henrikhedberg/ohap/AsynchronousOhapServer.java) &&
+(cd bin/class &&
+jar cfm ../jar/asynchronous-ohap-server.jar ../../src/manifest/asynchronous-ohap-server.manifest com)
+
 echo "Building hbdp-connection-example.jar..."
 rm -Rf bin/class
 mkdir -p bin/class
@@ -35,6 +51,19 @@ javac -d ../../bin/class com/henrikhedberg/util/EchoTcpServer.java) &&
 (cd bin/class &&
 jar cfm ../jar/echo-tcp-server.jar ../../src/manifest/echo-tcp-server.manifest com)
 
+# The JMH benchmarks are built only when JMH_CLASSPATH lists the jmh-core and
+# jmh-generator-annprocess jars and their dependencies. Run them with
+#   java -cp bin/jar/ohap-server-benchmarks.jar:$JMH_CLASSPATH org.openjdk.jmh.Main -prof gc
+# or only the message codec benchmarks by adding the pattern CodecBenchmark.
+if [ -n "$JMH_CLASSPATH" ]; then
+echo "Building ohap-server-benchmarks.jar..."
+rm -Rf bin/class
+mkdir -p bin/class
+(cd src/java &&
+javac -cp "$JMH_CLASSPATH" -sourcepath .:../benchmark -d ../../bin/class $(cd ../benchmark && find com -name '*Benchmark.java' | sed 's|^|../benchmark/|')) &&
+(cd bin/class &&
+jar cf ../jar/ohap-server-benchmarks.jar .)
+fi
 
 echo "Building documentation..."
 rm -Rf doc
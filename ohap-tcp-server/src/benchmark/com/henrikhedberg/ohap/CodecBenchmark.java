@@ -0,0 +1,213 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the server codec: encoding every message shape the server sends
+ * with {@link OutgoingMessage} and the item classes, and decoding every message shape
+ * it receives with {@link IncomingMessage}. The encoded messages are copied into a
+ * direct buffer or encoded in place into it like in {@link TcpOhapServer}, and the received ones are taken from
+ * a buffer without copying like in the selector loop. Run with the gc profiler to see
+ * the bytes allocated per operation.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+	private static final int BATCH_SIZE = 32;
+
+	private final ByteBuffer outputBuffer = ByteBuffer.allocateDirect(4096);
+	private final IncomingMessage incomingMessage = new IncomingMessage();
+	private Container container;
+	private DecimalDevice decimalDevice;
+	private BinaryDevice binaryDevice;
+	private MessageCompression compression;
+
+	private ByteBuffer login;
+	private ByteBuffer ping;
+	private ByteBuffer decimalChanged;
+	private ByteBuffer binaryChanged;
+	private ByteBuffer listeningStart;
+
+	@Setup
+	public void setup() {
+		container = new Container(2, "Living room", "The living room on the first floor", false);
+		decimalDevice = new DecimalDevice(3, "Thermostate", "Thermostate of the living room", false, Device.Type.ACTUATOR, 21.5, 0.0, 40.0, "Celsius Degrees", "C");
+		binaryDevice = new BinaryDevice(4, "Ceiling lamp", "The ceiling lamp of the living room", false, Device.Type.ACTUATOR, true);
+		container.addItem(decimalDevice);
+		container.addItem(binaryDevice);
+		compression = new MessageCompression();
+
+		login = frame(new OutgoingMessage().integer8(OhapServer.MESSAGE_TYPE_LOGIN).integer8(OhapServer.PROTOCOL_VERSION).text("someguy").text("password").integer32(OhapServer.CAPABILITY_VALUES_CHANGED));
+		ping = frame(new OutgoingMessage().integer8(OhapServer.MESSAGE_TYPE_PING).integer32(123456789L));
+		decimalChanged = frame(new OutgoingMessage().integer8(OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED).integer32(3).decimal64(22.0));
+		binaryChanged = frame(new OutgoingMessage().integer8(OhapServer.MESSAGE_TYPE_BINARY_CHANGED).integer32(4).binary8(false));
+		listeningStart = frame(new OutgoingMessage().integer8(OhapServer.MESSAGE_TYPE_LISTENING_START).integer32(2));
+	}
+
+	@TearDown
+	public void tearDown() {
+		compression.end();
+	}
+
+	private static ByteBuffer frame(OutgoingMessage outgoingMessage) {
+		ByteBuffer buffer = ByteBuffer.allocate(outgoingMessage.length());
+		outgoingMessage.writeTo(buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	private int write(OutgoingMessage outgoingMessage) {
+		outputBuffer.clear();
+		outgoingMessage.writeTo(outputBuffer);
+		return outputBuffer.position();
+	}
+
+	private IncomingMessage read(ByteBuffer buffer) {
+		buffer.rewind();
+		incomingMessage.readFromNB(buffer);
+		return incomingMessage;
+	}
+
+	@Benchmark
+	public int encodePingMessage() {
+		return write(new OutgoingMessage().integer8(OhapServer.MESSAGE_TYPE_PONG).integer32(123456789L));
+	}
+
+	@Benchmark
+	public int encodeContainerMessage() {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		container.outputMessage(outgoingMessage);
+		return write(outgoingMessage);
+	}
+
+	@Benchmark
+	public int encodeDecimalDeviceMessage() {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		decimalDevice.outputMessage(outgoingMessage);
+		return write(outgoingMessage);
+	}
+
+	@Benchmark
+	public int encodeDecimalDeviceMessageInPlace() {
+		outputBuffer.clear();
+		OutgoingMessage outgoingMessage = new OutgoingMessage(outputBuffer);
+		decimalDevice.outputMessage(outgoingMessage);
+		return outgoingMessage.finish().position();
+	}
+
+	@Benchmark
+	public int encodeBinaryDeviceMessage() {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		binaryDevice.outputMessage(outgoingMessage);
+		return write(outgoingMessage);
+	}
+
+	@Benchmark
+	public int encodeDecimalChangedMessage() {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		decimalDevice.outputChangedMessage(outgoingMessage, 22.0);
+		return write(outgoingMessage);
+	}
+
+	@Benchmark
+	public int encodeBinaryChangedMessage() {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		binaryDevice.outputChangedMessage(outgoingMessage, 0);
+		return write(outgoingMessage);
+	}
+
+	@Benchmark
+	public int encodeValuesChangedMessage() {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_VALUES_CHANGED);
+		container.outputIdentifier(outgoingMessage);
+		outgoingMessage.integer16(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			if ((i & 1) == 0) {
+				outgoingMessage.integerVar(1 << 1);
+				decimalDevice.outputValue(outgoingMessage, 20.0 + i);
+			} else {
+				outgoingMessage.integerVar(1 << 1 | 1);
+				binaryDevice.outputValue(outgoingMessage, 1);
+			}
+		}
+		return write(outgoingMessage);
+	}
+
+	@Benchmark
+	public int encodeCompressedDecimalDeviceMessage() throws IOException {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		decimalDevice.outputMessage(outgoingMessage);
+		return write(compression.compress(outgoingMessage));
+	}
+
+	@Benchmark
+	public void decodeLoginMessage(Blackhole blackhole) {
+		IncomingMessage incomingMessage = read(login);
+		blackhole.consume(incomingMessage.integer8());
+		blackhole.consume(incomingMessage.integer8());
+		blackhole.consume(incomingMessage.text());
+		blackhole.consume(incomingMessage.text());
+		blackhole.consume(incomingMessage.integer32());
+	}
+
+	@Benchmark
+	public void decodePingMessage(Blackhole blackhole) {
+		IncomingMessage incomingMessage = read(ping);
+		blackhole.consume(incomingMessage.integer8());
+		blackhole.consume(incomingMessage.integer32());
+	}
+
+	@Benchmark
+	public void decodeDecimalChangedMessage(Blackhole blackhole) {
+		IncomingMessage incomingMessage = read(decimalChanged);
+		blackhole.consume(incomingMessage.integer8());
+		blackhole.consume(incomingMessage.integer32());
+		blackhole.consume(incomingMessage.decimal64());
+	}
+
+	@Benchmark
+	public void decodeBinaryChangedMessage(Blackhole blackhole) {
+		IncomingMessage incomingMessage = read(binaryChanged);
+		blackhole.consume(incomingMessage.integer8());
+		blackhole.consume(incomingMessage.integer32());
+		blackhole.consume(incomingMessage.binary8());
+	}
+
+	@Benchmark
+	public void decodeListeningStartMessage(Blackhole blackhole) {
+		IncomingMessage incomingMessage = read(listeningStart);
+		blackhole.consume(incomingMessage.integer8());
+		blackhole.consume(incomingMessage.integer32());
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Compares the selector-based {@link TcpOhapServer}, the thread-per-connection
+ * {@link VirtualThreadOhapServer} and the {@link AsynchronousOhapServer} at a given
+ * number of connections.
+ *
+ * <p>Opens the connections from a single selector thread, logs each one in and starts
+ * listening to the container 1. Then, changes the thermostate 7 of that container
+ * a number of rounds and measures how long it takes until every connection has got
+ * the change. Prints the setup time, the fan-out latencies, the heap used and the
+ * platform thread count of the process.
+ *
+ * <p>Usage: <code>ConnectionScalingBenchmark selector|virtual|async connections [worker-count] [rounds]</code>
+ *
+ * <p>The worker count is the amount of worker loops of the selector server or
+ * the amount of threads in the channel group of the asynchronous server.
+ *
+ * <p>The client sockets are bound to the addresses 127.0.0.1, 127.0.0.2 and so on,
+ * 20000 connections each, to get past the ephemeral port range. Both ends of each
+ * connection are in this process, so it needs two file descriptors per connection
+ * (<code>ulimit -n</code>) and 100000 connections need a limit above 200000.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class ConnectionScalingBenchmark {
+	private static final int PORT = 18003;
+	private static final int CONNECTIONS_PER_ADDRESS = 20000;
+	private static final int MESSAGES_AFTER_LISTENING = 5;
+
+	private final int connectionCount;
+	private final SocketChannel[] channels;
+	private final ByteBuffer[] readBuffers;
+	private final int[] received;
+	private final int[] changes;
+	private Selector selector;
+
+	private ConnectionScalingBenchmark(int connectionCount) {
+		this.connectionCount = connectionCount;
+		channels = new SocketChannel[connectionCount];
+		readBuffers = new ByteBuffer[connectionCount];
+		received = new int[connectionCount];
+		changes = new int[connectionCount];
+	}
+
+	public static void main(String[] args) throws Exception {
+		String serverType = args.length > 0 ? args[0] : "";
+		int connectionCount = 0;
+		int workerCount = 0;
+		int rounds = 20;
+		try {
+			if (args.length > 1)
+				connectionCount = Integer.parseInt(args[1]);
+			if (args.length > 2)
+				workerCount = Integer.parseInt(args[2]);
+			if (args.length > 3)
+				rounds = Integer.parseInt(args[3]);
+		} catch (NumberFormatException e) {
+			connectionCount = 0;
+		}
+		if (!(serverType.equals("selector") || serverType.equals("virtual") || serverType.equals("async")) || connectionCount <= 0 || workerCount < 0 || rounds <= 0) {
+			System.err.println("Usage: ConnectionScalingBenchmark selector|virtual|async connections [worker-count] [rounds]");
+			System.exit(1);
+		}
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			public void write(int b) {
+			}
+
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+
+		long baseHeap = usedHeap();
+		Thread serverThread;
+		Runnable stopper;
+		if (serverType.equals("selector")) {
+			final TcpOhapServer server = new TcpOhapServer(new InetSocketAddress(PORT), workerCount);
+			serverThread = new Thread(server.getTcpServer(), "TcpOhapServer");
+			stopper = new Runnable() {
+				public void run() {
+					server.getTcpServer().stop();
+				}
+			};
+			serverType += " (" + workerCount + " workers)";
+		} else if (serverType.equals("async")) {
+			final AsynchronousOhapServer server = new AsynchronousOhapServer(new InetSocketAddress(PORT), Math.max(1, workerCount));
+			serverThread = null;
+			stopper = new Runnable() {
+				public void run() {
+					server.stop();
+				}
+			};
+			serverType += " (" + Math.max(1, workerCount) + " threads)";
+		} else {
+			final VirtualThreadOhapServer server = new VirtualThreadOhapServer(new InetSocketAddress(PORT));
+			serverThread = new Thread(server, "VirtualThreadOhapServer");
+			stopper = new Runnable() {
+				public void run() {
+					server.stop();
+				}
+			};
+			serverType += server.isVirtual() ? " (virtual threads)" : " (platform threads, no virtual threads in " + System.getProperty("java.version") + ")";
+		}
+		if (serverThread != null) {
+			serverThread.setDaemon(true);
+			serverThread.start();
+		}
+
+		ConnectionScalingBenchmark benchmark = new ConnectionScalingBenchmark(connectionCount);
+		long start = System.nanoTime();
+		benchmark.connect();
+		long setupMillis = (System.nanoTime() - start) / 1000000;
+
+		long[] latencies = new long[rounds];
+		for (int round = 0; round < rounds; round++)
+			latencies[round] = benchmark.fanOut(round);
+		Arrays.sort(latencies);
+
+		long heap = usedHeap() - baseHeap;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		out.println("Server: " + serverType);
+		out.println("Connections: " + connectionCount);
+		out.println("Connect, login and listen: " + setupMillis + " ms");
+		out.println("Fan-out latency: median " + latencies[rounds / 2] / 1000 + " us, max " + latencies[rounds - 1] / 1000 + " us");
+		out.println("Heap used: " + heap / (1024 * 1024) + " MB (" + heap / connectionCount + " bytes per connection, both ends)");
+		out.println("Platform threads: " + threads);
+
+		benchmark.close();
+		stopper.run();
+	}
+
+	private void connect() throws IOException {
+		selector = Selector.open();
+		ByteBuffer login = frame(new byte[] { (byte)OhapServer.MESSAGE_TYPE_LOGIN, 1, 0, 1, 'u', 0, 1, 'p' });
+		ByteBuffer listen = frame(new byte[] { (byte)OhapServer.MESSAGE_TYPE_LISTENING_START, 0, 0, 0, 1 });
+		for (int i = 0; i < connectionCount; i++) {
+			String host = "127.0.0." + (1 + i / CONNECTIONS_PER_ADDRESS);
+			SocketChannel channel = SocketChannel.open();
+			channel.bind(new InetSocketAddress(host, 0));
+			channel.connect(new InetSocketAddress("127.0.0.1", PORT));
+			channel.socket().setTcpNoDelay(true);
+			writeFully(channel, login.duplicate());
+			writeFully(channel, listen.duplicate());
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ, Integer.valueOf(i));
+			channels[i] = channel;
+			readBuffers[i] = ByteBuffer.allocate(1024);
+			if (i % 1000 == 999)
+				selectNow();
+		}
+		int ready;
+		do {
+			ready = 0;
+			select();
+			for (int i = 0; i < connectionCount; i++)
+				if (received[i] >= MESSAGES_AFTER_LISTENING)
+					ready++;
+		} while (ready < connectionCount);
+	}
+
+	/**
+	 * Changes the thermostate and waits until every connection has got the change.
+	 *
+	 * @return nanoseconds from sending the change to the last connection getting it
+	 */
+	private long fanOut(int round) throws IOException {
+		ByteBuffer change = ByteBuffer.allocate(13);
+		change.put((byte)OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED).putInt(7).putDouble(20 + round % 5);
+		change.flip();
+		long start = System.nanoTime();
+		writeFully(channels[0], frame(Arrays.copyOf(change.array(), 13)));
+		int done;
+		do {
+			select();
+			done = 0;
+			for (int i = 0; i < connectionCount; i++)
+				if (changes[i] > round)
+					done++;
+		} while (done < connectionCount);
+		return System.nanoTime() - start;
+	}
+
+	private void selectNow() throws IOException {
+		if (selector.selectNow() > 0)
+			readSelected();
+	}
+
+	private void select() throws IOException {
+		if (selector.select(1000) > 0)
+			readSelected();
+	}
+
+	private void readSelected() throws IOException {
+		Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+		while (iterator.hasNext()) {
+			SelectionKey key = iterator.next();
+			iterator.remove();
+			int i = (Integer)key.attachment();
+			ByteBuffer buffer = readBuffers[i];
+			if (channels[i].read(buffer) < 0)
+				throw new IOException("Connection " + i + " closed by the server");
+
+			buffer.flip();
+			while (buffer.remaining() >= 2) {
+				int length = buffer.getShort(buffer.position()) & 0xffff;
+				if (buffer.remaining() < 2 + length)
+					break;
+
+				int type = buffer.get(buffer.position() + 2) & 0xff;
+				if (type == OhapServer.MESSAGE_TYPE_LOGOUT)
+					throw new IOException("Connection " + i + " logged out by the server");
+				if (type == OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED)
+					changes[i]++;
+				else
+					received[i]++;
+				buffer.position(buffer.position() + 2 + length);
+			}
+			buffer.compact();
+		}
+	}
+
+	private void close() {
+		for (SocketChannel channel : channels) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private static ByteBuffer frame(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.allocate(2 + bytes.length);
+		buffer.putShort((short)bytes.length).put(bytes);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
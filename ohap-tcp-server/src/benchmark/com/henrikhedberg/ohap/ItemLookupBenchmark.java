@@ -0,0 +1,92 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for looking up items with {@link OhapServer#getItemByIdentifier(long)},
+ * which is backed by a primitive long map, compared with the boxed {@link HashMap}
+ * it replaced. The identifiers are random 32-bit values and they are looked up in
+ * random order over a million of them, so most lookups miss the processor caches.
+ *
+ * <p>Needs a heap of 4 GB for 10 million items.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@State(Scope.Thread)
+public class ItemLookupBenchmark {
+	private static final int LOOKUPS = 1 << 20;
+
+	@Param({ "1000000", "10000000" })
+	public int size;
+
+	private OhapServer server;
+	private HashMap<Long, Item> hashMap;
+	private long[] lookups;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(42);
+		server = new OhapServer() {
+		};
+		hashMap = new HashMap<>();
+		long[] identifiers = new long[size];
+		for (int i = 0; i < size; i++) {
+			long identifier;
+			do {
+				identifier = random.nextInt() & 0xffffffffL;
+			} while (identifier < 12 || server.getItemByIdentifier(identifier) != null);
+			BinaryDevice device = new BinaryDevice(identifier, "Lamp", "", false, Device.Type.ACTUATOR, false);
+			server.addItem(device);
+			hashMap.put(Long.valueOf(identifier), device);
+			identifiers[i] = identifier;
+		}
+
+		lookups = new long[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++)
+			lookups[i] = identifiers[random.nextInt(size)];
+	}
+
+	private long nextIdentifier() {
+		next = (next + 1) & (LOOKUPS - 1);
+		return lookups[next];
+	}
+
+	@Benchmark
+	public Item getItemByIdentifier() {
+		return server.getItemByIdentifier(nextIdentifier());
+	}
+
+	@Benchmark
+	public Item getFromHashMap() {
+		return hashMap.get(Long.valueOf(nextIdentifier()));
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures the startup of a server with a large topology file.
+ *
+ * <p>Writes a synthetic topology of about the given amount of items with
+ * {@link TopologyGenerator}, one level of containers holding a thousand devices each,
+ * and then constructs a server that loads the file
+ * named by {@link OhapServer#TOPOLOGY_PROPERTY} like the servers do when started.
+ * Prints the load time, the peak heap use during the load and the heap retained by
+ * the loaded items.
+ *
+ * <p>Usage: <code>TopologyLoadBenchmark items [file]</code>
+ *
+ * <p>Without a file, the topology is written into a temporary file that is deleted
+ * afterwards. Run with a fixed heap, for example <code>-Xms2g -Xmx2g</code> for
+ * a million items, so that the peak is not limited by the growth of the heap.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class TopologyLoadBenchmark {
+	private static final int DEVICES_PER_CONTAINER = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int itemCount = 0;
+		try {
+			if (args.length > 0)
+				itemCount = Integer.parseInt(args[0]);
+		} catch (NumberFormatException e) {
+			itemCount = 0;
+		}
+		if (itemCount <= 0) {
+			System.err.println("Usage: TopologyLoadBenchmark items [file]");
+			System.exit(1);
+		}
+
+		File file = args.length > 1 ? new File(args[1]) : File.createTempFile("topology", ".txt");
+		if (args.length <= 1)
+			file.deleteOnExit();
+		TopologyGenerator generator = new TopologyGenerator(1);
+		generator.setDepth(1);
+		generator.setFanOut((itemCount + DEVICES_PER_CONTAINER) / (DEVICES_PER_CONTAINER + 1));
+		generator.setDevicesPerContainer(DEVICES_PER_CONTAINER);
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 65536)) {
+			generator.write(writer);
+		}
+		itemCount = (int)generator.getItemCount() + 1;
+		System.setProperty(OhapServer.TOPOLOGY_PROPERTY, file.getPath());
+
+		long baseHeap = usedHeap();
+		resetPeakHeap();
+		long start = System.nanoTime();
+		OhapServer server = new OhapServer() {
+		};
+		long loadMillis = (System.nanoTime() - start) / 1000000;
+		long peakHeap = peakHeap() - baseHeap;
+		long retainedHeap = usedHeap() - baseHeap;
+
+		System.out.println("Items: " + itemCount + " (" + file.length() / (1024 * 1024) + " MB file)");
+		System.out.println("Load: " + loadMillis + " ms");
+		System.out.println("Peak heap during the load: " + peakHeap / (1024 * 1024) + " MB");
+		System.out.println("Heap retained: " + retainedHeap / (1024 * 1024) + " MB (" + retainedHeap / itemCount + " bytes per item)");
+		if (server.getItemByIdentifier(itemCount - 1) == null)
+			throw new IllegalStateException("The last item was not loaded.");
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+	}
+
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
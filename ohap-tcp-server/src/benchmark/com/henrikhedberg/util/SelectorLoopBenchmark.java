@@ -0,0 +1,93 @@
+/*
+ * Miscellaneous Java Utilities by Henrik Hedberg
+ * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+import org.openjdk.jmh.annotations.*;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+
+/**
+ * Compares the ways of toggling the writable interest of a channel, as a connection
+ * does whenever its write queue becomes non-empty and empty again. Registering the
+ * channel again looks the key up and replaces the attachment on every call, while
+ * {@link SelectorLoop.Registration} changes the interest set of the cached key.
+ * Each operation sets and clears the interest and lets the selector apply the change.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20160312)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SelectorLoopBenchmark {
+	private Selector selector;
+	private Pipe pipe;
+	private SelectionKey selectionKey;
+	private final Object attachment = new Object();
+
+	@Setup
+	public void setup() throws IOException {
+		selector = Selector.open();
+		pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		pipe.sink().configureBlocking(false);
+		selectionKey = pipe.sink().register(selector, 0, attachment);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		pipe.source().close();
+		pipe.sink().close();
+		selector.close();
+	}
+
+	@Benchmark
+	public int selectOnly() throws IOException {
+		return selector.selectNow();
+	}
+
+	@Benchmark
+	public int registerAgain() throws IOException {
+		reregister(pipe.sink(), true, SelectionKey.OP_WRITE);
+		reregister(pipe.sink(), false, SelectionKey.OP_WRITE);
+		return selector.selectNow();
+	}
+
+	@Benchmark
+	public int cachedKey() throws IOException {
+		selectionKey.interestOpsOr(SelectionKey.OP_WRITE);
+		selectionKey.interestOpsAnd(~SelectionKey.OP_WRITE);
+		return selector.selectNow();
+	}
+
+	private void reregister(SelectableChannel channel, boolean setInterest, int interest) throws ClosedChannelException {
+		SelectionKey selectionKey = channel.keyFor(selector);
+		int interestOps = selectionKey.interestOps();
+		if (setInterest)
+			interestOps |= interest;
+		else
+			interestOps &= ~interest;
+		channel.register(selector, interestOps, selectionKey.attachment());
+	}
+}
@@ -51,6 +51,7 @@ public class HbdpConnection {
 	private BufferInputStream connectionInputStream;
 	private BufferOutputStream connectionOutputStream;
 	private boolean closing;
+	private volatile long bytesWritten;
 	
 	HbdpConnection(String identifier) {
 		this.identifier = identifier;
@@ -112,14 +113,18 @@ public class HbdpConnection {
 			throw new HbdpException(404, "Wrong serial number: expected " + currentSerial + ", got " + serial + ".");
 		currentSerial++;
 
-		if (currentExchange != null) {
-			currentExchange.sendResponseHeaders(200, 0);
-			currentExchange.getResponseBody().close();
+		// the output stream may be written and closed in other threads, so the exchange is
+		// replaced and answered only while holding the lock of the stream
+		synchronized (connectionOutputStream) {
+			if (currentExchange != null) {
+				currentExchange.sendResponseHeaders(200, 0);
+				currentExchange.getResponseBody().close();
+			}
+			currentExchange = exchange;
 		}
-		currentExchange = exchange;
 
 		InputStream httpInputStream = exchange.getRequestBody();
-		log(currentExchange.getRemoteAddress().getAddress(), "Read " + connectionInputStream.readFrom(httpInputStream) + " bytes");
+		log(exchange.getRemoteAddress().getAddress(), "Read " + connectionInputStream.readFrom(httpInputStream) + " bytes");
 		httpInputStream.close();
 		
 		if (inputStreamHandler != null && connectionInputStream.available() > 0) {
@@ -135,20 +140,62 @@ public class HbdpConnection {
 			handling = false;
 		}
 		
-		if (connectionOutputStream.available() > 0)
-			sendOutput();
+		synchronized (connectionOutputStream) {
+			if (currentExchange == null)
+				return !closing;
+
+			if (connectionOutputStream.available() > 0)
+				sendOutput();
+			else if (closing)
+				abort();
 
-		return !closing;
+			return !closing;
+		}
 	}
 	
 	private void sendOutput() throws IOException {
 		OutputStream httpOutputStream = currentExchange.getResponseBody();
 		currentExchange.sendResponseHeaders(200, connectionOutputStream.available());
-		log(currentExchange.getRemoteAddress().getAddress(), "Wrote " + connectionOutputStream.writeTo(httpOutputStream) + " bytes");
+		int written = connectionOutputStream.writeTo(httpOutputStream);
+		bytesWritten += written;
+		log(currentExchange.getRemoteAddress().getAddress(), "Wrote " + written + " bytes");
 		httpOutputStream.close();
 		currentExchange = null;
 	}
 
+	long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Closes the output stream unless it has been closed already, so that the connection
+	 * ends once the client has taken the remaining bytes.
+	 */
+	void closeOutput() {
+		try {
+			if (!closing)
+				connectionOutputStream.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Completes the pending request without sending the remaining bytes, if any.
+	 */
+	void abort() {
+		synchronized (connectionOutputStream) {
+			if (currentExchange == null)
+				return;
+
+			try {
+				currentExchange.sendResponseHeaders(200, 0);
+				currentExchange.getResponseBody().close();
+			} catch (IOException e) {
+			}
+			currentExchange = null;
+		}
+	}
+
 	private void log(InetAddress address, String detail) {
 		long seconds = System.currentTimeMillis() / 1000;
 		System.out.println(seconds + "  " + identifier + "  Hbdp  " + detail + "  (" + address.getHostAddress() + ")");
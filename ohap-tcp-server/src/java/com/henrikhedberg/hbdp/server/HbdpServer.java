@@ -20,6 +20,7 @@
 
 package com.henrikhedberg.hbdp.server;
 
+import com.henrikhedberg.util.DrainReport;
 import com.henrikhedberg.util.InputStreamHandler;
 import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpHandler;
@@ -28,6 +29,7 @@ import java.io.OutputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Random;
@@ -39,6 +41,9 @@ import java.net.InetAddress;
  * <p>The implementation relies on the <code>com.sun.new.httpserver</code>
  * package.
  *
+ * <p>The server is shut down gracefully with {@link #drain(Runnable, long)}, which
+ * refuses new sessions and waits until the clients have taken their remaining bytes.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
  * @version 1.0 (20150503)
  */
@@ -48,6 +53,7 @@ public class HbdpServer {
 	private HbdpConnection.Handler connectionHandler;
 	private HashMap<String, HbdpConnection> connections = new HashMap<>();
 	private Random random = new Random();
+	private volatile boolean accepting = true;
 	
 	/**
 	 * Instantiates a new {@link HbdpServer} within the given {@link HttpContext}.
@@ -91,15 +97,22 @@ public class HbdpServer {
 			if (!method.equals("GET"))
 				throw new HbdpException(405, "Only GET method allowed for session initialisation.");
 
+			if (!accepting)
+				throw new HbdpException(503, "Server is shutting down.");
+
 			String identifier;
-			do {
-				identifier = generateUid();
-			} while (connections.get(identifier) != null);
+			HbdpConnection connection;
+			synchronized (connections) {
+				do {
+					identifier = generateUid();
+				} while (connections.get(identifier) != null);
+
+				connection = new HbdpConnection(identifier);
+				connections.put(identifier, connection);
+			}
 
 			log(exchange.getRemoteAddress().getAddress(), identifier, "Connected");
 
-			HbdpConnection connection = new HbdpConnection(identifier);
-			connections.put(identifier, connection);
 			connectionHandler.handle(connection);
 			sendResponse(exchange, 200, identifier);
 		} else {
@@ -118,22 +131,80 @@ public class HbdpServer {
 				throw new HbdpException(404, "Serial is not a number.");
 			}
 
-			HbdpConnection connection = connections.get(identifier);
+			HbdpConnection connection;
+			synchronized (connections) {
+				connection = connections.get(identifier);
+			}
 			if (connection == null)
 				throw new HbdpException(404, "No session with the provided identifier.");
 			
 			if (method.equals("DELETE")) {
-				connections.remove(identifier);
+				removeConnection(identifier);
 				log(exchange.getRemoteAddress().getAddress(), identifier, "Client disconnected");
 			} else if (method.equals("POST")) {
 				if (!connection.handle(exchange, serial)) {
-					connections.remove(identifier);
+					removeConnection(identifier);
 					log(exchange.getRemoteAddress().getAddress(), identifier, "Server disconnected");				
 				}
 			} else
 				throw new HbdpException(405, "Only POST or DELETE method allowed for session requests.");			}
 	}
 	
+	/**
+	 * Drains the server in stages. First, refuses new sessions. Then, runs the given
+	 * goodbye, which typically writes a final message to each session, and closes the
+	 * output stream of every connection. Waits until the clients have taken their
+	 * remaining bytes and the connections have ended or the timeout has elapsed, and
+	 * then ends the rest, completing their pending requests without the bytes.
+	 *
+	 * @param goodbye run after new sessions have been refused, or null
+	 * @param timeout milliseconds to wait for the clients to take their bytes
+	 * @return the numbers of drained and aborted connections and the bytes written
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public DrainReport drain(Runnable goodbye, long timeout) throws InterruptedException {
+		long start = System.nanoTime() / 1000000;
+		long deadline = start + timeout;
+		accepting = false;
+
+		ArrayList<HbdpConnection> draining;
+		synchronized (connections) {
+			draining = new ArrayList<>(connections.values());
+		}
+		long bytesBefore = 0;
+		for (HbdpConnection connection : draining)
+			bytesBefore += connection.getBytesWritten();
+
+		if (goodbye != null)
+			goodbye.run();
+		for (HbdpConnection connection : draining)
+			connection.closeOutput();
+
+		ArrayList<HbdpConnection> aborted;
+		synchronized (connections) {
+			long now;
+			while (!connections.isEmpty() && (now = System.nanoTime() / 1000000) < deadline)
+				connections.wait(deadline - now);
+			aborted = new ArrayList<>(connections.values());
+			connections.clear();
+		}
+		for (HbdpConnection connection : aborted)
+			connection.abort();
+
+		long bytes = -bytesBefore;
+		for (HbdpConnection connection : draining)
+			bytes += connection.getBytesWritten();
+
+		return new DrainReport(Math.max(0, draining.size() - aborted.size()), aborted.size(), bytes, System.nanoTime() / 1000000 - start);
+	}
+
+	private void removeConnection(String identifier) {
+		synchronized (connections) {
+			connections.remove(identifier);
+			connections.notifyAll();
+		}
+	}
+
 	private String generateUid() {
 		byte[] bytes = new byte[16];
 		random.nextBytes(bytes);
@@ -0,0 +1,322 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open Home Automation Protocol (OHAP) server with asynchronous channels.
+ *
+ * <p>The connections are accepted, read and written with the completion handlers of
+ * {@link AsynchronousServerSocketChannel} and {@link AsynchronousSocketChannel}. The
+ * handlers run in the fixed thread pool of an {@link AsynchronousChannelGroup}, so
+ * there are no selector loops nor threads per connection.
+ *
+ * <p>A channel allows only one pending write, so each session queues its outgoing
+ * messages and writes all of them with one gathering write when the previous write
+ * completes. Messages are copied into the queue while holding the lock of the server.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class AsynchronousOhapServer extends OhapServer {
+	private static final int READ_BUFFER_SIZE = 4096;
+
+	private final AsynchronousChannelGroup channelGroup;
+	private final AsynchronousServerSocketChannel serverSocketChannel;
+	private final ScheduledExecutorService timer;
+
+	/**
+	 * Constructs a new server and starts accepting connections.
+	 *
+	 * @param socketAddress the address to listen
+	 * @param threadCount the amount of threads running the completion handlers
+	 */
+	public AsynchronousOhapServer(SocketAddress socketAddress, int threadCount) throws IOException {
+		channelGroup = AsynchronousChannelGroup.withFixedThreadPool(threadCount, Executors.defaultThreadFactory());
+		serverSocketChannel = AsynchronousServerSocketChannel.open(channelGroup);
+		serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		serverSocketChannel.bind(socketAddress, 1024);
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "AsynchronousOhapServer timer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		accept();
+	}
+
+	/**
+	 * Returns the channel group running the completion handlers.
+	 *
+	 * @return the channel group
+	 */
+	public AsynchronousChannelGroup getChannelGroup() {
+		return channelGroup;
+	}
+
+	/**
+	 * Stops accepting connections and closes all channels of the server.
+	 */
+	public void stop() {
+		timer.shutdownNow();
+		try {
+			channelGroup.shutdownNow();
+		} catch (IOException e) {
+		}
+	}
+
+	private void accept() {
+		serverSocketChannel.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+			public void completed(AsynchronousSocketChannel socketChannel, Void attachment) {
+				accept();
+				try {
+					socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+					new AsynchronousOhapSession(AsynchronousOhapServer.this, socketChannel).start();
+				} catch (IOException e) {
+					try {
+						socketChannel.close();
+					} catch (IOException e2) {
+					}
+				}
+			}
+
+			public void failed(Throwable exception, Void attachment) {
+				if (serverSocketChannel.isOpen()) {
+					System.err.println("Error: Exception when accepting: " + exception.getMessage());
+					accept();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs the server in the port 18004.
+	 *
+	 * <p>Usage: <code>AsynchronousOhapServer [thread-count]</code>, where the thread count
+	 * is the amount of threads running the completion handlers, by default the amount of cores.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		if (args.length > 0) {
+			try {
+				threadCount = Integer.parseInt(args[0]);
+			} catch (NumberFormatException e) {
+				threadCount = 0;
+			}
+			if (threadCount <= 0) {
+				System.err.println("Usage: AsynchronousOhapServer [thread-count]");
+				System.exit(1);
+			}
+		}
+
+		AsynchronousOhapServer ohapServer = new AsynchronousOhapServer(new InetSocketAddress(18004), threadCount);
+		ohapServer.getChannelGroup().awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+	}
+
+	private static class AsynchronousOhapSession extends OhapSession {
+		private final AsynchronousOhapServer server;
+		private final AsynchronousSocketChannel socketChannel;
+		private final FrameDecoder frameDecoder = new FrameDecoder();
+		private final FrameDecoder.Handler frameHandler = new FrameDecoder.Handler() {
+			public void handleFrames(FrameDecoder frameDecoder) {
+				handleMessages(frameDecoder);
+			}
+		};
+		private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+		private ByteBuffer[] writeBuffers;
+		private int writeQueueBytes;
+		private boolean writing;
+		private boolean closing;
+		private ScheduledFuture<?> idleTimer;
+
+		private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+			public void completed(Integer count, Void attachment) {
+				if (count < 0) {
+					readMessageFailed(new IOException("Connection closed by peer"));
+					return;
+				}
+
+				readBuffer.flip();
+				frameDecoder.decode(readBuffer, frameHandler);
+				if (isClosing())
+					return;
+
+				readBuffer.compact();
+				if (!readBuffer.hasRemaining()) {
+					ByteBuffer buffer = ByteBuffer.allocate(readBuffer.capacity() * 2);
+					readBuffer.flip();
+					buffer.put(readBuffer);
+					readBuffer = buffer;
+				}
+				read();
+			}
+
+			public void failed(Throwable exception, Void attachment) {
+				readMessageFailed(exception instanceof IOException ? (IOException)exception : new IOException(exception));
+			}
+		};
+
+		private final CompletionHandler<Long, Void> writeHandler = new CompletionHandler<Long, Void>() {
+			public void completed(Long count, Void attachment) {
+				synchronized (writeQueue) {
+					writeQueueBytes -= count;
+					while (!writeQueue.isEmpty() && !writeQueue.peekFirst().hasRemaining())
+						writeQueue.removeFirst();
+					writing = false;
+					writeQueued();
+				}
+			}
+
+			public void failed(Throwable exception, Void attachment) {
+				synchronized (writeQueue) {
+					writeQueue.clear();
+					writeQueueBytes = 0;
+					writing = false;
+					closing = true;
+				}
+				closeChannel();
+				writeMessageFailed(exception instanceof IOException ? (IOException)exception : new IOException(exception));
+			}
+		};
+
+		private final Runnable idleCheck = new Runnable() {
+			public void run() {
+				scheduleIdleCheck(checkIdle());
+			}
+		};
+
+		AsynchronousOhapSession(AsynchronousOhapServer server, AsynchronousSocketChannel socketChannel) throws IOException {
+			super(server, socketChannel.getRemoteAddress().toString());
+			this.server = server;
+			this.socketChannel = socketChannel;
+		}
+
+		void start() {
+			scheduleIdleCheck(checkIdle());
+			read();
+		}
+
+		protected void writeMessage(OutgoingMessage outgoingMessage, long conflationKey) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(outgoingMessage.length());
+			outgoingMessage.writeTo(buffer);
+			buffer.flip();
+			synchronized (writeQueue) {
+				if (closing)
+					throw new IOException("Session closed");
+
+				writeQueue.addLast(buffer);
+				writeQueueBytes += buffer.remaining();
+				writeQueued();
+			}
+		}
+
+		public int getQueueLength() {
+			synchronized (writeQueue) {
+				return writeQueue.size();
+			}
+		}
+
+		public int getQueueBytes() {
+			synchronized (writeQueue) {
+				return writeQueueBytes;
+			}
+		}
+
+		/**
+		 * Closes the channel after the queued messages have been written.
+		 */
+		protected void close() {
+			synchronized (writeQueue) {
+				if (closing)
+					return;
+
+				closing = true;
+				if (idleTimer != null)
+					idleTimer.cancel(false);
+				if (!writing)
+					closeChannel();
+			}
+		}
+
+		private boolean isClosing() {
+			synchronized (writeQueue) {
+				return closing;
+			}
+		}
+
+		private void read() {
+			try {
+				socketChannel.read(readBuffer, null, readHandler);
+			} catch (RuntimeException e) {
+				readMessageFailed(new IOException(e));
+			}
+		}
+
+		/**
+		 * Starts a gathering write of the whole queue unless a write is pending.
+		 * Called while holding the lock of the queue.
+		 */
+		private void writeQueued() {
+			if (writing)
+				return;
+
+			if (writeQueue.isEmpty()) {
+				if (closing)
+					closeChannel();
+				return;
+			}
+
+			writeBuffers = writeQueue.toArray(writeBuffers != null && writeBuffers.length >= writeQueue.size() ? writeBuffers : new ByteBuffer[writeQueue.size()]);
+			writing = true;
+			socketChannel.write(writeBuffers, 0, writeQueue.size(), 0, TimeUnit.MILLISECONDS, null, writeHandler);
+		}
+
+		private void scheduleIdleCheck(long delay) {
+			synchronized (writeQueue) {
+				if (delay >= 0 && !closing)
+					idleTimer = server.timer.schedule(idleCheck, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private void closeChannel() {
+			try {
+				socketChannel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+}
@@ -37,20 +37,34 @@ public class BinaryDevice extends Device {
 	}
 
 	public void outputMessage(OutgoingMessage outgoingMessage) {
-		outgoingMessage.integer8(type == Type.ACTUATOR ? OhapServer.MESSAGE_TYPE_BINARY_ACTUATOR : OhapServer.MESSAGE_TYPE_BINARY_SENSOR);
-		outputIdentifier(outgoingMessage);
-		outgoingMessage.binary8(value);
-		outputData(outgoingMessage);	
+		ItemMessage.writeBinaryDevice(outgoingMessage, type == Type.ACTUATOR, getIdentifier(), value);
+		outputDescriptor(outgoingMessage);
 	}
 	
 	public void changeValue(boolean value) {
 		this.value = value;
+		valueChanged();
+	}
+
+	void restoreValue(double value) {
+		this.value = value != 0;
+	}
+
+	public boolean isBinary() {
+		return true;
+	}
 
-		OutgoingMessage outgoingMessage = new OutgoingMessage();
+	public double getValueAsDecimal() {
+		return value ? 1 : 0;
+	}
+
+	public void outputValue(OutgoingMessage outgoingMessage, double value) {
+		outgoingMessage.binary8(value != 0);
+	}
+
+	public void outputChangedMessage(OutgoingMessage outgoingMessage, double value) {
 		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_BINARY_CHANGED);
 		outputIdentifier(outgoingMessage);
-		outgoingMessage.binary8(value);
-
-		getParent().sendToListeners(outgoingMessage);
+		outgoingMessage.binary8(value != 0);
 	}
 }
@@ -20,6 +20,7 @@
 
 package com.henrikhedberg.ohap;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.io.OutputStream;
 import java.io.IOException;
@@ -28,6 +29,12 @@ import java.io.IOException;
  * A container holding items. Inherits all common properties from the
  * {@link Item} base class.
  *
+ * <p>The value changes of the devices of a container are sent to its listeners
+ * immediately, or recorded and sent at the end of a batch of the server. The changes
+ * of a batch go in {@link OhapServer#MESSAGE_TYPE_VALUES_CHANGED} messages to the
+ * listeners with the capability, and as separate messages to the others. Each message
+ * is encoded once for all listeners.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
  * @version 1.1 (20160311)
  */
@@ -35,15 +42,21 @@ public class Container extends Item {
 	private OhapServer server;
 	private HashSet<Item> items = new HashSet<>();
 	private HashSet<OhapSession> listeners = new HashSet<>();
+	private OhapSession[] listenerArray = new OhapSession[0];
+	private Device[] changedDevices = new Device[16];
+	private double[] changedValues = new double[16];
+	private int changeCount;
+
+	/** Changes in one message, so that the longest message stays below 64 kilobytes. */
+	private static final int MAX_BATCH_CHANGES = 4096;
 
 	public Container(long identifier, String name, String description, boolean internal) {
 		super(identifier, name, description, internal);
 	}
 
 	public void outputMessage(OutgoingMessage outgoingMessage) {
-		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_CONTAINER);
-		outputIdentifier(outgoingMessage);
-		outputData(outgoingMessage);	
+		ItemMessage.writeContainer(outgoingMessage, getIdentifier());
+		outputDescriptor(outgoingMessage);
 	}
 
 	public void addItem(Item item) {
@@ -61,23 +74,148 @@ public class Container extends Item {
 			item.attachToServer(server);
 	}
 
+	/**
+	 * Returns the items of the container. Called while holding the lock of the server.
+	 *
+	 * @return the items
+	 */
+	Iterable<Item> getItems() {
+		return items;
+	}
+
 	public void addListener(OhapSession session) {
-		listeners.add(session);
+		if (listeners.add(session))
+			listenerArray = listeners.toArray(new OhapSession[listeners.size()]);
 		for (Item item: items) {
-			OutgoingMessage outgoingMessage = new OutgoingMessage();
+			OutgoingMessage outgoingMessage = session.createMessage();
 			item.outputMessage(outgoingMessage);
 			session.sendMessage(outgoingMessage);
 		}
 	}
 	
 	public void removeListener(OhapSession session) {
-		listeners.remove(session);
+		if (listeners.remove(session))
+			listenerArray = listeners.toArray(new OhapSession[listeners.size()]);
 	}
 	
 	void sendToListeners(OutgoingMessage outgoingMessage) {
-		OhapSession[] sessions = listeners.toArray(new OhapSession[listeners.size()]);
-		for (OhapSession session : sessions) {
-			session.sendMessage(outgoingMessage);
+		sendToListeners(outgoingMessage, -1);
+	}
+
+	/**
+	 * Sends the change of the given device, or records it with its current value if
+	 * the server is in a batch.
+	 */
+	void valueChanged(Device device) {
+		if (server != null)
+			server.deviceChanged(device);
+		if (server == null || !server.isBatching()) {
+			sendChange(device, device.getValueAsDecimal());
+			return;
+		}
+
+		if (changeCount == changedDevices.length) {
+			changedDevices = Arrays.copyOf(changedDevices, changeCount * 2);
+			changedValues = Arrays.copyOf(changedValues, changeCount * 2);
+		}
+		if (changeCount == 0)
+			server.containerChanged(this);
+		changedDevices[changeCount] = device;
+		changedValues[changeCount] = device.getValueAsDecimal();
+		changeCount++;
+	}
+
+	/**
+	 * Sends the changes recorded in the batch of the server.
+	 */
+	void sendChanges() {
+		if (changeCount == 1)
+			sendChange(changedDevices[0], changedValues[0]);
+		else if (listenerArray.length > 0)
+			sendBatch();
+		Arrays.fill(changedDevices, 0, changeCount, null);
+		changeCount = 0;
+	}
+
+	private void sendChange(Device device, double value) {
+		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		device.outputChangedMessage(outgoingMessage, value);
+		sendToListeners(outgoingMessage, device.getIdentifier());
+	}
+
+	/**
+	 * Sends the recorded changes in messages of at most {@link #MAX_BATCH_CHANGES} changes
+	 * to the listeners with the capability, and as separate messages in the original
+	 * order to the others. The identifiers of a batch must be ascending, so the changes are
+	 * sorted by identifier and then by their order, which keeps the repeated changes of
+	 * a device in order.
+	 */
+	private void sendBatch() {
+		long[] order = new long[changeCount];
+		for (int i = 0; i < changeCount; i++)
+			order[i] = changedDevices[i].getIdentifier() << 31 | i;
+		Arrays.sort(order);
+
+		OutgoingMessage[] batchMessages = new OutgoingMessage[(changeCount + MAX_BATCH_CHANGES - 1) / MAX_BATCH_CHANGES];
+		for (int b = 0; b < batchMessages.length; b++) {
+			int start = b * MAX_BATCH_CHANGES;
+			int end = Math.min(changeCount, start + MAX_BATCH_CHANGES);
+			OutgoingMessage batchMessage = new OutgoingMessage();
+			batchMessage.integer8(OhapServer.MESSAGE_TYPE_VALUES_CHANGED);
+			outputIdentifier(batchMessage);
+			batchMessage.integer16(end - start);
+			long previousIdentifier = 0;
+			for (int i = start; i < end; i++) {
+				int index = (int)(order[i] & 0x7fffffff);
+				Device device = changedDevices[index];
+				batchMessage.integerVar((device.getIdentifier() - previousIdentifier) << 1 | (device.isBinary() ? 1 : 0));
+				device.outputValue(batchMessage, changedValues[index]);
+				previousIdentifier = device.getIdentifier();
+			}
+			batchMessages[b] = batchMessage.freeze();
+		}
+
+		OutgoingMessage[] changeMessages = null;
+		for (OhapSession session : listenerArray) {
+			if (session.hasCapability(OhapServer.CAPABILITY_VALUES_CHANGED)) {
+				for (OutgoingMessage batchMessage : batchMessages)
+					session.sendMessage(batchMessage);
+				continue;
+			}
+
+			if (changeMessages == null) {
+				changeMessages = new OutgoingMessage[changeCount];
+				for (int i = 0; i < changeCount; i++) {
+					changeMessages[i] = new OutgoingMessage();
+					changedDevices[i].outputChangedMessage(changeMessages[i], changedValues[i]);
+					changeMessages[i].freeze();
+				}
+			}
+			for (int i = 0; i < changeCount; i++)
+				session.sendMessage(changeMessages[i], changedDevices[i].getIdentifier());
+		}
+
+		for (OutgoingMessage batchMessage : batchMessages)
+			batchMessage.release();
+		if (changeMessages != null)
+			for (OutgoingMessage changeMessage : changeMessages)
+				changeMessage.release();
+	}
+
+	/**
+	 * Sends the message to all listeners. A value change carries the identifier of the
+	 * changed item as the conflation key, so that a session with a congested connection
+	 * may replace the previous unsent change of the same item.
+	 *
+	 * <p>The message is encoded once and frozen, so the sessions share its bytes. The
+	 * listeners are iterated from an array that is replaced when they change, because
+	 * a session failing to send removes itself on the way.
+	 */
+	void sendToListeners(OutgoingMessage outgoingMessage, long conflationKey) {
+		outgoingMessage.freeze();
+		for (OhapSession session : listenerArray) {
+			session.sendMessage(outgoingMessage, conflationKey);
 		}
+		outgoingMessage.release();
 	}
 }
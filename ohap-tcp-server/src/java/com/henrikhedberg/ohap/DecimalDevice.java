@@ -45,21 +45,39 @@ public class DecimalDevice extends Device {
 	}
 
 	public void outputMessage(OutgoingMessage outgoingMessage) {
-		outgoingMessage.integer8(type == Type.ACTUATOR ? OhapServer.MESSAGE_TYPE_DECIMAL_ACTUATOR : OhapServer.MESSAGE_TYPE_DECIMAL_SENSOR);
-		outputIdentifier(outgoingMessage);
-		outgoingMessage.decimal64(value);
+		ItemMessage.writeDecimalDevice(outgoingMessage, type == Type.ACTUATOR, getIdentifier(), value);
+		outputDescriptor(outgoingMessage);
+	}
+
+	protected void encodeDescriptor(OutgoingMessage outgoingMessage) {
 		outputData(outgoingMessage);
-		outgoingMessage.decimal64(min).decimal64(max).text(unit).text(unitAbbreviation);
+		ItemMessage.writeDecimalData(outgoingMessage, min, max, unit, unitAbbreviation);
 	}
 	
 	public void changeValue(double value) {
 		this.value = value;
+		valueChanged();
+	}
+
+	void restoreValue(double value) {
+		this.value = value;
+	}
 
-		OutgoingMessage outgoingMessage = new OutgoingMessage();
+	public boolean isBinary() {
+		return false;
+	}
+
+	public double getValueAsDecimal() {
+		return value;
+	}
+
+	public void outputValue(OutgoingMessage outgoingMessage, double value) {
+		outgoingMessage.decimal64(value);
+	}
+
+	public void outputChangedMessage(OutgoingMessage outgoingMessage, double value) {
 		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_DECIMAL_CHANGED);
 		outputIdentifier(outgoingMessage);
 		outgoingMessage.decimal64(value);
-
-		getParent().sendToListeners(outgoingMessage);
 	}
 }
@@ -44,4 +44,51 @@ public abstract class Device extends Item {
 	public Type getType() {
 		return type;
 	}
+
+	/**
+	 * Returns whether the value is binary, which is told in the type bit of a change
+	 * in a {@link OhapServer#MESSAGE_TYPE_VALUES_CHANGED} message.
+	 *
+	 * @return true for a binary device
+	 */
+	public abstract boolean isBinary();
+
+	/**
+	 * Returns the current value as a decimal number, a binary value as 1 or 0, so that
+	 * the changes of all devices may be recorded alike.
+	 *
+	 * @return the current value
+	 */
+	public abstract double getValueAsDecimal();
+
+	/**
+	 * Appends the given value into the message.
+	 *
+	 * @param outgoingMessage the message to append to
+	 * @param value the value as returned by {@link #getValueAsDecimal()}
+	 */
+	public abstract void outputValue(OutgoingMessage outgoingMessage, double value);
+
+	/**
+	 * Appends the single change message of the given value.
+	 *
+	 * @param outgoingMessage the message to append to
+	 * @param value the value as returned by {@link #getValueAsDecimal()}
+	 */
+	public abstract void outputChangedMessage(OutgoingMessage outgoingMessage, double value);
+
+	/**
+	 * Sets the value restored from a saved state without telling the listeners.
+	 *
+	 * @param value the value as returned by {@link #getValueAsDecimal()}
+	 */
+	abstract void restoreValue(double value);
+
+	/**
+	 * Tells the listeners of the parent container about the new value, immediately
+	 * or at the end of the batch of the server.
+	 */
+	protected void valueChanged() {
+		getParent().valueChanged(this);
+	}
 }
@@ -0,0 +1,309 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.henrikhedberg.ohap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A snapshot of the device values of a server in a memory-mapped file, so that the
+ * values survive a restart. The values are copied only when a checkpoint is taken, so
+ * changing a value costs nothing extra.
+ *
+ * <p>The file holds two regions of the same fixed layout. A checkpoint is written into
+ * the region not holding the latest checkpoint, and its header is written last, so a
+ * crash during a checkpoint leaves the previous checkpoint intact. The region with the
+ * highest sequence number and a valid CRC is restored.
+ *
+ * <pre>
+ * region header (32 bytes)
+ *    magic                 int32
+ *    version               int32
+ *    sequence              int64
+ *    count                 int32
+ *    crc                   int32 (CRC-32 of the slots, the sequence, the count and the log position)
+ *    log-position          int64 (the last logged change included, 0 if none)
+ * slots (16 bytes each)
+ *    item-identifier       int64 (the highest bit set for a binary device)
+ *    value                 decimal64 (a binary value as 1 or 0)
+ * </pre>
+ *
+ * <p>A checkpoint has two steps. {@link #capture(Container)} copies the values of the
+ * devices into arrays while holding the lock of the server, so that the checkpoint
+ * is consistent, and {@link #checkpoint(long)} writes the copy into the file after the
+ * lock has been released, so that the sessions do not wait for the disk.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class DeviceSnapshot {
+	private static final int MAGIC = 0x4f48534e;
+	private static final int VERSION = 3;
+	private static final int HEADER_SIZE = 32;
+	private static final int SLOT_SIZE = 16;
+	private static final int MIN_CAPACITY = 1024;
+	private static final long FLAG_BINARY = 1L << 63;
+
+	/** The amount of slots copied into the file at a time. */
+	private static final int CHUNK_SLOTS = 256;
+
+	private final File file;
+	private MappedByteBuffer mappedBuffer;
+	private int capacity;
+	private int latestRegion = -1;
+	private long latestSequence;
+	private long latestLogPosition;
+
+	private long[] capturedIdentifiers = new long[MIN_CAPACITY];
+	private double[] capturedValues = new double[MIN_CAPACITY];
+	private int capturedCount;
+
+	private final byte[] chunk = new byte[CHUNK_SLOTS * SLOT_SIZE];
+	private final ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Opens a snapshot file. The file is created on the first checkpoint if it does
+	 * not exist.
+	 *
+	 * @param file the snapshot file
+	 * @throws IOException if an existing file can not be mapped
+	 */
+	public DeviceSnapshot(File file) throws IOException {
+		this.file = file;
+
+		if (file.exists() && file.length() >= 2 * (HEADER_SIZE + SLOT_SIZE)) {
+			map(file, (int)((file.length() / 2 - HEADER_SIZE) / SLOT_SIZE));
+			for (int region = 0; region < 2; region++) {
+				long sequence = validSequence(region);
+				if (sequence > latestSequence) {
+					latestSequence = sequence;
+					latestRegion = region;
+					latestLogPosition = mappedBuffer.getLong(regionOffset(region) + 24);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Restores the values of the latest valid checkpoint into the devices of the server
+	 * in one sequential pass over the file. The listeners are not told. Devices not
+	 * found in the server or of a different value type are skipped. Called while holding
+	 * the lock of the server, or before the server is serving.
+	 *
+	 * @param server the server of which devices are restored
+	 * @return the amount of restored devices
+	 */
+	public int restore(OhapServer server) {
+		if (latestRegion == -1)
+			return 0;
+
+		ByteBuffer buffer = mappedBuffer.duplicate();
+		int offset = regionOffset(latestRegion);
+		int count = buffer.getInt(offset + 16);
+		buffer.position(offset + HEADER_SIZE);
+
+		int restored = 0;
+		for (int i = 0; i < count; i++) {
+			long identifier = buffer.getLong();
+			double value = buffer.getDouble();
+
+			Item item = server.getItemByIdentifier(identifier & ~FLAG_BINARY);
+			if (item instanceof Device && ((Device)item).isBinary() == ((identifier & FLAG_BINARY) != 0)) {
+				((Device)item).restoreValue(value);
+				restored++;
+			}
+		}
+
+		return restored;
+	}
+
+	/**
+	 * Returns the log position recorded in the latest valid checkpoint.
+	 *
+	 * @return the log position, or 0 if there is no checkpoint or no log was used
+	 */
+	public long getLogPosition() {
+		return latestLogPosition;
+	}
+
+	/**
+	 * Copies the current values of all devices under the given container for the next
+	 * {@link #checkpoint(long)}. Called while holding the lock of the server.
+	 *
+	 * @param root the container of the devices, usually the root container
+	 * @return the amount of copied devices
+	 */
+	public int capture(Container root) {
+		capturedCount = 0;
+		ArrayDeque<Container> containers = new ArrayDeque<>();
+		containers.push(root);
+		while (!containers.isEmpty()) {
+			for (Item item : containers.pop().getItems()) {
+				if (item instanceof Container) {
+					containers.push((Container)item);
+					continue;
+				}
+
+				Device device = (Device)item;
+				if (capturedCount == capturedIdentifiers.length) {
+					capturedIdentifiers = Arrays.copyOf(capturedIdentifiers, capturedCount * 2);
+					capturedValues = Arrays.copyOf(capturedValues, capturedCount * 2);
+				}
+				capturedIdentifiers[capturedCount] = device.isBinary() ? device.getIdentifier() | FLAG_BINARY : device.getIdentifier();
+				capturedValues[capturedCount] = device.getValueAsDecimal();
+				capturedCount++;
+			}
+		}
+
+		return capturedCount;
+	}
+
+	/**
+	 * Writes the values copied by the last {@link #capture(Container)} as a new checkpoint.
+	 * The file is grown when the devices do not fit into it.
+	 *
+	 * @param logPosition the log position of the last change included in the values, or 0
+	 * @throws IOException if the file can not be grown
+	 */
+	public void checkpoint(long logPosition) throws IOException {
+		if (mappedBuffer == null || capturedCount > capacity) {
+			// a new file is built beside the old one and renamed over it when complete
+			File newFile = new File(file.getPath() + ".tmp");
+			newFile.delete();
+			map(newFile, Math.max(MIN_CAPACITY, capturedCount + capturedCount / 2));
+			latestRegion = -1;
+			writeRegion(0, logPosition);
+			if (!newFile.renameTo(file))
+				throw new IOException("Unable to replace snapshot file " + file);
+			return;
+		}
+
+		writeRegion(latestRegion == 0 ? 1 : 0, logPosition);
+	}
+
+	/**
+	 * Releases the mapped file. The snapshot must not be used after this.
+	 */
+	public void close() {
+		mappedBuffer = null;
+		capturedIdentifiers = null;
+		capturedValues = null;
+	}
+
+	private void writeRegion(int region, long logPosition) {
+		ByteBuffer buffer = mappedBuffer.duplicate();
+		int offset = regionOffset(region);
+		long sequence = latestSequence + 1;
+
+		// invalidate the region before writing its slots
+		buffer.putInt(offset, 0);
+		buffer.position(offset + HEADER_SIZE);
+
+		crc.reset();
+		chunkBuffer.clear();
+		for (int i = 0; i < capturedCount; i++) {
+			chunkBuffer.putLong(capturedIdentifiers[i]).putDouble(capturedValues[i]);
+			if (!chunkBuffer.hasRemaining())
+				flushChunk(buffer);
+		}
+		flushChunk(buffer);
+		updateCrc(sequence, capturedCount, logPosition);
+		mappedBuffer.force();
+
+		// the header is written last, so the checkpoint becomes valid only when complete
+		buffer.putInt(offset + 4, VERSION);
+		buffer.putLong(offset + 8, sequence);
+		buffer.putInt(offset + 16, capturedCount);
+		buffer.putInt(offset + 20, (int)crc.getValue());
+		buffer.putLong(offset + 24, logPosition);
+		buffer.putInt(offset, MAGIC);
+		mappedBuffer.force();
+
+		latestRegion = region;
+		latestSequence = sequence;
+		latestLogPosition = logPosition;
+	}
+
+	private void flushChunk(ByteBuffer buffer) {
+		int length = chunkBuffer.position();
+		buffer.put(chunk, 0, length);
+		crc.update(chunk, 0, length);
+		chunkBuffer.clear();
+	}
+
+	private void updateCrc(long sequence, int count, long logPosition) {
+		chunkBuffer.clear();
+		chunkBuffer.putLong(sequence).putInt(count).putLong(logPosition);
+		crc.update(chunk, 0, chunkBuffer.position());
+		chunkBuffer.clear();
+	}
+
+	/**
+	 * Checks the header and the CRC of a region.
+	 *
+	 * @return the sequence number of the region, or 0 if the region is not valid
+	 */
+	private long validSequence(int region) {
+		ByteBuffer buffer = mappedBuffer.duplicate();
+		int offset = regionOffset(region);
+		if (buffer.getInt(offset) != MAGIC || buffer.getInt(offset + 4) != VERSION)
+			return 0;
+
+		long sequence = buffer.getLong(offset + 8);
+		int count = buffer.getInt(offset + 16);
+		if (count < 0 || count > capacity)
+			return 0;
+
+		crc.reset();
+		buffer.position(offset + HEADER_SIZE);
+		int remaining = count * SLOT_SIZE;
+		while (remaining > 0) {
+			int length = Math.min(remaining, chunk.length);
+			buffer.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+			remaining -= length;
+		}
+		updateCrc(sequence, count, buffer.getLong(offset + 24));
+
+		return (int)crc.getValue() == buffer.getInt(offset + 20) ? sequence : 0;
+	}
+
+	private void map(File mappedFile, int capacity) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(mappedFile, "rw")) {
+			long size = 2L * (HEADER_SIZE + (long)capacity * SLOT_SIZE);
+			randomAccessFile.setLength(size);
+			// the mapping stays valid after the file has been closed
+			mappedBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			this.capacity = capacity;
+		}
+	}
+
+	private int regionOffset(int region) {
+		return region * (HEADER_SIZE + capacity * SLOT_SIZE);
+	}
+}
@@ -0,0 +1,157 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits received bytes into OHAP frames and hands all the complete frames of one
+ * read to a {@link Handler} as a batch.
+ *
+ * <p>The handler takes the frames with {@link #next()}, which wraps each of them into
+ * the same {@link IncomingMessage} without copying. A frame is valid only until the
+ * next call. The bytes of an incomplete frame are kept until the rest of it arrives,
+ * either in the buffer given to {@link #decode(ByteBuffer, Handler)} or, when the
+ * buffer is shared by several connections, with {@link #save(ByteBuffer)} and
+ * {@link #restore(ByteBuffer)}.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20160320)
+ */
+public class FrameDecoder {
+	private final IncomingMessage incomingMessage = new IncomingMessage();
+	private ByteBuffer input;
+	private ByteBuffer pendingBuffer;
+	private ByteBuffer streamBuffer;
+
+	/**
+	 * Hands the complete frames of the given buffer to the handler as one batch. The
+	 * buffer is read from its position to its limit, and its position is left at the
+	 * first byte of an incomplete frame, if any.
+	 *
+	 * @param buffer the received bytes
+	 * @param handler the handler taking the frames
+	 */
+	public void decode(ByteBuffer buffer, Handler handler) {
+		input = buffer;
+		try {
+			handler.handleFrames(this);
+		} finally {
+			input = null;
+		}
+	}
+
+	/**
+	 * Reads the bytes available in the given stream without blocking and hands the
+	 * complete frames to the handler as one batch. An incomplete frame is kept inside
+	 * the decoder.
+	 *
+	 * @param inputStream the stream to read from
+	 * @param handler the handler taking the frames
+	 * @throws IOException if an operation on the given stream throws an exception
+	 */
+	public void decode(InputStream inputStream, Handler handler) throws IOException {
+		if (streamBuffer == null)
+			streamBuffer = ByteBuffer.allocate(1024);
+
+		int available = inputStream.available();
+		if (available > streamBuffer.remaining()) {
+			ByteBuffer buffer = ByteBuffer.allocate(Math.max(streamBuffer.position() + available, streamBuffer.capacity() * 2));
+			streamBuffer.flip();
+			buffer.put(streamBuffer);
+			streamBuffer = buffer;
+		}
+		if (available > 0) {
+			int got = inputStream.read(streamBuffer.array(), streamBuffer.arrayOffset() + streamBuffer.position(), available);
+			if (got == -1)
+				throw new EOFException("End of message input.");
+			streamBuffer.position(streamBuffer.position() + got);
+		}
+
+		streamBuffer.flip();
+		try {
+			decode(streamBuffer, handler);
+		} finally {
+			streamBuffer.compact();
+		}
+	}
+
+	/**
+	 * Takes the next complete frame of the current batch.
+	 *
+	 * @return the frame, or null if there are no more complete frames
+	 */
+	public IncomingMessage next() {
+		if (input != null && incomingMessage.readFromNB(input))
+			return incomingMessage;
+
+		return null;
+	}
+
+	/**
+	 * Keeps the remaining bytes of the given buffer, an incomplete frame, so that
+	 * the buffer can be used for other connections before the rest of the frame arrives.
+	 *
+	 * @param buffer the buffer after {@link #decode(ByteBuffer, Handler)}
+	 */
+	public void save(ByteBuffer buffer) {
+		if (!buffer.hasRemaining())
+			return;
+
+		if (pendingBuffer == null || pendingBuffer.capacity() < buffer.remaining())
+			pendingBuffer = ByteBuffer.allocate(Math.max(256, buffer.remaining()));
+		pendingBuffer.put(buffer);
+	}
+
+	/**
+	 * Clears the given buffer and puts the bytes kept by {@link #save(ByteBuffer)} to
+	 * its start, so that the next read continues the incomplete frame.
+	 *
+	 * @param buffer the buffer to read into next
+	 */
+	public void restore(ByteBuffer buffer) {
+		buffer.clear();
+		if (pendingBuffer != null && pendingBuffer.position() > 0) {
+			pendingBuffer.flip();
+			buffer.put(pendingBuffer);
+			pendingBuffer.clear();
+		}
+	}
+
+	/**
+	 * An interface to take the complete frames of a batch.
+	 *
+	 * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+	 * @version 1.0 (20160320)
+	 */
+	public static interface Handler {
+		/**
+		 * Called once for each batch. The handler takes the frames with
+		 * {@link FrameDecoder#next()} until it returns null or the handler stops.
+		 *
+		 * @param frameDecoder the decoder holding the batch
+		 */
+		public void handleFrames(FrameDecoder frameDecoder);
+	}
+}
@@ -23,6 +23,7 @@ package com.henrikhedberg.ohap;
 import com.henrikhedberg.hbdp.server.*;
 import com.sun.net.httpserver.*;
 import java.net.InetSocketAddress;
+import com.henrikhedberg.util.DrainReport;
 import com.henrikhedberg.util.InputStreamHandler;
 import java.io.OutputStream;
 import java.io.InputStream;
@@ -33,6 +34,9 @@ import java.io.IOException;
  * <p>The implementation relies on the {@link HbdpServer} and
  * the <code>com.sun.new.httpserver</code> package.
  *
+ * <p>When the process is terminated, the server is drained: every client gets
+ * a logout and may take the remaining bytes before the sessions are ended.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
  * @version 1.0 (20160312)
  */
@@ -52,18 +56,50 @@ public class HbdpOhapServer extends OhapServer {
 		return hbdpServer;
 	}
 
+	/**
+	 * Drains the server: refuses new sessions, logs every session out with the given
+	 * reason, waits until the clients have taken the remaining messages or the timeout
+	 * has elapsed, and ends the sessions.
+	 *
+	 * @param reason the reason sent in the logout messages
+	 * @param timeout milliseconds to wait for the clients to take the messages
+	 * @return the numbers of drained and aborted sessions and the bytes written
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public DrainReport drain(final String reason, long timeout) throws InterruptedException {
+		return hbdpServer.drain(new Runnable() {
+			public void run() {
+				logoutSessions(reason);
+			}
+		}, timeout);
+	}
+
 	public static void main(String[] args) throws IOException {
-		HttpServer httpServer = HttpServer.create(new InetSocketAddress(18000), 10);
+		final HttpServer httpServer = HttpServer.create(new InetSocketAddress(18000), 10);
 		HttpContext httpContext = httpServer.createContext("/");
-		HbdpOhapServer ohapServer = new HbdpOhapServer(httpContext);
+		final HbdpOhapServer ohapServer = new HbdpOhapServer(httpContext);
 		httpServer.setExecutor(null);
 		httpServer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					System.out.println(ohapServer.drain("Server shutting down", DRAIN_TIMEOUT));
+				} catch (InterruptedException e) {
+				}
+				httpServer.stop(0);
+			}
+		});
 	}
 	
 	private static class HbdpOhapSession extends OhapSession {
 		private InputStream inputStream;
 		private OutputStream outputStream;
-		private IncomingMessage incomingMessage = new IncomingMessage();;
+		private FrameDecoder frameDecoder = new FrameDecoder();
+		private final FrameDecoder.Handler frameHandler = new FrameDecoder.Handler() {
+			public void handleFrames(FrameDecoder frameDecoder) {
+				handleMessages(frameDecoder);
+			}
+		};
 
 		HbdpOhapSession(OhapServer server, HbdpConnection connection) {
 			super(server, connection.getIdentifier());
@@ -72,8 +108,7 @@ public class HbdpOhapServer extends OhapServer {
 			connection.setInputStreamHandler(new InputStreamHandler() {
 				public void handle(InputStream inputStream) {
 					try {
-						if (incomingMessage.readFromNB(inputStream))
-							handleMessage(incomingMessage);
+						frameDecoder.decode(inputStream, frameHandler);
 					} catch (IOException e) {
 						readMessageFailed(e);
 					}
@@ -81,7 +116,7 @@ public class HbdpOhapServer extends OhapServer {
 			});
 		}
 
-		protected void writeMessage(OutgoingMessage outgoingMessage) throws IOException {
+		protected void writeMessage(OutgoingMessage outgoingMessage, long conflationKey) throws IOException {
 			outgoingMessage.writeTo(outputStream);
 		}
 		
@@ -30,17 +30,28 @@ import java.nio.ByteBuffer;
  * Parses an incoming OHAP message.
  *
  * <p>Call either {@link #readFrom(InputStream)} or {@link #readFromNB(InputStream)} to
- * read a message from an {@link InputStream} or @{link #readFrom(ByteBuffer) to read
+ * read a message from an {@link InputStream} or {@link #readFromNB(ByteBuffer)} to take
  * a message from a {@link ByteBuffer}. Then, use {@link #integer8()},
  * {@link #integer16()}, {@link #integer32()}, {@link #decimal64()}, {@link #allBytes(byte[])},
- * {@link #binary8()}, and {@link #text()} sequentially to take parsed values.
+ * {@link #binary8()}, {@link #text()} and {@link #skipText()} sequentially to take parsed values.
+ *
+ * <p>The message is a flyweight over the bytes it was read from: the values are taken
+ * with absolute gets from the backing buffer, and nothing is copied nor allocated for
+ * the fixed-size fields. A text is decoded only when {@link #text()} is called. A message
+ * taken from a {@link ByteBuffer} is valid only until the bytes of the buffer are
+ * overwritten, so it must be handled before reading more into the buffer. Messages read
+ * from an {@link InputStream} are kept in an internal buffer that is reused.
  *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.1 (20160320)
+ * @version 1.2 (20160320)
  */
 public class IncomingMessage {
-	private byte[] buffer;
+	private ByteBuffer buffer;
 	private int position;
+	private int limit;
+	private byte[] streamBytes = new byte[256];
+	private ByteBuffer streamBuffer = ByteBuffer.wrap(streamBytes);
+	private byte[] textBytes;
 	private int nbLength = -1;
 	private final Charset charset = Charset.forName("UTF-8");
 
@@ -52,12 +63,8 @@ public class IncomingMessage {
 	 * @throws IOException if an operation on the given stream throws an exception
 	 */
 	public void readFrom(InputStream inputStream) throws IOException {
-		buffer = readExactly(inputStream, 2);
-		position = 0;
-		int length = integer16();
-
-		buffer = readExactly(inputStream, length);
-		position = 0;
+		readExactly(inputStream, 2);
+		readExactly(inputStream, (streamBytes[0] & 0xff) << 8 | (streamBytes[1] & 0xff));
 	}
 
 	/**
@@ -77,50 +84,80 @@ public class IncomingMessage {
 			if (inputStream.available() < 2)
 				return false;
 
-			buffer = readExactly(inputStream, 2);
-			position = 0;
-			nbLength = integer16();
+			readExactly(inputStream, 2);
+			nbLength = (streamBytes[0] & 0xff) << 8 | (streamBytes[1] & 0xff);
 		}
 	
 		if (inputStream.available() < nbLength)
 			return false;
 
-		buffer = readExactly(inputStream, nbLength);
-		position = 0;
+		readExactly(inputStream, nbLength);
 		nbLength = -1;
 
 		return true;
 	}
 
 	/**
-	 * Tries to read one message from the given {@link ByteBuffer}. If
-	 * the message is fully read, returns true. If the message is not
-	 * fully available yet, does not block but returns false. In that
-	 * case, the message may be partially taken from the buffer.
+	 * Tries to take one message from the given {@link ByteBuffer}, which must be in
+	 * the default big-endian order. If the message is fully available, wraps it without
+	 * copying, advances the position of the buffer past it and returns true. Otherwise,
+	 * leaves the buffer untouched and returns false.
 	 *
 	 * @param byteBuffer the buffer to read from
-	 * @return whether the message was fully read
+	 * @return whether the message was fully available
 	 */
 	public boolean readFromNB(ByteBuffer byteBuffer) {
-		if (nbLength == -1) {
-			if (byteBuffer.remaining() < 2)
-				return false;
-
-			buffer = readExactly(byteBuffer, 2);
-			position = 0;
-			nbLength = integer16();
-		}
+		int start = byteBuffer.position();
+		if (byteBuffer.limit() - start < 2)
+			return false;
 
-		if (byteBuffer.remaining() < nbLength)
+		int length = byteBuffer.getShort(start) & 0xffff;
+		if (byteBuffer.limit() - start - 2 < length)
 			return false;
 
-		buffer = readExactly(byteBuffer, nbLength);
-		position = 0;
-		nbLength = -1;
+		buffer = byteBuffer;
+		position = start + 2;
+		limit = position + length;
+		byteBuffer.position(limit);
 
 		return true;
 	}
 
+	/**
+	 * Makes the given bytes of the buffer the current message. The bytes have no
+	 * length field, like the content of a decompressed message.
+	 *
+	 * @param byteBuffer the buffer holding the content
+	 * @param offset the index of the first byte of the content
+	 * @param length the length of the content
+	 */
+	public void wrap(ByteBuffer byteBuffer, int offset, int length) {
+		buffer = byteBuffer;
+		position = offset;
+		limit = offset + length;
+	}
+
+	/**
+	 * Returns the number of bytes that have not been taken yet.
+	 *
+	 * @return remaining bytes
+	 */
+	public int remaining() {
+		return limit - position;
+	}
+
+	/**
+	 * Returns the bytes of the message that have not been taken yet as a new view.
+	 * The message itself is not advanced.
+	 *
+	 * @return the remaining bytes
+	 */
+	public ByteBuffer content() {
+		ByteBuffer content = buffer.duplicate();
+		content.limit(limit).position(position);
+		return content;
+	}
+
 	/**
 	 * Takes the next unsigned 8-bit integer from the message.
 	 *
@@ -128,10 +165,10 @@ public class IncomingMessage {
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public int integer8() {
-		if (position + 1 > buffer.length)
+		if (position + 1 > limit)
 			throw new ArrayIndexOutOfBoundsException();
 
-		int value = buffer[position] & 0xff;
+		int value = buffer.get(position) & 0xff;
 		position += 1;
 
 		return value;
@@ -144,11 +181,10 @@ public class IncomingMessage {
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public int integer16() {
-		if (position + 2 > buffer.length)
+		if (position + 2 > limit)
 			throw new ArrayIndexOutOfBoundsException();
 
-		int value = (buffer[position] & 0xff) << 8 |
-					(buffer[position + 1] & 0xff);
+		int value = buffer.getShort(position) & 0xffff;
 		position += 2;
 
 		return value;
@@ -161,13 +197,10 @@ public class IncomingMessage {
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public long integer32() {
-		if (position + 4 > buffer.length)
+		if (position + 4 > limit)
 			throw new ArrayIndexOutOfBoundsException();
 
-		long value = (buffer[position] & 0xffL) << 24 |
-					 (buffer[position + 1] & 0xffL) << 16 |
-					 (buffer[position + 2] & 0xffL) << 8 |
-					 (buffer[position + 3] &0xffL);
+		long value = buffer.getInt(position) & 0xffffffffL;
 		position += 4;
 
 		return value;
@@ -180,20 +213,13 @@ public class IncomingMessage {
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public double decimal64() {
-		if (position + 8 > buffer.length)
+		if (position + 8 > limit)
 			throw new ArrayIndexOutOfBoundsException();
 
-		long value = (buffer[position] & 0xffL) << 56 |
-				(buffer[position + 1] & 0xffL) << 48 |
-				(buffer[position + 2] & 0xffL) << 40 |
-				(buffer[position + 3] & 0xffL) << 32 |
-				(buffer[position + 4] & 0xffL) << 24 |
-				(buffer[position + 5] & 0xffL) << 16 |
-				(buffer[position + 6] & 0xffL) << 8 |
-				(buffer[position + 7] &0xffL);
+		double value = buffer.getDouble(position);
 		position += 8;
 
-		return Double.longBitsToDouble(value);
+		return value;
 	}
 
 	/**
@@ -204,11 +230,7 @@ public class IncomingMessage {
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public void allBytes(byte[] bytes) {
-		if (position + bytes.length > buffer.length)
-			throw new ArrayIndexOutOfBoundsException();
-
-		System.arraycopy(buffer, position, bytes, 0, bytes.length);
-		position += bytes.length;
+		allBytes(bytes, bytes.length);
 	}
 
 	/**
@@ -225,39 +247,72 @@ public class IncomingMessage {
 	}
 
 	/**
-	 * Treats the next bytes as text and takes it from the message.
+	 * Treats the next bytes as text and takes it from the message. The text is decoded
+	 * straight from the backing array when the buffer has one.
 	 *
 	 * @return text
 	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
 	 */
 	public String text() {
 		int length = integer16();
-		byte[] bytes = new byte[length];
-		allBytes(bytes);
+		if (buffer.hasArray()) {
+			if (position + length > limit)
+				throw new ArrayIndexOutOfBoundsException();
+
+			String text = new String(buffer.array(), buffer.arrayOffset() + position, length, charset);
+			position += length;
+			return text;
+		}
+
+		if (textBytes == null || textBytes.length < length)
+			textBytes = new byte[Math.max(64, length)];
+		allBytes(textBytes, length);
 
-		return new String(bytes, charset);
+		return new String(textBytes, 0, length, charset);
 	}
 
-	private static byte[] readExactly(InputStream inputStream, int length) throws IOException {
-		byte[] bytes = new byte[length];
+	/**
+	 * Skips the next text without decoding it.
+	 *
+	 * @throws ArrayIndexOutOfBoundsException if there are not enough bytes left
+	 */
+	public void skipText() {
+		int length = integer16();
+		if (position + length > limit)
+			throw new ArrayIndexOutOfBoundsException();
+
+		position += length;
+	}
+
+	private void allBytes(byte[] bytes, int length) {
+		if (position + length > limit)
+			throw new ArrayIndexOutOfBoundsException();
+
+		for (int i = 0; i < length; i++)
+			bytes[i] = buffer.get(position + i);
+		position += length;
+	}
+
+	/**
+	 * Reads exactly the given amount of bytes into the start of the internal buffer,
+	 * growing it if needed, and makes them the current message.
+	 */
+	private void readExactly(InputStream inputStream, int length) throws IOException {
+		if (streamBytes.length < length) {
+			streamBytes = new byte[Math.max(length, streamBytes.length * 2)];
+			streamBuffer = ByteBuffer.wrap(streamBytes);
+		}
 
 		int offset = 0;
-		while (length > 0) {
-			int got = inputStream.read(bytes, offset, length);
+		while (offset < length) {
+			int got = inputStream.read(streamBytes, offset, length - offset);
 			if (got == -1)
 				throw new EOFException("End of message input.");
 			offset += got;
-			length -= got;
 		}
 
-		return bytes;
-	}
-
-	private static byte[] readExactly(ByteBuffer byteBuffer, int length) {
-		byte[] bytes = new byte[length];
-
-		byteBuffer.get(bytes);
-
-		return bytes;
+		buffer = streamBuffer;
+		position = 0;
+		limit = length;
 	}
 }
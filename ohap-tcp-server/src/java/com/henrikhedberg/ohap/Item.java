@@ -32,6 +32,7 @@ public abstract class Item {
 	private String name;
 	private String description;
 	private boolean internal;
+	private byte[] descriptor;
 
 	public Item(long identifier, String name, String description, boolean internal) {
 		this.identifier = identifier;
@@ -50,14 +51,42 @@ public abstract class Item {
 
 	public abstract void outputMessage(OutgoingMessage outgoingMessage);
 
+	/**
+	 * Appends the part of the item message following the value: the common
+	 * properties and those of the subclass. The part is encoded once and cached
+	 * until {@link #invalidateDescriptor()}, because every session gets it when
+	 * logging in or starting to listen the parent container.
+	 *
+	 * @param outgoingMessage the message to append to
+	 */
+	protected void outputDescriptor(OutgoingMessage outgoingMessage) {
+		if (descriptor == null) {
+			OutgoingMessage encodedMessage = new OutgoingMessage();
+			encodeDescriptor(encodedMessage);
+			descriptor = encodedMessage.toByteArray();
+		}
+		outgoingMessage.allBytes(descriptor);
+	}
+
+	/**
+	 * Encodes the part cached by {@link #outputDescriptor(OutgoingMessage)}.
+	 * A subclass with more properties appends them after the common ones.
+	 *
+	 * @param outgoingMessage the message to append to
+	 */
+	protected void encodeDescriptor(OutgoingMessage outgoingMessage) {
+		outputData(outgoingMessage);
+	}
+
+	/**
+	 * Drops the cached descriptor. Called whenever a property in it changes.
+	 */
+	protected void invalidateDescriptor() {
+		descriptor = null;
+	}
+
 	public void outputData(OutgoingMessage outgoingMessage) {
-		if (parent != null)
-			parent.outputIdentifier(outgoingMessage);
-		else
-			outgoingMessage.integer32(0);
-		outgoingMessage.text(name)
-			       .text(description)
-			       .binary8(internal);
+		ItemMessage.writeItemData(outgoingMessage, parent != null ? parent.getIdentifier() : 0, name, description, internal);
 	}
 	
 	public Container getParent() {
@@ -69,6 +98,7 @@ public abstract class Item {
 			throw new IllegalStateException("Item has already parent.");
 
 		this.parent = parent;
+		invalidateDescriptor();
 	}
 
 	protected void attachToServer(OhapServer server) {
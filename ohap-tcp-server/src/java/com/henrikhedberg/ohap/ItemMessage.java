@@ -0,0 +1,141 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.henrikhedberg.ohap;
+
+/**
+ * The layout of the item messages, that is the device and container messages,
+ * as described by <code>com.opimobi.ohap.message.ItemMessage</code> of the client.
+ * The item classes encode their messages only through these methods, so that the
+ * field order is written out in one place and matches the decoder of the client.
+ *
+ * <p>The layout of an item message is:
+ * <pre>
+ *    message-type                  int8
+ *    item-identifier               int32
+ *    value                         decimal64 or binary8 (devices only)
+ *    item-data-parent-identifier   int32
+ *    item-data-name                text
+ *    item-data-description         text
+ *    item-data-internal            binary8
+ *    decimal-min                   decimal64 (decimal devices only)
+ *    decimal-max                   decimal64 (decimal devices only)
+ *    decimal-unit                  text (decimal devices only)
+ *    decimal-abbreviation          text (decimal devices only)
+ * </pre>
+ *
+ * <p>The device message types are laid out so that bit 0 tells an actuator from
+ * a sensor and bit 1 a binary device from a decimal one, so the type is computed
+ * without a switch.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public final class ItemMessage {
+	private ItemMessage() {
+	}
+
+	/**
+	 * Returns the device message type for the given device properties.
+	 *
+	 * @param actuator whether the device is an actuator
+	 * @param decimal whether the device has a decimal value
+	 * @return the device message type
+	 */
+	public static int deviceType(boolean actuator, boolean decimal) {
+		return OhapServer.MESSAGE_TYPE_DECIMAL_SENSOR | (decimal ? 0 : 0x02) | (actuator ? 0x01 : 0);
+	}
+
+	/**
+	 * Encodes the fields of a decimal device message preceding the item data.
+	 *
+	 * @param outgoingMessage the message to append to
+	 * @param actuator whether the device is an actuator
+	 * @param identifier the identifier of the device
+	 * @param value the value of the device
+	 * @return the given message
+	 */
+	public static OutgoingMessage writeDecimalDevice(OutgoingMessage outgoingMessage, boolean actuator, long identifier, double value) {
+		return outgoingMessage.integer8(deviceType(actuator, true))
+				      .integer32(identifier)
+				      .decimal64(value);
+	}
+
+	/**
+	 * Encodes the fields of a binary device message preceding the item data.
+	 *
+	 * @param outgoingMessage the message to append to
+	 * @param actuator whether the device is an actuator
+	 * @param identifier the identifier of the device
+	 * @param value the value of the device
+	 * @return the given message
+	 */
+	public static OutgoingMessage writeBinaryDevice(OutgoingMessage outgoingMessage, boolean actuator, long identifier, boolean value) {
+		return outgoingMessage.integer8(deviceType(actuator, false))
+				      .integer32(identifier)
+				      .binary8(value);
+	}
+
+	/**
+	 * Encodes the fields of a container message preceding the item data.
+	 *
+	 * @param outgoingMessage the message to append to
+	 * @param identifier the identifier of the container
+	 * @return the given message
+	 */
+	public static OutgoingMessage writeContainer(OutgoingMessage outgoingMessage, long identifier) {
+		return outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_CONTAINER)
+				      .integer32(identifier);
+	}
+
+	/**
+	 * Encodes the item data common to all item messages, that is the fields
+	 * following the item identifier and value.
+	 *
+	 * @param outgoingMessage the message to append to
+	 * @param parentIdentifier the identifier of the parent container, or 0
+	 * @param name the name of the item
+	 * @param description the description of the item
+	 * @param internal whether the item is internal
+	 * @return the given message
+	 */
+	public static OutgoingMessage writeItemData(OutgoingMessage outgoingMessage, long parentIdentifier, String name, String description, boolean internal) {
+		return outgoingMessage.integer32(parentIdentifier)
+				      .text(name)
+				      .text(description)
+				      .binary8(internal);
+	}
+
+	/**
+	 * Encodes the decimal device data following the item data.
+	 *
+	 * @param outgoingMessage the message to append to
+	 * @param min the minimum value of the device
+	 * @param max the maximum value of the device
+	 * @param unit the unit of the device value
+	 * @param abbreviation the abbreviation of the unit
+	 * @return the given message
+	 */
+	public static OutgoingMessage writeDecimalData(OutgoingMessage outgoingMessage, double min, double max, String unit, String abbreviation) {
+		return outgoingMessage.decimal64(min)
+				      .decimal64(max)
+				      .text(unit)
+				      .text(abbreviation);
+	}
+}
@@ -0,0 +1,173 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.henrikhedberg.ohap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * The compression context of a session using the compressed protocol version 2.
+ *
+ * <p>After the login message, the content of each message is compressed as a raw
+ * DEFLATE stream and framed with the length of the compressed content. The most recent
+ * message content in each direction is the preset dictionary of the next message, so
+ * the texts repeated across messages, like the units and descriptions of the items,
+ * compress into references to the earlier messages.
+ *
+ * <p>Messages must be compressed and decompressed in the order they are sent and
+ * received, so a session uses its context only while holding the lock of the server.
+ * The native memory of the context is released with {@link #end()}.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class MessageCompression {
+	private static final int HISTORY_SIZE = 8192;
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+	private final Inflater inflater = new Inflater(true);
+	private final byte[] outgoingHistory = new byte[HISTORY_SIZE];
+	private int outgoingHistoryLength;
+	private final byte[] incomingHistory = new byte[HISTORY_SIZE];
+	private int incomingHistoryLength;
+	private byte[] input = new byte[256];
+	private byte[] deflated = new byte[256];
+	private byte[] inflated = new byte[256];
+	private ByteBuffer inflatedBuffer = ByteBuffer.wrap(inflated);
+	private final IncomingMessage decompressedMessage = new IncomingMessage();
+	private boolean ended;
+
+	/**
+	 * Compresses the given message into a new message holding the compressed content.
+	 *
+	 * @param outgoingMessage the message to compress, which is not modified
+	 * @return the compressed message to write instead
+	 * @throws IOException if the context has been ended or the compressed content does not fit in a frame
+	 */
+	public OutgoingMessage compress(OutgoingMessage outgoingMessage) throws IOException {
+		checkNotEnded();
+		ByteBuffer content = outgoingMessage.asByteBuffer();
+		content.position(2);
+		int length = takeInput(content);
+
+		deflater.reset();
+		if (outgoingHistoryLength > 0)
+			deflater.setDictionary(outgoingHistory, HISTORY_SIZE - outgoingHistoryLength, outgoingHistoryLength);
+		deflater.setInput(input, 0, length);
+		deflater.finish();
+		int deflatedLength = 0;
+		while (!deflater.finished()) {
+			if (deflatedLength == deflated.length)
+				deflated = Arrays.copyOf(deflated, deflated.length * 2);
+			deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+		}
+		if (deflatedLength > 0xffff)
+			throw new IOException("Compressed message is too long.");
+
+		outgoingHistoryLength = appendHistory(outgoingHistory, outgoingHistoryLength, input, length);
+
+		return new OutgoingMessage().allBytes(deflated, 0, deflatedLength);
+	}
+
+	/**
+	 * Decompresses the rest of the given message. The returned message is reused by
+	 * the next call.
+	 *
+	 * @param incomingMessage the compressed message
+	 * @return the decompressed message
+	 * @throws ZipException if the message is not valid compressed data or the context has been ended
+	 */
+	public IncomingMessage decompress(IncomingMessage incomingMessage) throws ZipException {
+		checkNotEnded();
+		int length = takeInput(incomingMessage.content());
+
+		inflater.reset();
+		if (incomingHistoryLength > 0)
+			inflater.setDictionary(incomingHistory, HISTORY_SIZE - incomingHistoryLength, incomingHistoryLength);
+		inflater.setInput(input, 0, length);
+		int inflatedLength = 0;
+		try {
+			while (!inflater.finished()) {
+				if (inflatedLength == inflated.length) {
+					inflated = Arrays.copyOf(inflated, inflated.length * 2);
+					inflatedBuffer = ByteBuffer.wrap(inflated);
+				}
+				int got = inflater.inflate(inflated, inflatedLength, inflated.length - inflatedLength);
+				if (got == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new ZipException("Truncated compressed message.");
+				inflatedLength += got;
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException("Invalid compressed message: " + e.getMessage());
+		}
+
+		incomingHistoryLength = appendHistory(incomingHistory, incomingHistoryLength, inflated, inflatedLength);
+		decompressedMessage.wrap(inflatedBuffer, 0, inflatedLength);
+
+		return decompressedMessage;
+	}
+
+	/**
+	 * Releases the native memory of the context. Compressing or decompressing after
+	 * this throws an exception, ending again does nothing.
+	 */
+	public void end() {
+		if (ended)
+			return;
+
+		deflater.end();
+		inflater.end();
+		ended = true;
+	}
+
+	private void checkNotEnded() throws ZipException {
+		if (ended)
+			throw new ZipException("The compression context has been ended.");
+	}
+
+	private int takeInput(ByteBuffer content) {
+		int length = content.remaining();
+		if (input.length < length)
+			input = new byte[Math.max(length, input.length * 2)];
+		content.get(input, 0, length);
+		return length;
+	}
+
+	/**
+	 * Appends bytes to the end of a history, of which the valid bytes are at the end,
+	 * dropping the oldest bytes when it is full. Returns the new amount of valid bytes.
+	 */
+	private static int appendHistory(byte[] history, int historyLength, byte[] bytes, int length) {
+		if (length >= HISTORY_SIZE) {
+			System.arraycopy(bytes, length - HISTORY_SIZE, history, 0, HISTORY_SIZE);
+			return HISTORY_SIZE;
+		}
+
+		System.arraycopy(history, length, history, 0, HISTORY_SIZE - length);
+		System.arraycopy(bytes, 0, history, HISTORY_SIZE - length, length);
+
+		return Math.min(HISTORY_SIZE, historyLength + length);
+	}
+}
@@ -20,14 +20,39 @@
 
 package com.henrikhedberg.ohap;
 
-import java.util.HashMap;
+import com.henrikhedberg.util.LongMap;
+import com.henrikhedberg.util.SelectorLoop;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Open Home Automation Protocol (OHAP) server. A subclass
  * must implement a method to accept connections and
  * instantiate OhapSessions.
  *
+ * <p>The items are loaded with {@link TopologyLoader}, from the file named by the
+ * system property {@value #TOPOLOGY_PROPERTY} or else from the built-in topology
+ * of the test server.
+ *
+ * <p>When the system property {@value #SNAPSHOT_PROPERTY} names a file, the device
+ * values are restored from the {@link DeviceSnapshot} in it at startup, checkpointed
+ * into it periodically when they have changed, and once more when the process exits.
+ * When the system property {@value #LOG_PROPERTY} names a directory, every value change
+ * is also appended into the {@link WriteAheadLog} in it, and the changes logged after
+ * the snapshot are replayed at startup.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
  * @version 1.2 (20160312)
  */
@@ -47,56 +72,438 @@ public abstract class OhapServer {
 	public static final int MESSAGE_TYPE_ITEM_REMOVED = 11;
 	public static final int MESSAGE_TYPE_LISTENING_START = 12;
 	public static final int MESSAGE_TYPE_LISTENING_STOP = 13;
+	public static final int MESSAGE_TYPE_VALUES_CHANGED = 14;
+
+	/** The capability of a client to take the value changes of a container in one message. */
+	public static final long CAPABILITY_VALUES_CHANGED = 0x00000001L;
+
+	/** The protocol version of plain messages. */
+	public static final int PROTOCOL_VERSION = 1;
+	/** The protocol version in which the messages after the login are compressed. */
+	public static final int PROTOCOL_VERSION_COMPRESSED = 2;
+
+	/** Milliseconds the server waits for the clients to take their last messages when shutting down. */
+	static final long DRAIN_TIMEOUT = 5000;
+
+	/**
+	 * The system property naming a topology file to load instead of the test
+	 * server topology. See {@link TopologyLoader} for the format.
+	 */
+	public static final String TOPOLOGY_PROPERTY = "ohap.topology";
+
+	/**
+	 * The system property naming the snapshot file of the device values. See
+	 * {@link #openSnapshot(File, long)}.
+	 */
+	public static final String SNAPSHOT_PROPERTY = "ohap.snapshot";
+
+	/** The system property giving the milliseconds between the checkpoints of the snapshot. */
+	public static final String SNAPSHOT_INTERVAL_PROPERTY = "ohap.snapshot.interval";
+
+	private static final long DEFAULT_SNAPSHOT_INTERVAL = 10000;
 
-	private HashMap<Long, Item> items = new HashMap<>();
+	/**
+	 * The system property naming the directory of the write-ahead log of the value
+	 * changes. See {@link #openLog(File, WriteAheadLog.Durability, int)}.
+	 */
+	public static final String LOG_PROPERTY = "ohap.log";
+
+	/** The system property giving the {@link WriteAheadLog.Durability} of the log, BATCH by default. */
+	public static final String LOG_DURABILITY_PROPERTY = "ohap.log.durability";
+
+	/** The system property giving the size in bytes after which the log starts a new segment. */
+	public static final String LOG_SEGMENT_SIZE_PROPERTY = "ohap.log.segment.size";
+
+	private static final int DEFAULT_LOG_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final String DEFAULT_TOPOLOGY =
+		"container\t0\t0\tOHAP Test Server\tThis site provides a test server that can be used when testing clients implementing the open home automation protocol. The usage of the server is not allowed for any other purpose, nor it must be tried to operate against the specification. \n" +
+		"binary-actuator\t2\t0\tMains Switch\tThe main mains power switch\ttrue\n" +
+		"decimal-actuator\t3\t0\tMain temperature\tThe main temperature thermostate\t19.0\t0.0\t28.0\tC\tCelsius\n" +
+		"container\t1\t0\tRoom 1\tOne room.\n" +
+		"decimal-sensor\t4\t1\tTemperature\tThe temperature of the Room 1\t19.2\t-50\t50\tC\tCelsius Degrees\n" +
+		"binary-actuator\t5\t1\tCeiling lamp\tCeiling lamp of Room1\ttrue\n" +
+		"binary-sensor\t6\t1\tSwitch\tSwitch of Room 1\ttrue\n" +
+		"decimal-actuator\t7\t1\tThermostate\tThe room 1 thermostate\t22.5\t-50\t50\tC\tCelsius Degrees\n" +
+		"container\t9\t0\tRoom 2\tOne room.\n" +
+		"decimal-actuator\t8\t9\tThermostate\tThe temperature of the Room 2\t18.2\t-50\t50\tC\tCelsius Degrees\n" +
+		"container\t10\t9\tCloset\tCloset located in Room 2\n" +
+		"binary-actuator\t11\t10\tCloset lamp\tRoof lamp of Room 2 closet\ttrue\n";
+
+	private LongMap<Item> items = new LongMap<>();
+	private long idleTimeout = 90000;
+	private long pingInterval = 30000;
+	private HashSet<OhapSession> sessions = new HashSet<>();
+	private int batchDepth;
+	private ArrayList<Container> changedContainers = new ArrayList<>();
+	private long changeCount;
+	private final Object snapshotLock = new Object();
+	private DeviceSnapshot snapshot;
+	private long checkpointedChangeCount;
+	private ScheduledExecutorService snapshotTimer;
+	private WriteAheadLog valueLog;
+	private boolean logCommitScheduled;
+	private boolean logCommitAtBatchEnd;
+	private final Runnable logCommit = new Runnable() {
+		public void run() {
+			commitLog();
+		}
+	};
 
 	public OhapServer() {
-		Container rootContainer = new Container(0, "OHAP Test Server", "This site provides a test server that can be used when testing clients implementing the open home automation protocol. The usage of the server is not allowed for any other purpose, nor it must be tried to operate against the specification. ", false);
-		addItem(rootContainer);
-		rootContainer.attachToServer(this);
-
-		BinaryDevice mains = new BinaryDevice(2, "Mains Switch", "The main mains power switch", false, Device.Type.ACTUATOR, true);
-		rootContainer.addItem(mains);
-				
-		DecimalDevice thermostate = new DecimalDevice(3, "Main temperature", "The main temperature thermostate", false, Device.Type.ACTUATOR, 19.00, 0.00, 28.00, "C", "Celsius");
-		rootContainer.addItem(thermostate);
-		
-		Container room1 = new Container(1, "Room 1", "One room.", false);
-		rootContainer.addItem(room1);
-
-		DecimalDevice temperature1 = new DecimalDevice(4, "Temperature", "The temperature of the Room 1", false, Device.Type.SENSOR, 19.2, -50, +50, "C", "Celsius Degrees");
-		room1.addItem(temperature1);
-		
-		BinaryDevice lamp1 = new BinaryDevice(5, "Ceiling lamp", "Ceiling lamp of Room1", false, Device.Type.ACTUATOR, true);
-		room1.addItem(lamp1);
-
-		BinaryDevice switch1 = new BinaryDevice(6, "Switch", "Switch of Room 1", false, Device.Type.SENSOR, true);
-		room1.addItem(switch1);
-		
-		DecimalDevice thermostate1 = new DecimalDevice(7, "Thermostate", "The room 1 thermostate", false, Device.Type.ACTUATOR, 22.5, -50, +50, "C", "Celsius Degrees");
-		room1.addItem(thermostate1);
-		
-		Container room2 = new Container(9, "Room 2", "One room.", false);
-		rootContainer.addItem(room2);
-		
-		DecimalDevice thermostate2 = new DecimalDevice(8, "Thermostate", "The temperature of the Room 2", false, Device.Type.ACTUATOR, 18.2, -50, +50, "C", "Celsius Degrees");
-		room2.addItem(thermostate2);
-		
-		Container closet = new Container(10, "Closet", "Closet located in Room 2", false);
-		room2.addItem(closet);
-		
-		BinaryDevice lamp2 = new BinaryDevice(11, "Closet lamp", "Roof lamp of Room 2 closet", false, Device.Type.ACTUATOR, true);
-		closet.addItem(lamp2);
+		String topologyFile = System.getProperty(TOPOLOGY_PROPERTY);
+		try {
+			if (topologyFile != null) {
+				try (Reader reader = new InputStreamReader(new FileInputStream(topologyFile), StandardCharsets.UTF_8)) {
+					TopologyLoader.load(this, reader);
+				}
+			} else
+				TopologyLoader.load(this, new StringReader(DEFAULT_TOPOLOGY));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can not load the topology " + (topologyFile != null ? topologyFile : "of the test server"), e);
+		}
+
+		String snapshotFile = System.getProperty(SNAPSHOT_PROPERTY);
+		if (snapshotFile != null) {
+			try {
+				openSnapshot(new File(snapshotFile), Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, DEFAULT_SNAPSHOT_INTERVAL));
+			} catch (IOException e) {
+				throw new UncheckedIOException("Can not open the snapshot " + snapshotFile, e);
+			}
+		}
+		String logDirectory = System.getProperty(LOG_PROPERTY);
+		if (logDirectory != null) {
+			try {
+				openLog(new File(logDirectory), WriteAheadLog.Durability.valueOf(System.getProperty(LOG_DURABILITY_PROPERTY, "BATCH")),
+				        Integer.getInteger(LOG_SEGMENT_SIZE_PROPERTY, DEFAULT_LOG_SEGMENT_SIZE));
+			} catch (IOException e) {
+				throw new UncheckedIOException("Can not open the log " + logDirectory, e);
+			}
+		}
+		if (snapshotFile != null || logDirectory != null) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					closeSnapshot();
+					closeLog();
+				}
+			});
+		}
 	}
 
 	public Item getItemByIdentifier(long identifier) {
-		return items.get(Long.valueOf(identifier));
+		return items.get(identifier);
 	}
 	
 	public void addItem(Item item) {
-		items.put(Long.valueOf(item.getIdentifier()), item);
+		items.put(item.getIdentifier(), item);
 	}
 	
+	/**
+	 * Sets the time after which a session that has not received anything is ended.
+	 * Takes effect in the next idle check of each session.
+	 *
+	 * @param idleTimeout the timeout in milliseconds, or 0 to disable
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets the time after which a session that has not received anything pings
+	 * its client, so that a live client answers and is not ended as idle.
+	 *
+	 * @param pingInterval the interval in milliseconds, or 0 to disable
+	 */
+	public void setPingInterval(long pingInterval) {
+		this.pingInterval = pingInterval;
+	}
+
+	public long getPingInterval() {
+		return pingInterval;
+	}
+
+	/**
+	 * Opens the snapshot of the device values, restores the values of its latest
+	 * checkpoint, and takes a checkpoint after every interval in which a value
+	 * has changed. Called before the server is serving.
+	 *
+	 * @param file the snapshot file, created on the first checkpoint if it does not exist
+	 * @param interval milliseconds between the checkpoints, or 0 to checkpoint only when
+	 *                 {@link #checkpoint()} or {@link #closeSnapshot()} is called
+	 * @throws IOException if an existing file can not be mapped
+	 */
+	public void openSnapshot(File file, long interval) throws IOException {
+		synchronized (snapshotLock) {
+			if (snapshot != null)
+				throw new IllegalStateException("The snapshot is already open.");
+
+			snapshot = new DeviceSnapshot(file);
+			long start = System.nanoTime();
+			int restored;
+			synchronized (this) {
+				restored = snapshot.restore(this);
+				// the values equal the checkpoint until the next change
+				checkpointedChangeCount = changeCount;
+			}
+			System.out.println("Restored " + restored + " device values from " + file + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+			if (interval > 0) {
+				snapshotTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "OhapServer snapshot");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				snapshotTimer.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						try {
+							checkpoint();
+						} catch (IOException e) {
+							System.err.println("Error: IOException when checkpointing: " + e.getMessage());
+						}
+					}
+				}, interval, interval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Writes the current device values into the snapshot, unless no value has changed
+	 * since the last checkpoint. The values are copied while holding the lock of the
+	 * server and written after releasing it, so the sessions wait only for the copy.
+	 * The checkpoint records the position of the last logged change, and the segments
+	 * of the log included in it are deleted.
+	 *
+	 * @return true if a checkpoint was written
+	 * @throws IOException if the snapshot file can not be grown
+	 */
+	public boolean checkpoint() throws IOException {
+		synchronized (snapshotLock) {
+			if (snapshot == null)
+				return false;
+
+			long changes;
+			WriteAheadLog log;
+			long logPosition;
+			synchronized (this) {
+				if (changeCount == checkpointedChangeCount)
+					return false;
+
+				changes = changeCount;
+				log = valueLog;
+				logPosition = log != null ? log.getLastPosition() : 0;
+				snapshot.capture((Container)getItemByIdentifier(0));
+			}
+			snapshot.checkpoint(logPosition);
+			checkpointedChangeCount = changes;
+			if (log != null)
+				log.compact(logPosition);
+			return true;
+		}
+	}
+
+	/**
+	 * Stops the periodic checkpoints, writes the last checkpoint and closes the snapshot.
+	 */
+	public void closeSnapshot() {
+		synchronized (snapshotLock) {
+			if (snapshot == null)
+				return;
+
+			if (snapshotTimer != null)
+				snapshotTimer.shutdownNow();
+			try {
+				checkpoint();
+			} catch (IOException e) {
+				System.err.println("Error: IOException when checkpointing: " + e.getMessage());
+			}
+			snapshot.close();
+			snapshot = null;
+		}
+	}
+
+	/**
+	 * Opens the write-ahead log of the value changes and replays the changes logged after
+	 * the latest checkpoint of the snapshot. Called after {@link #openSnapshot(File, long)},
+	 * if a snapshot is used, and before the server is serving.
+	 *
+	 * <p>Every change is appended into the log while holding the lock of the server and
+	 * committed with one force for all changes made in the same iteration of a
+	 * {@link SelectorLoop}, or in the same batch of the server when not in a loop.
+	 *
+	 * @param directory the directory of the log segments
+	 * @param durability the durability level
+	 * @param segmentSize the size in bytes after which a new segment is started
+	 * @throws IOException if the log can not be opened or read
+	 */
+	public void openLog(File directory, WriteAheadLog.Durability durability, int segmentSize) throws IOException {
+		long afterPosition;
+		synchronized (snapshotLock) {
+			afterPosition = snapshot != null ? snapshot.getLogPosition() : 0;
+		}
+
+		WriteAheadLog log = new WriteAheadLog(directory, durability, segmentSize);
+		long start = System.nanoTime();
+		int applied;
+		synchronized (this) {
+			try {
+				if (valueLog != null)
+					throw new IllegalStateException("The log is already open.");
+
+				applied = log.replay(this, afterPosition);
+			} catch (IOException | RuntimeException e) {
+				log.close();
+				throw e;
+			}
+			// the replayed values differ from the checkpoint
+			changeCount += applied;
+			valueLog = log;
+		}
+		System.out.println("Replayed " + applied + " logged changes from " + directory + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+	 * Commits the changes logged since the previous commit. Called once per iteration
+	 * of a {@link SelectorLoop} in which a value changed, without holding the lock of
+	 * the server.
+	 */
+	public void commitLog() {
+		WriteAheadLog log;
+		synchronized (this) {
+			logCommitScheduled = false;
+			log = valueLog;
+		}
+		if (log == null)
+			return;
+
+		try {
+			log.commit();
+		} catch (IOException e) {
+			System.err.println("Error: IOException when committing the log, no more changes are logged: " + e.getMessage());
+			synchronized (this) {
+				if (valueLog == log)
+					valueLog = null;
+			}
+		}
+	}
+
+	/**
+	 * Writes the remaining changes and closes the write-ahead log.
+	 */
+	public void closeLog() {
+		WriteAheadLog log;
+		synchronized (this) {
+			log = valueLog;
+			valueLog = null;
+		}
+		if (log == null)
+			return;
+
+		try {
+			log.close();
+		} catch (IOException e) {
+			System.err.println("Error: IOException when closing the log: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Logs every session out with the given reason. The logout is the last message
+	 * each client gets before its connection is closed.
+	 *
+	 * @param reason the reason sent in the logout messages
+	 */
+	public void logoutSessions(String reason) {
+		synchronized (this) {
+			for (OhapSession session : new ArrayList<>(sessions))
+				session.logout(reason);
+		}
+	}
+
+	/**
+	 * Returns the number of sessions that have not ended.
+	 *
+	 * @return session count
+	 */
+	public int getSessionCount() {
+		synchronized (this) {
+			return sessions.size();
+		}
+	}
+
+	/**
+	 * Starts recording value changes. Until the matching {@link #endBatch()}, the
+	 * changes are recorded per container, and then sent in one message to each
+	 * listener that has the {@link #CAPABILITY_VALUES_CHANGED} capability and as
+	 * separate messages to the others. Called while holding the lock of the server.
+	 * Batches may be nested.
+	 */
+	public void startBatch() {
+		batchDepth++;
+	}
+
+	/**
+	 * Ends the batch started with {@link #startBatch()} and sends the collected changes
+	 * when the outermost batch ends.
+	 */
+	public void endBatch() {
+		if (--batchDepth > 0)
+			return;
+
+		for (int i = 0; i < changedContainers.size(); i++)
+			changedContainers.get(i).sendChanges();
+		changedContainers.clear();
+		if (logCommitAtBatchEnd) {
+			logCommitAtBatchEnd = false;
+			commitLog();
+		}
+	}
+
+	boolean isBatching() {
+		return batchDepth > 0;
+	}
+
+	void containerChanged(Container container) {
+		changedContainers.add(container);
+	}
+
+	/**
+	 * Counts a changed device value, so that the next checkpoint is not skipped, and
+	 * appends it into the log. The first change after a commit schedules the next
+	 * commit at the end of the iteration of the selector loop, or else at the end of
+	 * the batch. Called while holding the lock of the server.
+	 */
+	void deviceChanged(Device device) {
+		changeCount++;
+		if (valueLog == null)
+			return;
+
+		valueLog.append(device);
+		if (logCommitScheduled)
+			return;
+
+		logCommitScheduled = true;
+		SelectorLoop selectorLoop = SelectorLoop.current();
+		if (selectorLoop != null)
+			selectorLoop.executeAtEnd(logCommit);
+		else if (isBatching())
+			logCommitAtBatchEnd = true;
+		else
+			commitLog();
+	}
+
+	void addSession(OhapSession session) {
+		sessions.add(session);
+	}
+
+	void removeSession(OhapSession session) {
+		sessions.remove(session);
+	}
+
 	public boolean authenticateUser(String name, String password) {
 		return true;
 	}
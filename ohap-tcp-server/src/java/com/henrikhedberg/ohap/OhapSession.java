@@ -22,6 +22,7 @@ package com.henrikhedberg.ohap;
 
 import com.henrikhedberg.hbdp.server.*;
 import java.util.HashSet;
+import java.util.zip.ZipException;
 import java.io.IOException;
 
 /**
@@ -32,6 +33,24 @@ import java.io.IOException;
  * the listening state of its client and sends required update
  * messages through a listener mechanism.
  *
+ * <p>Sessions may be handled in several threads. The item model of the
+ * {@link OhapServer} is shared by all sessions, so it is accessed only
+ * while holding the lock of the server object.
+ *
+ * <p>A subclass with a write queue reports its depth with {@link #getQueueLength()}
+ * and {@link #getQueueBytes()}, and calls {@link #writeOverflowed()} when the queue
+ * overflowed and the session must be ended.
+ *
+ * <p>A subclass with a timer calls {@link #checkIdle()} to end the session when the
+ * client has been silent for the idle timeout of the server, and to ping the client
+ * after the ping interval.
+ *
+ * <p>A client logging in with the protocol version 2 gets a {@link MessageCompression}
+ * context. Every message sent to it, and every message received from it after the login,
+ * goes through the context. As the context depends on all the earlier messages, a subclass
+ * must not drop nor reorder messages of a compressed session, and is told to stop doing so
+ * by {@link #compressionStarted()}.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
  * @version 1.1 (20150312)
  */
@@ -40,18 +59,105 @@ public abstract class OhapSession {
 	private String identifier;
 	private String user;
 	private HashSet<Container> listenedContainers = new HashSet<>();
+	private long lastReceivedTime = currentMillis();
+	private long lastPingTime = lastReceivedTime;
+	private long pingIdentifier;
+	private boolean ended;
+	private MessageCompression compression;
+	private long capabilities;
 	
 	OhapSession(OhapServer server, String identifier) {
 		this.server = server;
 		this.identifier = identifier;
+		synchronized (server) {
+			server.addSession(this);
+		}
 	}
 	
-	protected abstract void writeMessage(OutgoingMessage outgoingMessage) throws IOException;
+	protected abstract void writeMessage(OutgoingMessage outgoingMessage, long conflationKey) throws IOException;
 	protected abstract void close() throws IOException;
 
+	/**
+	 * Returns a new message to be sent to this session only. The transport may encode
+	 * the message in place into its outgoing buffer, so the message must be sent with
+	 * {@link #sendMessage(OutgoingMessage)} before another one is created.
+	 *
+	 * @return an empty message
+	 */
+	protected OutgoingMessage createMessage() {
+		return new OutgoingMessage();
+	}
+
+	/**
+	 * Returns the number of messages waiting to be written to the client.
+	 *
+	 * @return queued messages, or 0 if the backend does not queue
+	 */
+	public int getQueueLength() {
+		return 0;
+	}
+
+	/**
+	 * Returns the number of bytes waiting to be written to the client.
+	 *
+	 * @return queued bytes, or 0 if the backend does not queue
+	 */
+	public int getQueueBytes() {
+		return 0;
+	}
+
+	/**
+	 * Returns the number of messages dropped or replaced because the queue overflowed.
+	 *
+	 * @return dropped messages
+	 */
+	public int getDroppedMessages() {
+		return 0;
+	}
+
+	/**
+	 * Called when the session starts compressing its messages. A subclass that may
+	 * drop or replace queued messages stops doing so.
+	 */
+	protected void compressionStarted() {
+	}
+
+	/**
+	 * Returns whether the client announced the given capability when logging in.
+	 *
+	 * @param capability one of the <code>CAPABILITY_*</code> constants of {@link OhapServer}
+	 * @return true if the client has the capability
+	 */
+	public boolean hasCapability(long capability) {
+		return (capabilities & capability) != 0;
+	}
+
+	/**
+	 * Returns whether the messages of the session are compressed.
+	 *
+	 * @return true if the client logged in with the protocol version 2
+	 */
+	public boolean isCompressed() {
+		return compression != null;
+	}
+
 	public void sendMessage(OutgoingMessage outgoingMessage) {
+		sendMessage(outgoingMessage, -1);
+	}
+
+	/**
+	 * Sends the message. While the queue of the session is overflowing, a message with
+	 * a non-negative conflation key may replace the unsent message with the same key.
+	 *
+	 * @param outgoingMessage the message to send
+	 * @param conflationKey the identifier of the changed item, or -1
+	 */
+	public void sendMessage(OutgoingMessage outgoingMessage, long conflationKey) {
 		try {
-			writeMessage(outgoingMessage);
+			if (compression != null)
+				writeMessage(compression.compress(outgoingMessage), -1);
+			else
+				writeMessage(outgoingMessage, conflationKey);
 		} catch (IOException e) {
 			log("Error: IOException when writing: " + e.getMessage());
 			end();
@@ -60,11 +166,115 @@ public abstract class OhapSession {
 	}
 	
 	protected void readMessageFailed(IOException exception) {
-		log("Error: IOException when reading: " + exception.getMessage());
-		end();
+		synchronized (server) {
+			if (ended)
+				return;
+
+			log("Error: IOException when reading: " + exception.getMessage());
+			end();
+		}
 	}
 	
+	protected void writeMessageFailed(IOException exception) {
+		synchronized (server) {
+			if (ended)
+				return;
+
+			log("Error: IOException when writing: " + exception.getMessage());
+			end();
+		}
+	}
+	
+	/**
+	 * Ends the session after its write queue overflowed. The queue has been discarded,
+	 * so the logout telling the reason is the last message the client gets.
+	 */
+	protected void writeOverflowed() {
+		synchronized (server) {
+			if (compression != null) {
+				// the client can not decompress anything after the discarded messages
+				log("Error: Outgoing queue overflow");
+				end();
+			} else
+				sendError("Outgoing queue overflow");
+		}
+	}
+
 	protected void handleMessage(IncomingMessage incomingMessage) {
+		synchronized (server) {
+			lastReceivedTime = currentMillis();
+			dispatchMessage(incomingMessage);
+		}
+	}
+
+	/**
+	 * Handles all the complete frames of a batch while holding the lock of the server
+	 * once. Stops if the session ends on the way. The value changes of the batch are
+	 * sent to the listeners at the end of it.
+	 *
+	 * @param frameDecoder the decoder holding the batch
+	 */
+	protected void handleMessages(FrameDecoder frameDecoder) {
+		synchronized (server) {
+			lastReceivedTime = currentMillis();
+			server.startBatch();
+			try {
+				IncomingMessage incomingMessage;
+				while (!ended && (incomingMessage = frameDecoder.next()) != null)
+					dispatchMessage(incomingMessage);
+			} finally {
+				server.endBatch();
+			}
+		}
+	}
+
+	/**
+	 * Ends the session if nothing has been received within the idle timeout of the
+	 * server, or pings the client if nothing has been received within the ping interval.
+	 * Ending the session removes it from the listeners of its containers.
+	 *
+	 * @return milliseconds until the next check is needed, or -1 if the session has
+	 *         ended or both timers are disabled
+	 */
+	protected long checkIdle() {
+		synchronized (server) {
+			if (ended)
+				return -1;
+
+			long now = currentMillis();
+			long idleTimeout = server.getIdleTimeout();
+			long pingInterval = server.getPingInterval();
+			long idle = now - lastReceivedTime;
+			if (idleTimeout > 0 && idle >= idleTimeout) {
+				sendError("Idle timeout");
+				return -1;
+			}
+
+			long delay = idleTimeout > 0 ? idleTimeout - idle : -1;
+			if (pingInterval > 0) {
+				if (idle >= pingInterval && now - lastPingTime >= pingInterval) {
+					OutgoingMessage outgoingMessage = createMessage();
+					outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_PING).integer32(++pingIdentifier & 0xffffffffL);
+					sendMessage(outgoingMessage);
+					lastPingTime = now;
+				}
+				long pingDelay = Math.max(lastReceivedTime, lastPingTime) + pingInterval - now;
+				if (delay == -1 || pingDelay < delay)
+					delay = pingDelay;
+			}
+			return delay;
+		}
+	}
+
+	private void dispatchMessage(IncomingMessage incomingMessage) {
+		if (compression != null) {
+			try {
+				incomingMessage = compression.decompress(incomingMessage);
+			} catch (ZipException e) {
+				sendError("Malformed compressed message");
+				return;
+			}
+		}
 		try {
 			int type = incomingMessage.integer8();
 			if (user == null && type != OhapServer.MESSAGE_TYPE_LOGIN) {
@@ -107,7 +317,20 @@ public abstract class OhapSession {
 		}
 	}
 	
+	/**
+	 * Logs the client out with the given reason and ends the session.
+	 * Called while holding the lock of the server.
+	 *
+	 * @param reason the reason sent in the logout message
+	 */
+	void logout(String reason) {
+		log("Logout: " + reason);
+		sendLogout(reason);
+	}
+
 	private void end() {
+		ended = true;
+		server.removeSession(this);
 		try {
 			close();
 		} catch (IOException e) {
@@ -117,21 +340,32 @@ public abstract class OhapSession {
 			container.removeListener(this);
 		}
 		listenedContainers.clear();	
+
+		if (compression != null)
+			compression.end();
 	}
 
 	private void handleLogin(IncomingMessage incomingMessage) {
 		int protocolVersion = incomingMessage.integer8();
-		String name = incomingMessage.text();
-		String password = incomingMessage.text();
-
-		if (protocolVersion != 1) {
-			sendError("Wrong protocol version: " + protocolVersion + ", only 1 is supported");
+		if (protocolVersion != OhapServer.PROTOCOL_VERSION && protocolVersion != OhapServer.PROTOCOL_VERSION_COMPRESSED) {
+			sendError("Wrong protocol version: " + protocolVersion + ", only 1 and 2 are supported");
 			return;
 		}		
 		if (user != null) {
 			sendError("Already logged in");
 			return;
 		}
+		if (protocolVersion == OhapServer.PROTOCOL_VERSION_COMPRESSED) {
+			// the client reads everything after its login compressed, also a failure
+			compression = new MessageCompression();
+			compressionStarted();
+		}
+
+		String name = incomingMessage.text();
+		String password = incomingMessage.text();
+		// an older client has no capabilities
+		if (incomingMessage.remaining() >= 4)
+			capabilities = incomingMessage.integer32();
 		if (!server.authenticateUser(name, password)) {
 			sendError("Login failed: " + name);
 			return;
@@ -140,7 +374,7 @@ public abstract class OhapSession {
 		log("Login: "+ name);
 		user = name;
 		
-		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		OutgoingMessage outgoingMessage = createMessage();
 		Item rootContainer = server.getItemByIdentifier(0);
 		rootContainer.outputMessage(outgoingMessage);
 		sendMessage(outgoingMessage);
@@ -151,7 +385,7 @@ public abstract class OhapSession {
 
 		log("Ping: " + pingIdentifier);
 
-		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		OutgoingMessage outgoingMessage = createMessage();
 		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_PONG).integer32(pingIdentifier);
 		sendMessage(outgoingMessage);
 	}
@@ -240,13 +474,21 @@ public abstract class OhapSession {
 	}
 	private void sendError(String message) {
 		log("Error: " + message);
-		OutgoingMessage outgoingMessage = new OutgoingMessage();
+		sendLogout(message);
+	}
+
+	private void sendLogout(String message) {
+		OutgoingMessage outgoingMessage = createMessage();
 		outgoingMessage.integer8(OhapServer.MESSAGE_TYPE_LOGOUT).text(message);
 		sendMessage(outgoingMessage);
 		
 		end();
 	}
 
+	private static long currentMillis() {
+		return System.nanoTime() / 1000000;
+	}
+
 	private void log(String detail) {
 		long seconds = System.currentTimeMillis() / 1000;
 		System.out.println(seconds + "  " + identifier + "  Ohap  " + detail);
@@ -20,10 +20,13 @@
 
 package com.henrikhedberg.ohap;
 
+import com.henrikhedberg.util.BufferOwner;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.nio.ByteBuffer;
 
 /**
@@ -32,17 +35,72 @@ import java.nio.ByteBuffer;
  * <p>Use {@link #integer8(int)}, {@link #integer16(int)}, {@link #integer32(long)},
  * {@link #decimal64(double)}, {@link #allBytes(byte[])}, {@link #binary8(boolean)},
  * and {@link #text(String)} sequentially to build a message. Then, call
- * {@link #writeTo(OutputStream)} to write it into an {@link OutputStream}, or
+ * {@link #writeTo(OutputStream)} to write it into an {@link OutputStream},
+ * {@link #writeTo(ByteBuffer)} to copy it into a {@link ByteBuffer}, or
  * {@link #asByteBuffer()} to get it as a @{link ByteBuffer}.
  *
+ * <p>A message sent to many sessions is encoded once and then frozen with
+ * {@link #freeze()}. A frozen message can not be appended, and each writer gets
+ * its own read-only view of the same bytes with {@link #share()}. The message counts
+ * its references: the builder holds the first one, each view adds one, and the writer
+ * gives the view back with {@link #release(ByteBuffer)} once it has been written.
+ * When the last reference is released, the buffer is recycled for new messages.
+ *
+ * <p>A message for one connection may be encoded in place into the outgoing buffer
+ * of the connection with {@link #OutgoingMessage(ByteBuffer)}. The length field is
+ * reserved first, the fields are written directly into the buffer, and {@link #finish()}
+ * back-patches the length. A message that outgrows the buffer moves into a buffer of
+ * its own on the way and is then sent like any other message.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.1 (20160320)
+ * @version 1.3 (20261018)
  */
-public class OutgoingMessage {
-	private byte[] buffer = new byte[256];
-	private int position = 2;
+public class OutgoingMessage implements BufferOwner {
+	private static final int BUFFER_SIZE = 256;
+	private static final int RECYCLED_BUFFERS = 256;
+	private static final ArrayDeque<ByteBuffer> recycledBuffers = new ArrayDeque<>();
+
+	private ByteBuffer buffer;
+	private ByteBuffer target;
+	private int start;
+	private int position;
+	private int limit;
+	private boolean frozen;
+	private final AtomicInteger references = new AtomicInteger(1);
 	private final Charset charset = Charset.forName("UTF-8");
 
+	/**
+	 * Constructs an empty message with a buffer of its own.
+	 */
+	public OutgoingMessage() {
+		buffer = acquireBuffer();
+		position = 2;
+		limit = buffer.capacity();
+	}
+
+	/**
+	 * Constructs an empty message encoded in place into the given buffer, from its
+	 * position up to its limit. The length field is reserved at the position. The
+	 * buffer is not modified outside that range, and its position is moved after the
+	 * message only by {@link #finish()}.
+	 *
+	 * @param target the buffer to encode into
+	 */
+	public OutgoingMessage(ByteBuffer target) {
+		if (target.remaining() < 2) {
+			buffer = acquireBuffer();
+			position = 2;
+			limit = buffer.capacity();
+			return;
+		}
+
+		this.target = target;
+		buffer = target;
+		start = target.position();
+		position = start + 2;
+		limit = target.limit();
+	}
+
 	/**
 	 * Appends unsigned 8-bit integer into the message.
 	 *
@@ -51,7 +109,7 @@ public class OutgoingMessage {
 	 */
 	public OutgoingMessage integer8(int value) {
 		ensureCapacity(1);
-		buffer[position] = (byte)value;
+		buffer.put(position, (byte)value);
 		position += 1;
 
 		return this;
@@ -65,8 +123,7 @@ public class OutgoingMessage {
 	 */
 	public OutgoingMessage integer16(int value) {
 		ensureCapacity(2);
-		buffer[position] = (byte)(value >> 8);
-		buffer[position + 1] = (byte)value;
+		buffer.putShort(position, (short)value);
 		position += 2;
 
 		return this;
@@ -80,10 +137,7 @@ public class OutgoingMessage {
 	 */
 	public OutgoingMessage integer32(long value) {
 		ensureCapacity(4);
-		buffer[position] = (byte)(value >> 24);
-		buffer[position + 1] = (byte)(value >> 16);
-		buffer[position + 2] = (byte)(value >> 8);
-		buffer[position + 3] = (byte)value;
+		buffer.putInt(position, (int)value);
 		position += 4;
 
 		return this;
@@ -96,21 +150,30 @@ public class OutgoingMessage {
 	 * @return itself (for chaining calls)
 	 */
 	public OutgoingMessage decimal64(double value) {
-		long bits = Double.doubleToRawLongBits(value);
 		ensureCapacity(8);
-		buffer[position] = (byte)(bits >> 56);
-		buffer[position + 1] = (byte)(bits >> 48);
-		buffer[position + 2] = (byte)(bits >> 40);
-		buffer[position + 3] = (byte)(bits >> 32);
-		buffer[position + 4] = (byte)(bits >> 24);
-		buffer[position + 5] = (byte)(bits >> 16);
-		buffer[position + 6] = (byte)(bits >> 8);
-		buffer[position + 7] = (byte)bits;
+		buffer.putLong(position, Double.doubleToRawLongBits(value));
 		position += 8;
 
 		return this;
 	}
 
+	/**
+	 * Appends an unsigned variable length integer into the message. Each byte carries
+	 * seven bits of the value, the least significant first, and the high bit tells
+	 * whether more bytes follow.
+	 *
+	 * @param value non-negative integer
+	 * @return itself (for chaining calls)
+	 */
+	public OutgoingMessage integerVar(long value) {
+		while ((value & ~0x7fL) != 0) {
+			integer8((int)(value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+
+		return integer8((int)value);
+	}
+
 	/**
 	 * Appends the given bytes into the message.
 	 *
@@ -118,9 +181,22 @@ public class OutgoingMessage {
 	 * @return itself (for chaining calls)
 	 */
 	public OutgoingMessage allBytes(byte[] bytes) {
-		ensureCapacity(bytes.length);
-		System.arraycopy(bytes, 0, buffer, position, bytes.length);
-		position += bytes.length;
+		return allBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Appends the given range of bytes into the message.
+	 *
+	 * @param bytes bytes
+	 * @param offset the index of the first byte to append
+	 * @param length the amount of bytes to append
+	 * @return itself (for chaining calls)
+	 */
+	public OutgoingMessage allBytes(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		buffer.position(position);
+		buffer.put(bytes, offset, length);
+		position += length;
 
 		return this;
 	}
@@ -156,12 +232,39 @@ public class OutgoingMessage {
 	 * @throws IOException if an operation on the given stream throws an exception
 	 */
 	public void writeTo(OutputStream outputStream) throws IOException {
-		int length = position;
-		position = 0;
-		integer16(length - 2);
-		position = length;
+		writeLength();
+		outputStream.write(buffer.array(), 0, position);
+	}
+
+	/**
+	 * Copies the message into the given {@link ByteBuffer}, for example a pooled
+	 * direct buffer.
+	 *
+	 * @param byteBuffer the buffer with at least {@link #length()} bytes remaining
+	 */
+	public void writeTo(ByteBuffer byteBuffer) {
+		writeLength();
+		byteBuffer.put(buffer.array(), 0, position);
+	}
+
+	/**
+	 * Returns the length of the message including the length field.
+	 *
+	 * @return length in bytes
+	 */
+	public int length() {
+		return position - start;
+	}
 
-		outputStream.write(buffer, 0, length);
+	/**
+	 * Returns a copy of the content of the message without the length field, for
+	 * caching an encoded part that is later appended with {@link #allBytes(byte[])}.
+	 *
+	 * @return the content in a new array
+	 */
+	public byte[] toByteArray() {
+		checkNotInPlace();
+		return Arrays.copyOfRange(buffer.array(), 2, position);
 	}
 
 	/**
@@ -170,23 +273,155 @@ public class OutgoingMessage {
 	 * @return message as a ByteBuffer
 	 */
 	public ByteBuffer asByteBuffer() {
-		int length = position;
-		position = 0;
-		integer16(length - 2);
-		position = length;
+		writeLength();
+		return ByteBuffer.wrap(buffer.array(), 0, position);
+	}
 
-		return ByteBuffer.wrap(buffer, 0, length);
+	/**
+	 * Writes the length field and makes the message read-only, so that it can be
+	 * shared by several writers. Freezing a frozen message does nothing.
+	 *
+	 * @return itself (for chaining calls)
+	 */
+	public OutgoingMessage freeze() {
+		if (!frozen) {
+			writeLength();
+			frozen = true;
+		}
+
+		return this;
+	}
+
+	/**
+	 * Returns whether the message has been frozen.
+	 *
+	 * @return true if the message is read-only
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * Returns a read-only view of the frozen message for one writer and adds
+	 * a reference. The writer gives the view back with {@link #release(ByteBuffer)}.
+	 *
+	 * @return the whole message as a read-only ByteBuffer
+	 * @throws IllegalStateException if the message is not frozen or has been released
+	 */
+	public ByteBuffer share() {
+		if (!frozen)
+			throw new IllegalStateException("The message is not frozen.");
+		if (references.getAndIncrement() <= 0)
+			throw new IllegalStateException("The message has been released.");
+
+		ByteBuffer view = buffer.asReadOnlyBuffer();
+		view.limit(position).position(0);
+		return view;
+	}
+
+	/**
+	 * Releases the reference of a view returned by {@link #share()}.
+	 *
+	 * @param byteBuffer the view
+	 */
+	public void release(ByteBuffer byteBuffer) {
+		release();
+	}
+
+	/**
+	 * Releases a reference. The builder of a frozen message releases its own reference
+	 * when it has handed the message to all writers. The releasing party must not use
+	 * the message after this.
+	 */
+	public void release() {
+		if (references.decrementAndGet() == 0 && frozen) {
+			recycleBuffer(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Returns whether the message is still encoded in place in the buffer given to
+	 * {@link #OutgoingMessage(ByteBuffer)}.
+	 *
+	 * @return true until the message has outgrown the buffer or been finished
+	 */
+	public boolean isInPlace() {
+		return target != null;
+	}
+
+	/**
+	 * Back-patches the length field of a message encoded in place and moves the
+	 * position of the buffer after the message. The message can not be used after this.
+	 *
+	 * @return the buffer the message was encoded into
+	 * @throws IllegalStateException if the message is not encoded in place
+	 */
+	public ByteBuffer finish() {
+		if (target == null)
+			throw new IllegalStateException("The message is not encoded in place.");
+
+		ByteBuffer finished = target;
+		finished.putShort(start, (short)(position - start - 2));
+		finished.position(position);
+		target = null;
+		buffer = null;
+
+		return finished;
+	}
+
+	private void writeLength() {
+		checkNotInPlace();
+		if (frozen)
+			return;
+
+		buffer.putShort(0, (short)(position - 2));
+	}
+
+	private void checkNotInPlace() {
+		if (target != null)
+			throw new IllegalStateException("The message is encoded in place.");
 	}
 
 	private void ensureCapacity(int appendLength) {
-		if (position + appendLength < buffer.length)
+		if (frozen)
+			throw new IllegalStateException("The message has been frozen.");
+		if (position + appendLength <= limit)
 			return;
 
-		int newLength = buffer.length * 2;
-		while (position + appendLength >= newLength)
+		int length = position - start;
+		int newLength = BUFFER_SIZE;
+		while (length + appendLength > newLength)
 			newLength *= 2;
-		buffer = Arrays.copyOf(buffer, newLength);
+		ByteBuffer newBuffer = newLength == BUFFER_SIZE ? acquireBuffer() : ByteBuffer.allocate(newLength);
+		ByteBuffer content = buffer.duplicate();
+		content.limit(position).position(start);
+		newBuffer.clear();
+		newBuffer.put(content);
+		if (target == null)
+			recycleBuffer(buffer);
+		buffer = newBuffer;
+		target = null;
+		start = 0;
+		position = length;
+		limit = newLength;
 	}
-}
 
+	private static ByteBuffer acquireBuffer() {
+		synchronized (recycledBuffers) {
+			ByteBuffer buffer = recycledBuffers.pollLast();
+			if (buffer != null)
+				return buffer;
+		}
+		return ByteBuffer.allocate(BUFFER_SIZE);
+	}
 
+	private static void recycleBuffer(ByteBuffer buffer) {
+		if (buffer.capacity() != BUFFER_SIZE)
+			return;
+		synchronized (recycledBuffers) {
+			if (recycledBuffers.size() < RECYCLED_BUFFERS)
+				recycledBuffers.addLast(buffer);
+		}
+	}
+}
@@ -20,27 +20,53 @@
 
 package com.henrikhedberg.ohap;
 
+import com.henrikhedberg.util.BufferPool;
+import com.henrikhedberg.util.DrainReport;
+import com.henrikhedberg.util.SelectorLoop;
 import com.henrikhedberg.util.TcpServer;
 import com.henrikhedberg.util.TcpServerConnection;
 import java.net.SocketAddress;
 import java.net.InetSocketAddress;
 import java.io.OutputStream;
 import java.io.InputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
 /**
  * Open Home Automation Protocol (OHAP) server with TCP backend.
  *
+ * <p>When the process is terminated, the server is drained: every client gets
+ * a logout and the queued messages are written before the connections are closed.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
  * @version 1.0 (20160320)
  */
 
 public class TcpOhapServer extends OhapServer {
+	private static final int RESERVED_LENGTH = 256;
+
 	private TcpServer tcpServer;
+	private BufferPool bufferPool = new BufferPool();
+	private int lowWaterMark = 64 * 1024;
+	private int highWaterMark = 256 * 1024;
+	private TcpServerConnection.OverflowPolicy overflowPolicy = TcpServerConnection.OverflowPolicy.CONFLATE;
+	private int flushBytes = 64 * 1024;
+	private long flushDelay = 1000;
 	
 	public TcpOhapServer(SocketAddress socketAddress) throws IOException {
-		tcpServer = new TcpServer(socketAddress) {
+		this(socketAddress, 0);
+	}
+
+	/**
+	 * Constructs a new server handling the connections in the given amount of worker
+	 * threads.
+	 *
+	 * @param socketAddress the address to listen
+	 * @param workerCount the amount of worker threads, or 0 to handle everything in the accepting thread
+	 */
+	public TcpOhapServer(SocketAddress socketAddress, int workerCount) throws IOException {
+		tcpServer = new TcpServer(socketAddress, workerCount) {
 			public void acceptConnection(TcpServerConnection connection) {
 				try {
 					new TcpOhapSession(TcpOhapServer.this, connection);
@@ -54,33 +80,138 @@ public class TcpOhapServer extends OhapServer {
 		return tcpServer;
 	}
 
+	/**
+	 * Drains the server: stops accepting connections, logs every session out with
+	 * the given reason, waits until the queued messages have been written or
+	 * the timeout has elapsed, and closes the connections.
+	 *
+	 * @param reason the reason sent in the logout messages
+	 * @param timeout milliseconds to wait for the queued messages to be written
+	 * @return the numbers of drained and aborted connections and the bytes written
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public DrainReport drain(final String reason, long timeout) throws InterruptedException {
+		return tcpServer.drain(new Runnable() {
+			public void run() {
+				logoutSessions(reason);
+			}
+		}, timeout);
+	}
+
+	/**
+	 * Sets the write queue water marks of new connections in bytes.
+	 *
+	 * @param lowWaterMark queue size below which messages are queued normally again
+	 * @param highWaterMark queue size above which the overflow policy is applied
+	 * @see TcpServerConnection#setWaterMarks(int, int)
+	 */
+	public void setWaterMarks(int lowWaterMark, int highWaterMark) {
+		if (lowWaterMark < 0 || lowWaterMark > highWaterMark)
+			throw new IllegalArgumentException("The low water mark must be between zero and the high water mark.");
+
+		this.lowWaterMark = lowWaterMark;
+		this.highWaterMark = highWaterMark;
+	}
+
+	/**
+	 * Sets the flush limits of new connections. The messages of a connection are
+	 * written together at the end of each iteration of its loop, or earlier when
+	 * the unflushed bytes exceed either limit.
+	 *
+	 * @param flushBytes unflushed bytes that are flushed immediately, or 0 to write every message immediately
+	 * @param flushDelay microseconds after which unflushed bytes are flushed by the next message
+	 * @see TcpServerConnection#setFlushLimits(int, long)
+	 */
+	public void setFlushLimits(int flushBytes, long flushDelay) {
+		if (flushBytes < 0 || flushDelay < 0)
+			throw new IllegalArgumentException("The flush limits must not be negative.");
+
+		this.flushBytes = flushBytes;
+		this.flushDelay = flushDelay;
+	}
+
+	/**
+	 * Sets the overflow policy of new connections. Under
+	 * {@link TcpServerConnection.OverflowPolicy#CONFLATE}, a value change replaces
+	 * the unsent change of the same item.
+	 *
+	 * @param overflowPolicy the policy
+	 */
+	public void setOverflowPolicy(TcpServerConnection.OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Runs the server in the port 18001.
+	 *
+	 * <p>Usage: <code>TcpOhapServer [worker-count]</code>, where the worker count is
+	 * the amount of threads handling the connections, usually the amount of cores. Without
+	 * it, a single thread both accepts and handles the connections.
+	 */
 	public static void main(String[] args) throws IOException {
-		TcpOhapServer ohapServer = new TcpOhapServer(new InetSocketAddress(18001));
+		int workerCount = 0;
+		if (args.length > 0) {
+			try {
+				workerCount = Integer.parseInt(args[0]);
+			} catch (NumberFormatException e) {
+				workerCount = -1;
+			}
+			if (workerCount < 0) {
+				System.err.println("Usage: TcpOhapServer [worker-count]");
+				System.exit(1);
+			}
+		}
+
+		final TcpOhapServer ohapServer = new TcpOhapServer(new InetSocketAddress(18001), workerCount);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				try {
+					System.out.println(ohapServer.drain("Server shutting down", DRAIN_TIMEOUT));
+				} catch (InterruptedException e) {
+				}
+				ohapServer.getTcpServer().stop();
+			}
+		});
 		ohapServer.getTcpServer().run();
 	}
 	
 	private static class TcpOhapSession extends OhapSession {
 		TcpServerConnection connection;
-		private IncomingMessage incomingMessage = new IncomingMessage();
-		private ByteBuffer incomingByteBuffer = ByteBuffer.allocate(1024);
+		private BufferPool bufferPool;
+		private FrameDecoder frameDecoder = new FrameDecoder();
+		private final FrameDecoder.Handler frameHandler = new FrameDecoder.Handler() {
+			public void handleFrames(FrameDecoder frameDecoder) {
+				handleMessages(frameDecoder);
+			}
+		};
+		private volatile SelectorLoop.Timeout idleTimer;
+		private final Runnable idleCheck = new Runnable() {
+			public void run() {
+				scheduleIdleCheck(checkIdle());
+			}
+		};
 
-		TcpOhapSession(OhapServer server, TcpServerConnection connection) throws IOException {
+		TcpOhapSession(TcpOhapServer server, TcpServerConnection connection) throws IOException {
 			super(server, connection.getRemoteAddress().toString());
 			this.connection = connection;
+			bufferPool = server.bufferPool;
+			connection.setWaterMarks(server.lowWaterMark, server.highWaterMark);
+			connection.setOverflowPolicy(server.overflowPolicy);
+			connection.setFlushLimits(server.flushBytes, server.flushDelay);
+			connection.setBufferPool(bufferPool);
 			connection.setHandler(new TcpServerConnection.Handler() {
 				public void handleData(TcpServerConnection connection) {
 					try {
-						connection.read(incomingByteBuffer);
-						incomingByteBuffer.flip();
-						if (incomingMessage.readFromNB(incomingByteBuffer))
-							handleMessage(incomingMessage);
-						incomingByteBuffer.compact();
-						if (!incomingByteBuffer.hasRemaining()) {
-							incomingByteBuffer.flip();
-							incomingByteBuffer =
-							    ByteBuffer.allocate(incomingByteBuffer.capacity() * 2)
-							    .put(incomingByteBuffer);
+						// read into the buffer of the loop after the leftovers of the previous read
+						ByteBuffer readBuffer = connection.getSelectorLoop().getReadBuffer();
+						frameDecoder.restore(readBuffer);
+						if (connection.read(readBuffer) == -1) {
+							readMessageFailed(new EOFException("End of message input."));
+							return;
 						}
+						readBuffer.flip();
+						frameDecoder.decode(readBuffer, frameHandler);
+						frameDecoder.save(readBuffer);
 
 					} catch (IOException e) {
 						readMessageFailed(e);
@@ -88,18 +219,77 @@ public class TcpOhapServer extends OhapServer {
 				  }
 				  
 				  public void handleIOException(IOException exception) {
-				  	// TODO
+				  	writeMessageFailed(exception);
+				  }
+
+				  public void handleOverflow(TcpServerConnection connection) {
+				  	writeOverflowed();
 				  }
 			});
+			scheduleIdleCheck(checkIdle());
+		}
+
+		private void scheduleIdleCheck(long delay) {
+			if (delay >= 0)
+				idleTimer = connection.getSelectorLoop().schedule(idleCheck, delay);
+		}
+
+		/**
+		 * Encodes the message in place at the tail of the write queue of the connection
+		 * when called in its loop and the messages are not compressed.
+		 */
+		protected OutgoingMessage createMessage() {
+			if (!isCompressed()) {
+				ByteBuffer reserved = connection.reserve(RESERVED_LENGTH);
+				if (reserved != null)
+					return new OutgoingMessage(reserved);
+			}
+
+			return new OutgoingMessage();
+		}
+
+		/**
+		 * Writes a message encoded in place by appending it to the queue, a frozen message
+		 * through a read-only view of its shared bytes, and any other message through
+		 * a pooled buffer.
+		 */
+		protected void writeMessage(OutgoingMessage outgoingMessage, long conflationKey) throws IOException {
+			if (outgoingMessage.isInPlace()) {
+				connection.write(outgoingMessage.finish(), conflationKey, null);
+				return;
+			}
+			if (outgoingMessage.isFrozen()) {
+				connection.write(outgoingMessage.share(), conflationKey, outgoingMessage);
+				return;
+			}
+
+			ByteBuffer outgoingByteBuffer = bufferPool.acquire(outgoingMessage.length());
+			outgoingMessage.writeTo(outgoingByteBuffer);
+			outgoingByteBuffer.flip();
+			connection.write(outgoingByteBuffer, conflationKey, bufferPool);
+		}
+
+		public int getQueueLength() {
+			return connection.getWriteQueueLength();
+		}
+
+		public int getQueueBytes() {
+			return connection.getWriteQueueBytes();
+		}
+
+		public int getDroppedMessages() {
+			return connection.getDroppedWrites();
 		}
 
-		protected void writeMessage(OutgoingMessage outgoingMessage) throws IOException {
-			ByteBuffer outgoingByteBuffer = outgoingMessage.asByteBuffer();
-			connection.write(outgoingByteBuffer);
+		protected void compressionStarted() {
+			connection.setOverflowPolicy(TcpServerConnection.OverflowPolicy.DISCONNECT);
 		}
 		
 		protected void close() throws IOException {
-			connection.close();
+			SelectorLoop.Timeout idleTimer = this.idleTimer;
+			if (idleTimer != null)
+				idleTimer.cancel();
+			connection.closeWhenWritten();
 		}
 	}
 }
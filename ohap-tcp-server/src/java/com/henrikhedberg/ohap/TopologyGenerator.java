@@ -0,0 +1,368 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.henrikhedberg.ohap;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates reproducible synthetic topologies and listening scenarios for benchmarks
+ * and load tests, like <code>com.opimobi.ohap.TopologyGenerator</code> of the client.
+ *
+ * <p>The topology is a tree of containers with the given depth and fan-out, and every
+ * generated container holds the given amount of devices with a configurable mix of
+ * decimal and binary sensors and actuators. The same seed and settings always give
+ * the same topology, whether it is written into a file in the format of
+ * {@link TopologyLoader} or created as {@link Container}, {@link DecimalDevice} and
+ * {@link BinaryDevice} objects into a server with {@link #addTo(Container)}.
+ * Containers get the identifiers from the first identifier on in depth-first order,
+ * and devices the identifiers after them.
+ *
+ * <p>The scenario tells which containers each simulated session listens to, one
+ * session per line:
+ * <pre>
+ * session  index  container-id  container-id ...
+ * </pre>
+ *
+ * <p>The containers are chosen with a skewed distribution favouring the low identifiers,
+ * so that a few containers are listened by many sessions like in a real site. As the
+ * identifiers are assigned depth-first, the favoured containers are those of the subtree
+ * of the first top-level container, not the top levels of the tree.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class TopologyGenerator {
+	private static final String[] decimalSensorNames = { "Temperature", "Humidity", "Power meter", "Light level" };
+	private static final String[] decimalActuatorNames = { "Thermostate", "Dimmer", "Fan speed" };
+	private static final String[] binarySensorNames = { "Motion", "Window", "Door", "Smoke detector" };
+	private static final String[] binaryActuatorNames = { "Ceiling lamp", "Socket", "Lock", "Coffee maker" };
+	private static final String[][] decimalUnits = { { "Celsius", "C" }, { "Percent", "%" }, { "Watt", "W" }, { "Lux", "lx" } };
+
+	private final long seed;
+	private int depth = 3;
+	private int fanOut = 10;
+	private int devicesPerContainer = 10;
+	private double decimalShare = 0.5;
+	private double actuatorShare = 0.5;
+	private double listeningSkew = 3.0;
+	private long firstIdentifier = 1;
+
+	/**
+	 * Constructs a generator with the default shape: three levels of ten containers,
+	 * each holding ten devices, half of them decimal and half of them actuators.
+	 *
+	 * @param seed the seed of the random values
+	 */
+	public TopologyGenerator(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Sets the amount of container levels.
+	 *
+	 * @param depth the amount of levels, at least 1
+	 */
+	public void setDepth(int depth) {
+		if (depth < 1)
+			throw new IllegalArgumentException("The depth must be at least 1.");
+		this.depth = depth;
+	}
+
+	/**
+	 * Sets the amount of top-level containers and of the child containers of each
+	 * container above the lowest level.
+	 *
+	 * @param fanOut the amount of child containers, at least 1
+	 */
+	public void setFanOut(int fanOut) {
+		if (fanOut < 1)
+			throw new IllegalArgumentException("The fan-out must be at least 1.");
+		this.fanOut = fanOut;
+	}
+
+	/**
+	 * Sets the amount of devices in each generated container.
+	 *
+	 * @param devicesPerContainer the amount of devices
+	 */
+	public void setDevicesPerContainer(int devicesPerContainer) {
+		if (devicesPerContainer < 0)
+			throw new IllegalArgumentException("The amount of devices must not be negative.");
+		this.devicesPerContainer = devicesPerContainer;
+	}
+
+	/**
+	 * Sets the device mix.
+	 *
+	 * @param decimalShare the share of decimal devices, between 0 and 1
+	 * @param actuatorShare the share of actuators, between 0 and 1
+	 */
+	public void setDeviceMix(double decimalShare, double actuatorShare) {
+		if (decimalShare < 0 || decimalShare > 1 || actuatorShare < 0 || actuatorShare > 1)
+			throw new IllegalArgumentException("The shares must be between 0 and 1.");
+		this.decimalShare = decimalShare;
+		this.actuatorShare = actuatorShare;
+	}
+
+	/**
+	 * Sets how strongly the scenario favours the first containers in depth-first order.
+	 * 1 chooses the containers uniformly, larger values concentrate the sessions on the
+	 * lowest identifiers.
+	 *
+	 * @param listeningSkew the skew, at least 1
+	 */
+	public void setListeningSkew(double listeningSkew) {
+		if (listeningSkew < 1)
+			throw new IllegalArgumentException("The skew must be at least 1.");
+		this.listeningSkew = listeningSkew;
+	}
+
+	/**
+	 * Sets the identifier of the first generated container, so that the generated items
+	 * can be added next to existing ones with {@link #addTo(Container)}.
+	 *
+	 * @param firstIdentifier the first identifier, at least 1
+	 */
+	public void setFirstIdentifier(long firstIdentifier) {
+		if (firstIdentifier < 1)
+			throw new IllegalArgumentException("The first identifier must be at least 1.");
+		this.firstIdentifier = firstIdentifier;
+	}
+
+	/**
+	 * Returns the amount of generated containers.
+	 *
+	 * @return the amount of containers
+	 */
+	public long getContainerCount() {
+		long count = 0;
+		long level = 1;
+		for (int i = 0; i < depth; i++) {
+			level *= fanOut;
+			count += level;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the amount of generated items, not including the root container of a file.
+	 *
+	 * @return the amount of containers and devices
+	 */
+	public long getItemCount() {
+		return getContainerCount() * (1 + devicesPerContainer);
+	}
+
+	/**
+	 * Writes the topology in the format of {@link TopologyLoader}, with a root container
+	 * holding the top-level containers.
+	 *
+	 * @param writer the writer to write to
+	 * @throws IOException if writing fails
+	 */
+	public void write(final Writer writer) throws IOException {
+		final StringBuilder line = new StringBuilder(128);
+		line.append("container\t0\t0\tSynthetic site\tDepth ").append(depth).append(", fan-out ").append(fanOut).append(", seed ").append(seed).append('\n');
+		writer.append(line);
+		generate(new Emitter() {
+			public Object container(long identifier, long parentIdentifier, Object parent, int level) throws IOException {
+				line.setLength(0);
+				line.append("container\t").append(identifier).append('\t').append(parentIdentifier).append("\tRoom ").append(identifier).append("\tContainer on level ").append(level).append('\n');
+				writer.append(line);
+				return null;
+			}
+
+			public void decimalDevice(long identifier, long parentIdentifier, Object parent, boolean actuator, String name, double value, String[] unit) throws IOException {
+				line.setLength(0);
+				line.append(actuator ? "decimal-actuator\t" : "decimal-sensor\t").append(identifier).append('\t').append(parentIdentifier).append('\t').append(name).append("\tDevice ").append(identifier)
+				    .append('\t').append(value).append("\t0.0\t40.0\t").append(unit[0]).append('\t').append(unit[1]).append('\n');
+				writer.append(line);
+			}
+
+			public void binaryDevice(long identifier, long parentIdentifier, Object parent, boolean actuator, String name, boolean value) throws IOException {
+				line.setLength(0);
+				line.append(actuator ? "binary-actuator\t" : "binary-sensor\t").append(identifier).append('\t').append(parentIdentifier).append('\t').append(name).append("\tDevice ").append(identifier)
+				    .append('\t').append(value).append('\n');
+				writer.append(line);
+			}
+
+			public void containerDone(Object container, Object parent) {
+			}
+		}, 0, null);
+		writer.flush();
+	}
+
+	/**
+	 * Creates the topology into the given container. Each top-level container is built
+	 * with its whole subtree before it is added, so a subtree is registered into the
+	 * server of the container with one {@link Item#attachToServer(OhapServer)}.
+	 * The identifiers must not be used by the server yet.
+	 *
+	 * @param parent the container of the top-level containers, usually the root container
+	 *               {@link OhapServer#getItemByIdentifier(long) getItemByIdentifier(0)}
+	 */
+	public void addTo(Container parent) {
+		try {
+			generate(new Emitter() {
+				public Object container(long identifier, long parentIdentifier, Object parent, int level) {
+					return new Container(identifier, "Room " + identifier, "Container on level " + level, false);
+				}
+
+				public void decimalDevice(long identifier, long parentIdentifier, Object parent, boolean actuator, String name, double value, String[] unit) {
+					((Container)parent).addItem(new DecimalDevice(identifier, name, "Device " + identifier, false, actuator ? Device.Type.ACTUATOR : Device.Type.SENSOR, value, 0.0, 40.0, unit[0], unit[1]));
+				}
+
+				public void binaryDevice(long identifier, long parentIdentifier, Object parent, boolean actuator, String name, boolean value) {
+					((Container)parent).addItem(new BinaryDevice(identifier, name, "Device " + identifier, false, actuator ? Device.Type.ACTUATOR : Device.Type.SENSOR, value));
+				}
+
+				public void containerDone(Object container, Object parent) {
+					((Container)parent).addItem((Container)container);
+				}
+			}, parent.getIdentifier(), parent);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Writes a listening scenario for the topology.
+	 *
+	 * @param writer the writer to write to
+	 * @param sessions the amount of sessions
+	 * @param containersPerSession the amount of containers each session listens to
+	 * @throws IOException if writing fails
+	 */
+	public void writeScenario(Writer writer, int sessions, int containersPerSession) throws IOException {
+		Random random = new Random(seed ^ 0x5deece66dL);
+		long containerCount = getContainerCount();
+		int count = (int)Math.min(containersPerSession, containerCount);
+		long[] containerIdentifiers = new long[count];
+
+		writer.write("# session\tindex\tcontainer-id...\n");
+		for (int session = 0; session < sessions; session++) {
+			writer.write("session\t" + session);
+			for (int i = 0; i < count; i++) {
+				long index = (long)(Math.pow(random.nextDouble(), listeningSkew) * containerCount);
+				// a container already chosen for the session is replaced by the next free one
+				while (contains(containerIdentifiers, i, firstIdentifier + index))
+					index = (index + 1) % containerCount;
+				containerIdentifiers[i] = firstIdentifier + index;
+				writer.write("\t" + containerIdentifiers[i]);
+			}
+			writer.write('\n');
+		}
+		writer.flush();
+	}
+
+	private static boolean contains(long[] identifiers, int count, long identifier) {
+		for (int i = 0; i < count; i++)
+			if (identifiers[i] == identifier)
+				return true;
+		return false;
+	}
+
+	/**
+	 * The target of the generated items.
+	 */
+	private static interface Emitter {
+		/** Emits a container and returns it, or null if nothing is created. */
+		Object container(long identifier, long parentIdentifier, Object parent, int level) throws IOException;
+		void decimalDevice(long identifier, long parentIdentifier, Object parent, boolean actuator, String name, double value, String[] unit) throws IOException;
+		void binaryDevice(long identifier, long parentIdentifier, Object parent, boolean actuator, String name, boolean value) throws IOException;
+		/** Called after the devices and the subtree of a container have been emitted. */
+		void containerDone(Object container, Object parent);
+	}
+
+	/**
+	 * Emits the topology in depth-first order: a container, its devices and then its
+	 * child containers. The random values are drawn in the same order for every emitter.
+	 */
+	private void generate(Emitter emitter, long rootIdentifier, Object root) throws IOException {
+		Random random = new Random(seed);
+		long[] nextIdentifiers = { firstIdentifier, firstIdentifier + getContainerCount() };
+		for (int i = 0; i < fanOut; i++)
+			generateContainer(emitter, random, nextIdentifiers, 1, rootIdentifier, root);
+	}
+
+	private void generateContainer(Emitter emitter, Random random, long[] nextIdentifiers, int level, long parentIdentifier, Object parent) throws IOException {
+		long identifier = nextIdentifiers[0]++;
+		Object container = emitter.container(identifier, parentIdentifier, parent, level);
+		for (int i = 0; i < devicesPerContainer; i++) {
+			long deviceIdentifier = nextIdentifiers[1]++;
+			boolean decimal = random.nextDouble() < decimalShare;
+			boolean actuator = random.nextDouble() < actuatorShare;
+			String[] names = decimal ? (actuator ? decimalActuatorNames : decimalSensorNames) : (actuator ? binaryActuatorNames : binarySensorNames);
+			String name = names[random.nextInt(names.length)];
+			if (decimal)
+				emitter.decimalDevice(deviceIdentifier, identifier, container, actuator, name, Math.round(random.nextDouble() * 400) / 10.0, decimalUnits[random.nextInt(decimalUnits.length)]);
+			else
+				emitter.binaryDevice(deviceIdentifier, identifier, container, actuator, name, random.nextBoolean());
+		}
+		if (level < depth)
+			for (int i = 0; i < fanOut; i++)
+				generateContainer(emitter, random, nextIdentifiers, level + 1, identifier, container);
+		emitter.containerDone(container, parent);
+	}
+
+	/**
+	 * Writes a topology and a scenario into files.
+	 *
+	 * <p>Usage: <code>TopologyGenerator output-prefix seed depth fan-out devices-per-container sessions containers-per-session</code>
+	 *
+	 * <p>Creates the files <code>output-prefix.topology</code>, to be loaded with the
+	 * system property {@value OhapServer#TOPOLOGY_PROPERTY}, and <code>output-prefix.scenario</code>.
+	 */
+	public static void main(String[] args) throws IOException {
+		TopologyGenerator generator = null;
+		int sessions = 0;
+		int containersPerSession = 0;
+		if (args.length == 7) {
+			try {
+				generator = new TopologyGenerator(Long.parseLong(args[1]));
+				generator.setDepth(Integer.parseInt(args[2]));
+				generator.setFanOut(Integer.parseInt(args[3]));
+				generator.setDevicesPerContainer(Integer.parseInt(args[4]));
+				sessions = Integer.parseInt(args[5]);
+				containersPerSession = Integer.parseInt(args[6]);
+			} catch (IllegalArgumentException e) {
+				generator = null;
+			}
+		}
+		if (generator == null || sessions < 0 || containersPerSession < 0) {
+			System.err.println("Usage: TopologyGenerator output-prefix seed depth fan-out devices-per-container sessions containers-per-session");
+			System.exit(1);
+		}
+
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[0] + ".topology"), StandardCharsets.UTF_8), 65536)) {
+			generator.write(writer);
+		}
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[0] + ".scenario"), StandardCharsets.UTF_8))) {
+			generator.writeScenario(writer, sessions, containersPerSession);
+		}
+		System.out.println("Generated " + generator.getItemCount() + " items into " + args[0] + ".topology");
+	}
+}
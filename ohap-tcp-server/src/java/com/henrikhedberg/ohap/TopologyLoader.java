@@ -0,0 +1,193 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.henrikhedberg.ohap;
+
+import com.henrikhedberg.util.LongMap;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+
+/**
+ * Builds the item tree of a server from a topology file, in the format of
+ * <code>com.opimobi.ohap.TopologyLoader</code> of the client.
+ *
+ * <p>The file is read line by line and each line creates one item straight away, so
+ * no representation of the whole file is kept in memory. The items are first added
+ * into their containers without a server, and the whole tree is registered into the
+ * server at the end with one {@link Item#attachToServer(OhapServer)} of the root
+ * container. An invalid file thus registers nothing.
+ *
+ * <p>The fields of a line are separated by tabs, so that names and descriptions may
+ * contain spaces. Empty lines and lines starting with '#' are ignored. The first item
+ * must be the root container 0, which is its own parent, and a parent must appear
+ * before its children. The identifiers must be unique.
+ *
+ * <pre>
+ * container         id  parent-id  name  description
+ * decimal-sensor    id  parent-id  name  description  value  min  max  unit  abbreviation
+ * decimal-actuator  id  parent-id  name  description  value  min  max  unit  abbreviation
+ * binary-sensor     id  parent-id  name  description  value (true or false)
+ * binary-actuator   id  parent-id  name  description  value (true or false)
+ * </pre>
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class TopologyLoader {
+	/** The maximum amount of shared texts, so that unique names do not fill the map. */
+	private static final int MAX_SHARED_TEXTS = 4096;
+
+	private LongMap<Item> items = new LongMap<>();
+	private final HashMap<String, String> sharedTexts = new HashMap<>();
+	private Container rootContainer;
+	private String line;
+	private int position;
+
+	private TopologyLoader() {
+	}
+
+	/**
+	 * Reads a topology file and registers its items into the given server.
+	 *
+	 * @param server the server to register the items into
+	 * @param reader the reader of the topology file
+	 * @return the root container
+	 * @throws IOException if reading fails or the file is not valid, in which case
+	 *                     nothing is registered
+	 */
+	public static Container load(OhapServer server, Reader reader) throws IOException {
+		TopologyLoader loader = new TopologyLoader();
+		BufferedReader bufferedReader = new BufferedReader(reader, 65536);
+
+		int lineNumber = 0;
+		String line;
+		while ((line = bufferedReader.readLine()) != null) {
+			lineNumber++;
+			if (line.isEmpty() || line.charAt(0) == '#')
+				continue;
+
+			try {
+				loader.parse(line);
+			} catch (IllegalArgumentException | IllegalStateException | ClassCastException e) {
+				throw new IOException("Invalid topology at line " + lineNumber + ": " + e.getMessage());
+			}
+		}
+		if (loader.rootContainer == null)
+			throw new IOException("Invalid topology: no root container.");
+
+		// the map of the loader can be collected while the server builds its own
+		loader.items = null;
+		loader.rootContainer.attachToServer(server);
+
+		return loader.rootContainer;
+	}
+
+	/**
+	 * Creates the item described by a line and adds it into its parent.
+	 */
+	private void parse(String line) {
+		this.line = line;
+		position = 0;
+
+		// all fields are parsed before the item is created, so an invalid line creates nothing
+		String kind = nextField();
+		long identifier = Long.parseLong(nextField());
+		long parentIdentifier = Long.parseLong(nextField());
+		String name = nextSharedField();
+		String description = nextField();
+
+		Item item;
+		switch (kind) {
+			case "container":
+				item = new Container(identifier, name, description, false);
+				break;
+
+			case "decimal-sensor":
+			case "decimal-actuator":
+				double value = Double.parseDouble(nextField());
+				double min = Double.parseDouble(nextField());
+				double max = Double.parseDouble(nextField());
+				String unit = nextSharedField();
+				String abbreviation = nextSharedField();
+				item = new DecimalDevice(identifier, name, description, false, kind.equals("decimal-actuator") ? Device.Type.ACTUATOR : Device.Type.SENSOR, value, min, max, unit, abbreviation);
+				break;
+
+			case "binary-sensor":
+			case "binary-actuator":
+				boolean binaryValue = parseBoolean(nextField());
+				item = new BinaryDevice(identifier, name, description, false, kind.equals("binary-actuator") ? Device.Type.ACTUATOR : Device.Type.SENSOR, binaryValue);
+				break;
+
+			default:
+				throw new IllegalArgumentException("Unknown item kind \"" + kind + "\".");
+		}
+
+		if (rootContainer == null) {
+			if (identifier != 0 || parentIdentifier != 0 || !(item instanceof Container))
+				throw new IllegalArgumentException("The first item must be the root container 0.");
+			rootContainer = (Container)item;
+		} else {
+			Container parent = (Container)items.get(parentIdentifier);
+			if (parent == null)
+				throw new IllegalArgumentException("Unknown parent container " + parentIdentifier + ".");
+			if (items.get(identifier) != null)
+				throw new IllegalArgumentException("Duplicate identifier " + identifier + ".");
+			parent.addItem(item);
+		}
+		items.put(identifier, item);
+	}
+
+	private String nextField() {
+		if (position > line.length())
+			throw new IllegalArgumentException("Missing field.");
+
+		int end = line.indexOf('\t', position);
+		if (end == -1)
+			end = line.length();
+		String field = line.substring(position, end);
+		position = end + 1;
+
+		return field;
+	}
+
+	/**
+	 * Returns the next field, shared with the earlier equal fields. Large sites repeat
+	 * the same few names and units, so equal texts are shared by the items.
+	 */
+	private String nextSharedField() {
+		String field = nextField();
+		String sharedField = sharedTexts.get(field);
+		if (sharedField != null)
+			return sharedField;
+
+		if (sharedTexts.size() < MAX_SHARED_TEXTS)
+			sharedTexts.put(field, field);
+		return field;
+	}
+
+	private static boolean parseBoolean(String field) {
+		if (field.equals("true"))
+			return true;
+		if (field.equals("false"))
+			return false;
+		throw new IllegalArgumentException("Invalid binary value \"" + field + "\".");
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.ohap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open Home Automation Protocol (OHAP) server with blocking sockets and
+ * a thread per connection.
+ *
+ * <p>Each session has a reader thread that blocks reading the socket and a writer
+ * thread that blocks writing it. The threads are virtual when the Java runtime
+ * supports them (JDK 21 or newer), so a blocked thread only costs a small heap object.
+ * On older runtimes, they are platform threads with a small stack, which limits the
+ * number of connections to what the operating system allows.
+ *
+ * <p>The item model is accessed through the {@link OhapSession}, which holds the lock
+ * of the server. A message sent while holding the lock is only copied into the queue
+ * of the writer thread, so a slow client never blocks the other sessions.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class VirtualThreadOhapServer extends OhapServer implements Runnable {
+	private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+	private static final byte[] END_OF_QUEUE = new byte[0];
+
+	private final ServerSocket serverSocket;
+	private final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+	private volatile boolean running;
+
+	public VirtualThreadOhapServer(SocketAddress socketAddress) throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(socketAddress, 1024);
+	}
+
+	/**
+	 * Returns whether the threads of the sessions are virtual threads.
+	 *
+	 * @return true if the runtime supports virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtualThreadFactory != null;
+	}
+
+	/**
+	 * Returns the local port the server is listening.
+	 *
+	 * @return the port
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until {@link #stop()} is called. Each connection gets
+	 * a new session with its own threads.
+	 */
+	public void run() {
+		running = true;
+		while (running) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (running)
+					System.err.println("Error: IOException when accepting: " + e.getMessage());
+				break;
+			}
+			try {
+				socket.setTcpNoDelay(true);
+				new VirtualThreadOhapSession(this, socket).start();
+			} catch (IOException e) {
+				try {
+					socket.close();
+				} catch (IOException e2) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting connections. The existing sessions are not ended.
+	 */
+	public void stop() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private Thread newThread(Runnable runnable, String name) {
+		Thread thread;
+		if (virtualThreadFactory != null)
+			thread = virtualThreadFactory.newThread(runnable);
+		else {
+			thread = new Thread(null, runnable, name, PLATFORM_STACK_SIZE);
+			thread.setDaemon(true);
+		}
+		thread.setName(name);
+		return thread;
+	}
+
+	/**
+	 * Looks up <code>Thread.ofVirtual().factory()</code> at run time, so that
+	 * the server still compiles and runs on runtimes without virtual threads.
+	 */
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the server in the port 18002.
+	 */
+	public static void main(String[] args) throws IOException {
+		VirtualThreadOhapServer ohapServer = new VirtualThreadOhapServer(new InetSocketAddress(18002));
+		if (!ohapServer.isVirtual())
+			System.err.println("Warning: Virtual threads need JDK 21 or newer, using platform threads");
+		ohapServer.run();
+	}
+
+	private static class VirtualThreadOhapSession extends OhapSession {
+		private final VirtualThreadOhapServer server;
+		private final Socket socket;
+		private final InputStream inputStream;
+		private final OutputStream outputStream;
+		private final LinkedBlockingQueue<byte[]> writeQueue = new LinkedBlockingQueue<>();
+		private final IncomingMessage incomingMessage = new IncomingMessage();
+		private volatile boolean closed;
+
+		VirtualThreadOhapSession(VirtualThreadOhapServer server, Socket socket) throws IOException {
+			super(server, socket.getRemoteSocketAddress().toString());
+			this.server = server;
+			this.socket = socket;
+			inputStream = new BufferedInputStream(socket.getInputStream());
+			outputStream = new BufferedOutputStream(socket.getOutputStream());
+		}
+
+		void start() {
+			server.newThread(new Runnable() {
+				public void run() {
+					read();
+				}
+			}, "OHAP reader " + socket.getRemoteSocketAddress()).start();
+			server.newThread(new Runnable() {
+				public void run() {
+					write();
+				}
+			}, "OHAP writer " + socket.getRemoteSocketAddress()).start();
+		}
+
+		protected void writeMessage(OutgoingMessage outgoingMessage, long conflationKey) throws IOException {
+			if (closed)
+				throw new IOException("Session closed");
+
+			byte[] bytes = new byte[outgoingMessage.length()];
+			outgoingMessage.writeTo(ByteBuffer.wrap(bytes));
+			writeQueue.offer(bytes);
+		}
+
+		public int getQueueLength() {
+			return writeQueue.size();
+		}
+
+		/**
+		 * Lets the writer thread write the queued messages, and then closes the socket.
+		 */
+		protected void close() {
+			if (closed)
+				return;
+
+			closed = true;
+			writeQueue.offer(END_OF_QUEUE);
+		}
+
+		private void read() {
+			try {
+				while (!closed) {
+					incomingMessage.readFrom(inputStream);
+					handleMessage(incomingMessage);
+				}
+			} catch (IOException e) {
+				readMessageFailed(e);
+			}
+		}
+
+		/**
+		 * Writes the queued messages, flushing whenever the queue is empty, and runs
+		 * the idle check of the session between them.
+		 */
+		private void write() {
+			try {
+				long delay = checkIdle();
+				long nextCheck = System.nanoTime() / 1000000 + delay;
+				while (true) {
+					byte[] bytes;
+					if (delay < 0)
+						bytes = writeQueue.take();
+					else
+						bytes = writeQueue.poll(Math.max(0, nextCheck - System.nanoTime() / 1000000), TimeUnit.MILLISECONDS);
+					if (bytes == END_OF_QUEUE)
+						break;
+
+					if (bytes != null) {
+						outputStream.write(bytes);
+						if (writeQueue.isEmpty())
+							outputStream.flush();
+					}
+					if (delay >= 0 && System.nanoTime() / 1000000 >= nextCheck) {
+						delay = checkIdle();
+						nextCheck = System.nanoTime() / 1000000 + delay;
+					}
+				}
+				outputStream.flush();
+			} catch (IOException e) {
+				writeMessageFailed(e);
+			} catch (InterruptedException e) {
+			} finally {
+				closed = true;
+				writeQueue.clear();
+				try {
+					socket.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,513 @@
+
+/*
+ * Open Home Automation Protocol (OHAP) Reference Server Implementation
+ * Copyright (C) 2015-2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.henrikhedberg.ohap;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of device value changes, used together with a {@link DeviceSnapshot}
+ * to restore the exact device values after a crash: the snapshot is restored first and
+ * then the changes logged after it are replayed.
+ *
+ * <p>Appending only copies the change into a memory buffer while holding the lock of the
+ * server. The changes are committed with group commit: {@link #commit()} hands all changes
+ * appended since the previous commit to a writer thread, which writes them and forces them
+ * to the storage once. The server commits once per iteration of a {@link
+ * com.henrikhedberg.util.SelectorLoop}, so a burst of changes costs one force instead of
+ * one per change, and the sessions sending the changes to the listeners never wait for
+ * the disk. The durability level tells whether the changes are forced at all and whether
+ * committing waits for it.
+ *
+ * <p>The log is split into segment files named by the log position of their first change.
+ * When a segment grows over the segment size, the next change starts a new segment.
+ * Segments of which all changes are included in a snapshot are deleted with
+ * {@link #compact(long)}.
+ *
+ * <pre>
+ * change record (28 bytes)
+ *    log-position          int64 (1 for the first change, increasing by one)
+ *    item-identifier       int64 (the highest bit set for a binary device)
+ *    value                 decimal64 (a binary value as 1 or 0)
+ *    crc                   int32 (CRC-32 of the preceding fields)
+ * </pre>
+ *
+ * <p>A torn record at the end of the last segment, left by a crash, is truncated when
+ * the log is opened.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class WriteAheadLog {
+	/**
+	 * The durability levels of the log.
+	 */
+	public enum Durability {
+		/**
+		 * The changes are written by the writer thread but never forced. A crash of the
+		 * server loses the changes not yet written, and a crash of the machine also the
+		 * written changes the system has not yet stored.
+		 */
+		NONE,
+
+		/**
+		 * The changes are forced by the writer thread once per commit. Committing does not
+		 * wait, so a crash loses the changes of the commit being forced and those appended
+		 * after it.
+		 */
+		BATCH,
+
+		/**
+		 * The changes are forced once per commit and committing waits until they have been
+		 * forced. A selector loop reads nothing more before the changes of its iteration
+		 * are stored, but the changes have already been sent to the listeners. A server
+		 * without selector loops commits at the end of a batch while holding its lock,
+		 * so there every session waits for the force.
+		 */
+		SYNC
+	}
+
+	private static final int RECORD_SIZE = 28;
+	private static final String SEGMENT_SUFFIX = ".wal";
+	private static final long FLAG_BINARY = 1L << 63;
+
+	private final File directory;
+	private final Durability durability;
+	private final int segmentSize;
+
+	/** The segment being written, or null if the next change starts a new segment. */
+	private FileChannel segment;
+	private long segmentLength;
+
+	/**
+	 * The changes appended but not yet committed, the changes committed but not yet taken
+	 * by the writer thread, and the buffer being written by it. Guarded by lock.
+	 */
+	private ByteBuffer pending = ByteBuffer.allocate(64 * RECORD_SIZE);
+	private ByteBuffer committed = ByteBuffer.allocate(64 * RECORD_SIZE);
+	private ByteBuffer writing = ByteBuffer.allocate(64 * RECORD_SIZE);
+
+	private final Object lock = new Object();
+	private long lastPosition;
+	private long committedPosition;
+	private long forcedPosition;
+	private long forceCount;
+	private boolean closing;
+	private IOException writeError;
+
+	private final CRC32 crc = new CRC32();
+	private final Thread writerThread;
+
+	/**
+	 * Opens the log in the given directory, creating the directory if needed. The last
+	 * segment is checked and a torn change at its end is truncated.
+	 *
+	 * @param directory the directory of the segment files
+	 * @param durability the durability level
+	 * @param segmentSize the size in bytes after which a new segment is started
+	 * @throws IOException if the directory or the last segment can not be opened
+	 */
+	public WriteAheadLog(File directory, Durability durability, int segmentSize) throws IOException {
+		if (segmentSize < RECORD_SIZE)
+			throw new IllegalArgumentException("The segment size is too small.");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Unable to create log directory " + directory);
+
+		this.directory = directory;
+		this.durability = durability;
+		this.segmentSize = segmentSize;
+
+		File[] segments = listSegments();
+		if (segments.length > 0)
+			openLastSegment(segments[segments.length - 1]);
+		committedPosition = lastPosition;
+		forcedPosition = lastPosition;
+
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeBatches();
+			}
+		}, "WriteAheadLog");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Appends the current value of the device into the log. The change is written with
+	 * the next {@link #commit()}. Called while holding the lock of the server.
+	 *
+	 * @param device the device of which value has changed
+	 * @return the log position of the change
+	 */
+	public long append(Device device) {
+		long identifier = device.isBinary() ? device.getIdentifier() | FLAG_BINARY : device.getIdentifier();
+		double value = device.getValueAsDecimal();
+
+		synchronized (lock) {
+			if (pending.remaining() < RECORD_SIZE) {
+				ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+				pending.flip();
+				grown.put(pending);
+				pending = grown;
+			}
+
+			long position = ++lastPosition;
+			int start = pending.position();
+			pending.putLong(position).putLong(identifier).putDouble(value);
+			crc.reset();
+			crc.update(pending.array(), start, RECORD_SIZE - 4);
+			pending.putInt((int)crc.getValue());
+			return position;
+		}
+	}
+
+	/**
+	 * Hands the changes appended since the previous commit to the writer thread, which
+	 * writes them and, unless the durability is {@link Durability#NONE}, forces them once.
+	 * Waits for the force only with {@link Durability#SYNC}.
+	 *
+	 * @throws IOException if an earlier write failed or the log is closed
+	 */
+	public void commit() throws IOException {
+		long position;
+		synchronized (lock) {
+			if (writeError != null)
+				throw writeError;
+			if (closing)
+				throw new IOException("The log is closed.");
+			if (pending.position() == 0)
+				return;
+
+			if (committed.position() == 0) {
+				ByteBuffer batch = committed;
+				committed = pending;
+				pending = batch;
+			} else {
+				// the writer thread has not taken the previous commit yet, so they go together
+				pending.flip();
+				if (committed.remaining() < pending.remaining()) {
+					ByteBuffer grown = ByteBuffer.allocate(Math.max(committed.capacity() * 2, committed.position() + pending.remaining()));
+					committed.flip();
+					grown.put(committed);
+					committed = grown;
+				}
+				committed.put(pending);
+				pending.clear();
+			}
+			position = lastPosition;
+			committedPosition = position;
+			lock.notifyAll();
+
+			if (durability != Durability.SYNC)
+				return;
+
+			while (forcedPosition < position && writeError == null) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for the log.");
+				}
+			}
+			if (writeError != null)
+				throw writeError;
+		}
+	}
+
+	/**
+	 * Returns the log position of the last appended change.
+	 *
+	 * @return the log position, or 0 if nothing has been logged
+	 */
+	public long getLastPosition() {
+		synchronized (lock) {
+			return lastPosition;
+		}
+	}
+
+	/**
+	 * Returns the amount of forces, which is the amount of commits written with a
+	 * durability other than {@link Durability#NONE}.
+	 *
+	 * @return the amount of forces
+	 */
+	public long getForceCount() {
+		synchronized (lock) {
+			return forceCount;
+		}
+	}
+
+	/**
+	 * Applies the logged changes after the given log position into the devices of the
+	 * server in the order they were logged, without telling the listeners. Must be called
+	 * before appending, with the log position of the restored snapshot. Changes of devices
+	 * not found in the server or of a different value type are skipped.
+	 *
+	 * @param server the server of which devices are restored
+	 * @param afterPosition the log position of the restored snapshot, 0 if none
+	 * @return the amount of applied changes
+	 * @throws IOException if a segment can not be read
+	 */
+	public int replay(OhapServer server, long afterPosition) throws IOException {
+		int applied = 0;
+		ByteBuffer buffer = ByteBuffer.allocate(256 * RECORD_SIZE);
+
+		for (File file : listSegments()) {
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+				FileChannel channel = randomAccessFile.getChannel();
+				buffer.clear();
+				while (channel.read(buffer) > 0 || buffer.position() > 0) {
+					buffer.flip();
+					while (buffer.remaining() >= RECORD_SIZE) {
+						if (!isValidRecord(buffer, crc))
+							break;
+						long position = buffer.getLong();
+						long identifier = buffer.getLong();
+						double value = buffer.getDouble();
+						buffer.getInt();
+						if (position > afterPosition && apply(server, identifier, value))
+							applied++;
+					}
+					if (buffer.remaining() >= RECORD_SIZE || (buffer.hasRemaining() && channel.position() == channel.size()))
+						break; // invalid or torn record, the rest of the segment is ignored
+					buffer.compact();
+				}
+			}
+		}
+
+		synchronized (lock) {
+			// the changes after the snapshot continue from its log position
+			if (lastPosition < afterPosition) {
+				lastPosition = afterPosition;
+				committedPosition = afterPosition;
+				forcedPosition = afterPosition;
+			}
+		}
+
+		return applied;
+	}
+
+	/**
+	 * Deletes the segments of which all changes are at or before the given log position,
+	 * that is, included in a snapshot. The segment being written is never deleted.
+	 *
+	 * @param snapshotPosition the log position of the latest snapshot
+	 * @return the amount of deleted segments
+	 */
+	public int compact(long snapshotPosition) {
+		File[] segments = listSegments();
+		int deleted = 0;
+		// a segment ends where the next one starts
+		for (int i = 0; i + 1 < segments.length; i++) {
+			if (firstPosition(segments[i + 1]) - 1 > snapshotPosition)
+				break;
+			if (segments[i].delete())
+				deleted++;
+		}
+
+		return deleted;
+	}
+
+	/**
+	 * Commits and forces the remaining changes and stops the writer thread.
+	 *
+	 * @throws IOException if the last changes could not be written
+	 */
+	public void close() throws IOException {
+		synchronized (lock) {
+			if (writeError == null && !closing)
+				commit();
+			closing = true;
+			lock.notifyAll();
+		}
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized (lock) {
+			if (writeError != null)
+				throw writeError;
+		}
+	}
+
+	/**
+	 * The loop of the writer thread. Takes all committed changes as one batch, writes them
+	 * and forces them once.
+	 */
+	private void writeBatches() {
+		while (true) {
+			long batchLastPosition;
+			synchronized (lock) {
+				while (committed.position() == 0 && !closing) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						closing = true;
+					}
+				}
+				if (committed.position() == 0)
+					break;
+
+				ByteBuffer batch = committed;
+				committed = writing;
+				writing = batch;
+				batchLastPosition = committedPosition;
+			}
+
+			try {
+				writing.flip();
+				writeBatch(writing);
+				if (durability != Durability.NONE)
+					segment.force(false);
+			} catch (IOException e) {
+				synchronized (lock) {
+					writeError = e;
+					lock.notifyAll();
+				}
+				break;
+			} finally {
+				writing.clear();
+			}
+
+			synchronized (lock) {
+				forcedPosition = batchLastPosition;
+				if (durability != Durability.NONE)
+					forceCount++;
+				lock.notifyAll();
+			}
+		}
+
+		try {
+			if (segment != null)
+				segment.close();
+		} catch (IOException e) {
+			synchronized (lock) {
+				if (writeError == null)
+					writeError = e;
+			}
+		}
+	}
+
+	/**
+	 * Writes the records of a batch, starting a new segment when the current one is full.
+	 */
+	private void writeBatch(ByteBuffer batch) throws IOException {
+		while (batch.hasRemaining()) {
+			if (segment == null || segmentLength >= segmentSize)
+				startSegment(batch.getLong(batch.position()));
+
+			// write the records fitting into the segment
+			long room = segmentSize - segmentLength;
+			int records = (int)Math.max(1, Math.min(batch.remaining() / RECORD_SIZE, (room + RECORD_SIZE - 1) / RECORD_SIZE));
+			int limit = batch.limit();
+			batch.limit(batch.position() + records * RECORD_SIZE);
+			while (batch.hasRemaining())
+				segmentLength += segment.write(batch);
+			batch.limit(limit);
+		}
+	}
+
+	private void startSegment(long firstPosition) throws IOException {
+		if (segment != null) {
+			if (durability != Durability.NONE)
+				segment.force(false);
+			segment.close();
+		}
+
+		File file = new File(directory, String.format("%016x", firstPosition) + SEGMENT_SUFFIX);
+		segment = new RandomAccessFile(file, "rw").getChannel();
+		segment.truncate(0);
+		segmentLength = 0;
+	}
+
+	/**
+	 * Finds the last valid change of the last segment and truncates anything after it.
+	 * The segment is continued by the next change.
+	 */
+	private void openLastSegment(File file) throws IOException {
+		lastPosition = firstPosition(file) - 1;
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+
+		ByteBuffer buffer = ByteBuffer.allocate(256 * RECORD_SIZE);
+		long validLength = 0;
+		boolean valid = true;
+		while (valid && channel.read(buffer) > 0) {
+			buffer.flip();
+			while (buffer.remaining() >= RECORD_SIZE) {
+				if (!isValidRecord(buffer, crc)) {
+					valid = false;
+					break;
+				}
+				lastPosition = buffer.getLong(buffer.position());
+				buffer.position(buffer.position() + RECORD_SIZE);
+				validLength += RECORD_SIZE;
+			}
+			buffer.compact();
+		}
+
+		channel.truncate(validLength);
+		channel.position(validLength);
+		segment = channel;
+		segmentLength = validLength;
+	}
+
+	private static boolean isValidRecord(ByteBuffer buffer, CRC32 crc) {
+		int start = buffer.position();
+		crc.reset();
+		crc.update(buffer.array(), buffer.arrayOffset() + start, RECORD_SIZE - 4);
+		return (int)crc.getValue() == buffer.getInt(start + RECORD_SIZE - 4);
+	}
+
+	private static boolean apply(OhapServer server, long identifier, double value) {
+		Item item = server.getItemByIdentifier(identifier & ~FLAG_BINARY);
+		if (!(item instanceof Device) || ((Device)item).isBinary() != ((identifier & FLAG_BINARY) != 0))
+			return false;
+
+		((Device)item).restoreValue(value);
+		return true;
+	}
+
+	private File[] listSegments() {
+		File[] segments = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (segments == null)
+			return new File[0];
+
+		// the fixed width hexadecimal names sort in log order
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private static long firstPosition(File segment) {
+		String name = segment.getName();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16);
+	}
+}
@@ -0,0 +1,140 @@
+
+/*
+ * Miscellaneous Java Utilities by Henrik Hedberg
+ * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of direct {@link ByteBuffer}s sliced from shared slabs.
+ *
+ * <p>The pool has a few size classes, each backed by one direct slab allocated up front,
+ * so that small frames do not take a large buffer and the buffers are not allocated nor
+ * freed while the server runs. A socket write from a direct buffer needs no copy into a
+ * temporary direct buffer, which the JDK makes for heap buffers.
+ *
+ * <p>{@link #acquire(int)} returns a heap buffer when the requested size is larger than
+ * the largest class or the class is exhausted. Such a buffer is left to the garbage
+ * collector when released. The pool may be used from several threads.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20160312)
+ */
+public class BufferPool implements BufferOwner {
+	private static final int[] DEFAULT_SIZES = { 64, 256, 1024, 4096 };
+	private static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+	private SizeClass[] sizeClasses;
+
+	/**
+	 * Constructs a new pool with 64, 256, 1024 and 4096 byte buffers, one megabyte
+	 * of each.
+	 */
+	public BufferPool() {
+		this(DEFAULT_SIZES, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * Constructs a new pool.
+	 *
+	 * @param sizes buffer sizes of the classes in ascending order
+	 * @param slabSize bytes in the slab of each class
+	 */
+	public BufferPool(int[] sizes, int slabSize) {
+		sizeClasses = new SizeClass[sizes.length];
+		for (int i = 0; i < sizes.length; i++)
+			sizeClasses[i] = new SizeClass(sizes[i], slabSize / sizes[i]);
+	}
+
+	/**
+	 * Returns a cleared buffer with at least the given capacity.
+	 *
+	 * @param size the needed capacity in bytes
+	 * @return buffer to release with {@link #release(ByteBuffer)} when done
+	 */
+	public ByteBuffer acquire(int size) {
+		for (SizeClass sizeClass : sizeClasses) {
+			if (size <= sizeClass.size) {
+				ByteBuffer buffer = sizeClass.poll();
+				if (buffer != null)
+					return buffer;
+			}
+		}
+		return ByteBuffer.allocate(size);
+	}
+
+	public void release(ByteBuffer buffer) {
+		if (!buffer.isDirect())
+			return;
+		for (SizeClass sizeClass : sizeClasses) {
+			if (buffer.capacity() == sizeClass.size) {
+				buffer.clear();
+				sizeClass.offer(buffer);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of free buffers in the pool.
+	 *
+	 * @return free buffers of all classes
+	 */
+	public int getFreeCount() {
+		int count = 0;
+		for (SizeClass sizeClass : sizeClasses)
+			count += sizeClass.getCount();
+		return count;
+	}
+
+	private static class SizeClass {
+		private final int size;
+		private final ByteBuffer[] free;
+		private int count;
+
+		SizeClass(int size, int bufferCount) {
+			this.size = size;
+			free = new ByteBuffer[bufferCount];
+			ByteBuffer slab = ByteBuffer.allocateDirect(size * bufferCount);
+			for (int i = 0; i < bufferCount; i++) {
+				slab.limit((i + 1) * size).position(i * size);
+				free[i] = slab.slice();
+			}
+			count = bufferCount;
+		}
+
+		synchronized ByteBuffer poll() {
+			if (count == 0)
+				return null;
+			ByteBuffer buffer = free[--count];
+			free[count] = null;
+			return buffer;
+		}
+
+		synchronized void offer(ByteBuffer buffer) {
+			if (count < free.length)
+				free[count++] = buffer;
+		}
+
+		synchronized int getCount() {
+			return count;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Miscellaneous Java Utilities by Henrik Hedberg
+ * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package com.henrikhedberg.util;
+
+/**
+ * The outcome of draining a server: how many connections were closed after their
+ * pending bytes had been written, how many had to be closed at the deadline, and
+ * how many bytes were written while draining.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20160312)
+ */
+public class DrainReport {
+	private final int drainedConnections;
+	private final int abortedConnections;
+	private final long bytes;
+	private final long millis;
+
+	public DrainReport(int drainedConnections, int abortedConnections, long bytes, long millis) {
+		this.drainedConnections = drainedConnections;
+		this.abortedConnections = abortedConnections;
+		this.bytes = bytes;
+		this.millis = millis;
+	}
+
+	/**
+	 * Returns the number of connections closed after their pending bytes had been written.
+	 *
+	 * @return drained connections
+	 */
+	public int getDrainedConnections() {
+		return drainedConnections;
+	}
+
+	/**
+	 * Returns the number of connections closed at the deadline with bytes still pending.
+	 *
+	 * @return aborted connections
+	 */
+	public int getAbortedConnections() {
+		return abortedConnections;
+	}
+
+	/**
+	 * Returns the number of bytes written to the connections while draining.
+	 *
+	 * @return written bytes
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns how long draining took.
+	 *
+	 * @return milliseconds
+	 */
+	public long getMillis() {
+		return millis;
+	}
+
+	@Override
+	public String toString() {
+		return "Drained " + drainedConnections + " connections and aborted " + abortedConnections +
+			", wrote " + bytes + " bytes in " + millis + " ms";
+	}
+}
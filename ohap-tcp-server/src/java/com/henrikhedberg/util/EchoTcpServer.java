@@ -68,6 +68,13 @@ public class EchoTcpServer extends TcpServer {
 				} catch (IOException e) {
 				}
 			}
+
+			public void handleOverflow(TcpServerConnection connection) {
+				try {
+					connection.close();
+				} catch (IOException e) {
+				}
+			}
 		});
 	}
 	
@@ -0,0 +1,193 @@
+
+/*
+ * Miscellaneous Java Utilities by Henrik Hedberg
+ * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+package com.henrikhedberg.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive long keys to values.
+ *
+ * <p>The keys are stored in an open-addressing table with linear probing, so that
+ * a lookup boxes nothing and reads adjacent array slots instead of following entry
+ * objects. A table of a million entries takes two arrays instead of a million
+ * entry and key objects.
+ *
+ * <p>Null values are not supported, because an empty slot is marked by a null value.
+ * Removal shifts the following entries of the probe sequence back, so no tombstones
+ * are left behind. The map is not synchronized.
+ *
+ * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
+ * @version 1.0 (20261018)
+ */
+public class LongMap<V> {
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int size;
+	private int threshold;
+
+	/**
+	 * Constructs an empty map.
+	 */
+	public LongMap() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Returns the value mapped to the given key.
+	 *
+	 * @param key the key
+	 * @return the value, or null if the key is not mapped
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		int mask = keys.length - 1;
+		for (int index = hash(key) & mask; ; index = (index + 1) & mask) {
+			Object value = values[index];
+			if (value == null)
+				return null;
+			if (keys[index] == key)
+				return (V)value;
+		}
+	}
+
+	/**
+	 * Maps the given key to the given value.
+	 *
+	 * @param key the key
+	 * @param value the value, not null
+	 * @return the previous value of the key, or null if the key was not mapped
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null)
+			throw new IllegalArgumentException("Null values are not supported.");
+
+		int mask = keys.length - 1;
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				V previousValue = (V)values[index];
+				values[index] = value;
+				return previousValue;
+			}
+			index = (index + 1) & mask;
+		}
+
+		keys[index] = key;
+		values[index] = value;
+		if (++size > threshold)
+			grow();
+
+		return null;
+	}
+
+	/**
+	 * Removes the mapping of the given key.
+	 *
+	 * @param key the key
+	 * @return the removed value, or null if the key was not mapped
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int mask = keys.length - 1;
+		int index = hash(key) & mask;
+		while (values[index] != null) {
+			if (keys[index] == key) {
+				V removedValue = (V)values[index];
+				shiftBack(index);
+				size--;
+				return removedValue;
+			}
+			index = (index + 1) & mask;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the amount of entries in the map.
+	 *
+	 * @return the amount of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all entries. The capacity of the table is kept.
+	 */
+	public void clear() {
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * Empties the given slot and moves the following entries of the probe sequence
+	 * back to the slots they would be found from.
+	 */
+	private void shiftBack(int index) {
+		int mask = keys.length - 1;
+		int next = (index + 1) & mask;
+		while (values[next] != null) {
+			int home = hash(keys[next]) & mask;
+			// move the entry if its home slot is not between the gap and its current slot
+			if (((next - home) & mask) >= ((next - index) & mask)) {
+				keys[index] = keys[next];
+				values[index] = values[next];
+				index = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[index] = null;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(keys.length * 2);
+
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] == null)
+				continue;
+			int index = hash(oldKeys[i]) & mask;
+			while (values[index] != null)
+				index = (index + 1) & mask;
+			keys[index] = oldKeys[i];
+			values[index] = oldValues[i];
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		threshold = capacity / 2;
+	}
+
+	/**
+	 * Spreads the key bits so that sequential identifiers do not form long probe runs.
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9e3779b97f4a7c15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -20,18 +20,52 @@
 
 package com.henrikhedberg.util;
 
+import java.nio.ByteBuffer;
 import java.nio.channels.*;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.IOException;
 
 /**
  * A loop around the {@link Selector}. Handlers for accepting, connecting, reading and writing
  * may be registered for {@link SelectableChannel}s. 
+ *
+ * <p>A channel is registered to the selector once. The returned {@link Registration} keeps
+ * the {@link SelectionKey} and the handlers of the channel, so a caller changing its handlers
+ * often, like a connection toggling its writable handler, should keep the registration
+ * instead of calling the <code>register*Handler</code> methods.
+ *
+ * <p>The handlers are called in the thread running the loop. Other threads may hand tasks
+ * to that thread with {@link #execute(Runnable)}. A handler may defer work, like flushing
+ * the writes of a connection, to the end of the iteration with {@link #executeAtEnd(Runnable)}.
+ *
+ * <p>Delayed tasks are kept in a hashed timer wheel with {@link #TICK_MILLIS} long ticks.
+ * Adding and cancelling a {@link Timeout} takes constant time, and while there are pending
+ * timeouts the select waits at most until the next tick.
  */
 public class SelectorLoop implements Runnable {
 	private Selector selector;
-	private boolean running = true;
+	private volatile boolean running = true;
 	private IOException exception = null;
+	private volatile Thread thread;
+	private static final ThreadLocal<SelectorLoop> currentLoop = new ThreadLocal<>();
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+	private ArrayList<Runnable> endTasks = new ArrayList<>();
+	private ArrayList<Runnable> runningEndTasks = new ArrayList<>();
+	private static final int READ_BUFFER_SIZE = 128 * 1024;
+	private ByteBuffer readBuffer;
+
+	/**
+	 * The resolution of the timer wheel in milliseconds.
+	 */
+	public static final long TICK_MILLIS = 100;
+	private static final int WHEEL_SIZE = 512;
+	private final Timeout[] wheel = new Timeout[WHEEL_SIZE];
+	private long currentTick = currentMillis() / TICK_MILLIS;
+	private int timeoutCount;
 	
 	/**
 	 * Constructs a new SelectorLoop.
@@ -40,26 +74,122 @@ public class SelectorLoop implements Runnable {
 		selector = Selector.open();
 	}
 	
+	/**
+	 * Registers the given channel without any handlers, or returns the existing
+	 * registration of the channel.
+	 *
+	 * @param channel the channel to register
+	 * @return registration for setting the handlers of the channel
+	 * @throws ClosedChannelException if the channel is closed
+	 */
+	public Registration register(SelectableChannel channel) throws ClosedChannelException {
+		SelectionKey selectionKey = channel.keyFor(selector);
+		if (selectionKey != null)
+			return (Registration)selectionKey.attachment();
+
+		Registration registration = new Registration();
+		registration.selectionKey = channel.register(selector, 0, registration);
+		return registration;
+	}
+
 	public void registerAcceptableHandler(SelectableChannel channel, AcceptableHandler handler) throws ClosedChannelException {
-		HandlerData handlerData = getHandlerData(channel, handler != null, SelectionKey.OP_ACCEPT);
-		handlerData.acceptableHandler = handler;
+		register(channel).setAcceptableHandler(handler);
 	}
 	
 	public void registerConnectableHandler(SelectableChannel channel, ConnectableHandler handler) throws ClosedChannelException {
-		HandlerData handlerData = getHandlerData(channel, handler != null, SelectionKey.OP_CONNECT);
-		handlerData.connectableHandler = handler;
+		register(channel).setConnectableHandler(handler);
 	}
 	
 	public void registerReadableHandler(SelectableChannel channel, ReadableHandler handler) throws ClosedChannelException {
-		HandlerData handlerData = getHandlerData(channel, handler != null, SelectionKey.OP_READ);
-		handlerData.readableHandler = handler;
+		register(channel).setReadableHandler(handler);
 	}
 	
 	public void registerWritableHandler(SelectableChannel channel, WritableHandler handler) throws ClosedChannelException {
-		HandlerData handlerData = getHandlerData(channel, handler != null, SelectionKey.OP_WRITE);
-		handlerData.writableHandler = handler;
+		register(channel).setWritableHandler(handler);
 	}
 	
+	/**
+	 * Runs the given task in the thread running the loop. The task is run at the
+	 * beginning of the next iteration of the loop.
+	 *
+	 * <p>The tasks are queued without locking. Only the first task of a batch wakes up
+	 * the selector, the rest are taken in the same iteration. A task queued by the loop
+	 * itself does not wake up the selector, because the queue is drained before the
+	 * next select.
+	 *
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task) {
+		tasks.offer(task);
+		if (!isLoopThread() && wakeupPending.compareAndSet(false, true))
+			selector.wakeup();
+	}
+
+	/**
+	 * Runs the given task once at the end of the current iteration of the loop, after
+	 * the ready channels, the expired timeouts and the queued tasks have been handled
+	 * and just before the loop waits in the select again. Must be called in the thread
+	 * running the loop.
+	 *
+	 * @param task the task to run
+	 */
+	public void executeAtEnd(Runnable task) {
+		endTasks.add(task);
+	}
+
+	/**
+	 * Runs the given task in the thread running the loop after the given delay. The delay
+	 * is rounded up to the next tick of the timer wheel.
+	 *
+	 * @param task the task to run
+	 * @param delay the delay in milliseconds
+	 * @return timeout that may be used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		final Timeout timeout = new Timeout(this, task, (currentMillis() + delay + TICK_MILLIS - 1) / TICK_MILLIS);
+		if (isLoopThread())
+			addTimeout(timeout);
+		else
+			execute(new Runnable() {
+				public void run() {
+					addTimeout(timeout);
+				}
+			});
+		return timeout;
+	}
+
+	/**
+	 * Returns the direct buffer for reading channels in the thread running the loop.
+	 * The buffer is shared by all channels of the loop, so a handler must take what it
+	 * needs from the buffer before it returns. It holds at least one maximum sized OHAP
+	 * frame together with the leftovers of the previous one.
+	 *
+	 * @return buffer for reading in the loop
+	 */
+	public ByteBuffer getReadBuffer() {
+		if (readBuffer == null)
+			readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		return readBuffer;
+	}
+
+	/**
+	 * Returns whether the calling thread is the thread running the loop.
+	 *
+	 * @return whether called from the loop
+	 */
+	public boolean isLoopThread() {
+		return thread == Thread.currentThread();
+	}
+
+	/**
+	 * Returns the loop running in the calling thread.
+	 *
+	 * @return the loop, or null if called outside of a loop
+	 */
+	public static SelectorLoop current() {
+		return currentLoop.get();
+	}
+
 	/**
 	 * Clears and returns the {@link IOException} caught in the {@link #run()} loop.
 	 *
@@ -82,27 +212,45 @@ public class SelectorLoop implements Runnable {
 		if (exception != null)
 			return;
 
+		thread = Thread.currentThread();
+		currentLoop.set(this);
 		try {
 			while (running) {
-				if (selector.select() > 0) {
+				runTasks();
+				while (!endTasks.isEmpty()) {
+					runEndTasks();
+					runTasks();
+				}
+				int selected;
+				if (timeoutCount > 0)
+					selected = selector.select(Math.max(1, (currentTick + 1) * TICK_MILLIS - currentMillis()));
+				else
+					selected = selector.select();
+				if (selected > 0) {
 					Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
 					while(iterator.hasNext()) {
 						SelectionKey selectionKey = iterator.next();
-						HandlerData handlerData = (HandlerData)selectionKey.attachment();
+						Registration registration = (Registration)selectionKey.attachment();
 						if (selectionKey.isValid() && selectionKey.isAcceptable())
-							handlerData.acceptableHandler.handleAcceptable(selectionKey.channel());
+							registration.acceptableHandler.handleAcceptable(selectionKey.channel());
 						if (selectionKey.isValid() && selectionKey.isConnectable())
-							handlerData.connectableHandler.handleConnectable(selectionKey.channel());
+							registration.connectableHandler.handleConnectable(selectionKey.channel());
 						if (selectionKey.isValid() && selectionKey.isReadable())
-							handlerData.readableHandler.handleReadable(selectionKey.channel());
+							registration.readableHandler.handleReadable(selectionKey.channel());
 						if (selectionKey.isValid() && selectionKey.isWritable())
-							handlerData.writableHandler.handleWritable(selectionKey.channel());
+							registration.writableHandler.handleWritable(selectionKey.channel());
 						iterator.remove();
 					}
 				}
+				if (timeoutCount > 0)
+					expireTimeouts(currentMillis() / TICK_MILLIS);
 			}
 		} catch (IOException e) {
-			exception = null;
+			exception = e;
+		} finally {
+			currentLoop.remove();
+			thread = null;
+			running = true;
 		}
 	}
 
@@ -114,27 +262,118 @@ public class SelectorLoop implements Runnable {
 		selector.wakeup();
 	}
 
-	private HandlerData getHandlerData(SelectableChannel channel, boolean setInterest, int interest) throws ClosedChannelException{
-		HandlerData handlerData;
-		int interestOps = 0;
-		
-		SelectionKey selectionKey = channel.keyFor(selector);
-		if (selectionKey != null) {
-			handlerData = (HandlerData)selectionKey.attachment();
-			interestOps = selectionKey.interestOps();
-		} else
-			handlerData = new HandlerData();
-		
-		if (setInterest)
-			interestOps |= interest;
+	private void runTasks() {
+		// cleared before draining, so that a task queued after this wakes up the next select
+		wakeupPending.set(false);
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			task.run();
+	}
+
+	private void runEndTasks() {
+		// swapped, so that a task may defer more work to the next round
+		ArrayList<Runnable> tasks = endTasks;
+		endTasks = runningEndTasks;
+		runningEndTasks = tasks;
+		for (int i = 0; i < tasks.size(); i++)
+			tasks.get(i).run();
+		tasks.clear();
+	}
+
+	private void addTimeout(Timeout timeout) {
+		if (timeout.cancelled)
+			return;
+		if (timeout.deadlineTick <= currentTick)
+			timeout.deadlineTick = currentTick + 1;
+		int slot = (int)(timeout.deadlineTick & (WHEEL_SIZE - 1));
+		timeout.next = wheel[slot];
+		if (timeout.next != null)
+			timeout.next.previous = timeout;
+		wheel[slot] = timeout;
+		timeout.linked = true;
+		timeoutCount++;
+	}
+
+	private void removeTimeout(Timeout timeout) {
+		if (!timeout.linked)
+			return;
+		if (timeout.previous != null)
+			timeout.previous.next = timeout.next;
 		else
-			interestOps &= ~interest;
-		
-		channel.register(selector, interestOps, handlerData);
-		
-		return handlerData;	
+			wheel[(int)(timeout.deadlineTick & (WHEEL_SIZE - 1))] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.previous = timeout.previous;
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.linked = false;
+		timeoutCount--;
 	}
-	
+
+	private void expireTimeouts(long tick) {
+		if (tick <= currentTick)
+			return;
+
+		// after a long stall every slot is visited once
+		Timeout expired = null;
+		for (long t = Math.max(currentTick + 1, tick - WHEEL_SIZE + 1); t <= tick; t++) {
+			Timeout timeout = wheel[(int)(t & (WHEEL_SIZE - 1))];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.cancelled || timeout.deadlineTick <= tick) {
+					removeTimeout(timeout);
+					if (!timeout.cancelled) {
+						timeout.next = expired;
+						expired = timeout;
+					}
+				}
+				timeout = next;
+			}
+		}
+		currentTick = tick;
+
+		// run after unlinking, so that the tasks may schedule new timeouts
+		while (expired != null) {
+			Timeout timeout = expired;
+			expired = timeout.next;
+			timeout.next = null;
+			if (!timeout.cancelled)
+				timeout.task.run();
+		}
+	}
+
+	private static long currentMillis() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * A task scheduled with {@link SelectorLoop#schedule(Runnable, long)}.
+	 */
+	public static class Timeout {
+		private final SelectorLoop selectorLoop;
+		private final Runnable task;
+		private long deadlineTick;
+		private Timeout previous;
+		private Timeout next;
+		private boolean linked;
+		private volatile boolean cancelled;
+
+		private Timeout(SelectorLoop selectorLoop, Runnable task, long deadlineTick) {
+			this.selectorLoop = selectorLoop;
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+
+		/**
+		 * Cancels the task. May be called from any thread. If called from other thread
+		 * than the loop, the timeout is unlinked from the wheel when its slot is visited.
+		 */
+		public void cancel() {
+			cancelled = true;
+			if (selectorLoop.isLoopThread())
+				selectorLoop.removeTimeout(this);
+		}
+	}
+
 	public static interface AcceptableHandler {
 		public void handleAcceptable(SelectableChannel channel);
 	}
@@ -151,10 +390,53 @@ public class SelectorLoop implements Runnable {
 		public void handleWritable(SelectableChannel channel);
 	}
 
-	private static class HandlerData {
-		public AcceptableHandler acceptableHandler;
-		public ConnectableHandler connectableHandler;
-		public ReadableHandler readableHandler;
-		public WritableHandler writableHandler;
+	/**
+	 * The registration of a channel in the loop. Setting a handler adds the corresponding
+	 * operation to the interest set of the cached {@link SelectionKey}, and setting null
+	 * removes it, without registering the channel again.
+	 */
+	public static class Registration {
+		private SelectionKey selectionKey;
+		private AcceptableHandler acceptableHandler;
+		private ConnectableHandler connectableHandler;
+		private ReadableHandler readableHandler;
+		private WritableHandler writableHandler;
+
+		private Registration() {
+		}
+
+		public void setAcceptableHandler(AcceptableHandler handler) throws ClosedChannelException {
+			acceptableHandler = handler;
+			setInterest(SelectionKey.OP_ACCEPT, handler != null);
+		}
+
+		public void setConnectableHandler(ConnectableHandler handler) throws ClosedChannelException {
+			connectableHandler = handler;
+			setInterest(SelectionKey.OP_CONNECT, handler != null);
+		}
+
+		public void setReadableHandler(ReadableHandler handler) throws ClosedChannelException {
+			readableHandler = handler;
+			setInterest(SelectionKey.OP_READ, handler != null);
+		}
+
+		public void setWritableHandler(WritableHandler handler) throws ClosedChannelException {
+			writableHandler = handler;
+			setInterest(SelectionKey.OP_WRITE, handler != null);
+		}
+
+		private void setInterest(int interest, boolean set) throws ClosedChannelException {
+			if (!selectionKey.isValid()) {
+				if (set)
+					throw new ClosedChannelException();
+				return;
+			}
+			if (((selectionKey.interestOps() & interest) != 0) == set)
+				return;
+			if (set)
+				selectionKey.interestOpsOr(interest);
+			else
+				selectionKey.interestOpsAnd(~interest);
+		}
 	}
 }
@@ -1,4 +1,3 @@
-
 /*
  * Miscellaneous Java Utilities by Henrik Hedberg
  * Copyright (C) 2016 Henrik Hedberg <henrik.hedberg@iki.fi>
@@ -22,23 +21,59 @@ package com.henrikhedberg.util;
 
 import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SelectableChannel;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
- * A simple base class for single-threaded TCP servers. Subclasses must implement the
+ * A simple base class for TCP servers. Subclasses must implement the
  * {@link #acceptConnection(TcpServerConnection)} method.
  *
+ * <p>By default the server is single-threaded: the loop of the server itself accepts
+ * the connections and handles all reads and writes. With worker loops, the loop of the
+ * server only accepts connections and hands each of them to the worker loop that has
+ * the least connections. A connection is handled by its worker loop until it is closed,
+ * and {@link #acceptConnection(TcpServerConnection)} is called in that loop.
+ *
+ * <p>The server is shut down gracefully with {@link #drain(Runnable, long)}, which stops
+ * accepting, lets the caller say goodbye to the peers, and closes each connection once
+ * its queued bytes have been written or the deadline has passed.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.0 (20160312)
+ * @version 1.1 (20160312)
  */
 public abstract class TcpServer extends SelectorLoop {
 	private ServerSocketChannel serverSocketChannel;
+	private SelectorLoop[] workers;
+	private Thread[] workerThreads;
+	private int[] workerConnections;
+	private int nextWorker;
+	private HashSet<TcpServerConnection> connections = new HashSet<>();
+	private volatile boolean accepting = true;
 	
 	public TcpServer(SocketAddress address) throws IOException {
+		this(address, 0);
+	}
+
+	/**
+	 * Constructs a new server with the given amount of worker loops. The workers are
+	 * started and stopped together with the server.
+	 *
+	 * @param address the address to listen
+	 * @param workerCount the amount of worker loops, or 0 to handle the connections in the loop of the server
+	 */
+	public TcpServer(SocketAddress address, int workerCount) throws IOException {
+		workers = new SelectorLoop[workerCount];
+		workerThreads = new Thread[workerCount];
+		workerConnections = new int[workerCount];
+		for (int i = 0; i < workerCount; i++)
+			workers[i] = new SelectorLoop();
+
 		serverSocketChannel = ServerSocketChannel.open();
-		serverSocketChannel.bind(address).configureBlocking(false);
+		serverSocketChannel.bind(address, 1024).configureBlocking(false);
 		registerAcceptableHandler(serverSocketChannel, new SelectorLoop.AcceptableHandler() {
 			public void handleAcceptable(SelectableChannel channel) {
 				handleAccept();
@@ -48,14 +83,192 @@ public abstract class TcpServer extends SelectorLoop {
 
 	protected abstract void acceptConnection(TcpServerConnection connection);
 
+	/**
+	 * Returns the amount of worker loops.
+	 *
+	 * @return amount of worker loops, 0 if the connections are handled in the loop of the server
+	 */
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	/**
+	 * Starts the worker loops in their own threads and runs the loop of the server.
+	 */
+	@Override
+	public void run() {
+		for (int i = 0; i < workers.length; i++) {
+			workerThreads[i] = new Thread(workers[i], "TcpServer worker " + i);
+			workerThreads[i].start();
+		}
+		super.run();
+	}
+
+	/**
+	 * Stops the loop of the server and the worker loops.
+	 */
+	@Override
+	public void stop() {
+		super.stop();
+		for (SelectorLoop worker : workers)
+			worker.stop();
+	}
+
+	/**
+	 * Stops accepting new connections. The listening socket is closed in the loop of
+	 * the server, so that the selector releases it. The established connections are
+	 * not affected.
+	 */
+	public void stopAccepting() {
+		accepting = false;
+		execute(new Runnable() {
+			public void run() {
+				try {
+					serverSocketChannel.close();
+				} catch (IOException e) {
+				}
+			}
+		});
+	}
+
+	/**
+	 * Drains the server in stages. First, stops accepting new connections. Then, runs the
+	 * given goodbye, which typically writes a final message to each peer, and asks every
+	 * connection to close once its queued bytes have been written. Waits until all the
+	 * connections have closed or the timeout has elapsed, and then closes the rest.
+	 *
+	 * <p>Must not be called in the loop of the server nor in its worker loops, because
+	 * they write the queued bytes while this waits.
+	 *
+	 * @param goodbye run after accepting has stopped, or null
+	 * @param timeout milliseconds to wait for the queued bytes to be written
+	 * @return the numbers of drained and aborted connections and the bytes written
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public DrainReport drain(Runnable goodbye, long timeout) throws InterruptedException {
+		if (isLoopThread())
+			throw new IllegalStateException("Cannot drain in the loop of the server");
+		for (SelectorLoop worker : workers)
+			if (worker.isLoopThread())
+				throw new IllegalStateException("Cannot drain in a worker loop");
+
+		long start = System.nanoTime() / 1000000;
+		long deadline = start + timeout;
+		stopAccepting();
+
+		ArrayList<TcpServerConnection> draining;
+		synchronized (connections) {
+			draining = new ArrayList<>(connections);
+		}
+		long bytesBefore = 0;
+		for (TcpServerConnection connection : draining)
+			bytesBefore += connection.getBytesWritten();
+
+		if (goodbye != null)
+			goodbye.run();
+		for (TcpServerConnection connection : draining) {
+			try {
+				connection.closeWhenWritten();
+			} catch (IOException e) {
+			}
+		}
+
+		ArrayList<TcpServerConnection> aborted;
+		synchronized (connections) {
+			long now;
+			while (!connections.isEmpty() && (now = System.nanoTime() / 1000000) < deadline)
+				connections.wait(deadline - now);
+			aborted = new ArrayList<>(connections);
+		}
+		for (TcpServerConnection connection : aborted) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+			}
+		}
+
+		long bytes = -bytesBefore;
+		for (TcpServerConnection connection : draining)
+			bytes += connection.getBytesWritten();
+
+		return new DrainReport(Math.max(0, draining.size() - aborted.size()), aborted.size(), bytes, System.nanoTime() / 1000000 - start);
+	}
+
+	void connectionOpened(TcpServerConnection connection) {
+		synchronized (connections) {
+			connections.add(connection);
+		}
+	}
+
+	void connectionClosed(TcpServerConnection connection) {
+		synchronized (connections) {
+			connections.remove(connection);
+			connections.notifyAll();
+		}
+
+		int worker = connection.getWorker();
+		if (worker == -1)
+			return;
+
+		synchronized (workerConnections) {
+			workerConnections[worker]--;
+		}
+	}
+
 	private void handleAccept() {
 		try {
-			SocketChannel socketChannel = serverSocketChannel.accept();
-			if (socketChannel != null) {
-				TcpServerConnection connection = new TcpServerConnection(this, socketChannel);
-				acceptConnection(connection);
+			if (!accepting)
+				return;
+
+			final SocketChannel socketChannel = serverSocketChannel.accept();
+			if (socketChannel == null)
+				return;
+
+			if (workers.length == 0) {
+				acceptConnection(new TcpServerConnection(this, this, -1, socketChannel));
+				return;
 			}
+			
+			final int worker = chooseWorker();
+			workers[worker].execute(new Runnable() {
+				public void run() {
+					try {
+						if (!accepting)
+							throw new ClosedChannelException();
+						acceptConnection(new TcpServerConnection(TcpServer.this, workers[worker], worker, socketChannel));
+					} catch (IOException e) {
+						synchronized (workerConnections) {
+							workerConnections[worker]--;
+						}
+						try {
+							socketChannel.close();
+						} catch (IOException e2) {
+						}
+					}
+				}
+			});
 		} catch (IOException e) {
 		}
 	}
+
+	/**
+	 * Chooses the worker loop with the least connections. Ties are broken round-robin,
+	 * so that the workers are filled evenly.
+	 *
+	 * @return index of the chosen worker loop
+	 */
+	private int chooseWorker() {
+		synchronized (workerConnections) {
+			int chosen = nextWorker;
+			for (int i = 1; i < workers.length; i++) {
+				int worker = (nextWorker + i) % workers.length;
+				if (workerConnections[worker] < workerConnections[chosen])
+					chosen = worker;
+			}
+			nextWorker = (chosen + 1) % workers.length;
+			workerConnections[chosen]++;
+
+			return chosen;
+		}
+	}
 }
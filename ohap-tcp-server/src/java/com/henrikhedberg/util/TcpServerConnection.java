@@ -23,38 +23,221 @@ package com.henrikhedberg.util;
 import java.nio.*;
 import java.nio.channels.*;
 import java.net.SocketAddress;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.IOException;
 
 /**
  * An established TCP connection in {@link TcpServer}.
  *
+ * <p>A connection is pinned to one {@link SelectorLoop}, either the loop of the server
+ * or one of its worker loops. The handler is called in that loop. The connection may be
+ * written and closed from other threads too, in which case the operation is handed to
+ * the loop of the connection.
+ *
+ * <p>Writes are queued and flushed at the end of the iteration of the loop, so that
+ * all the messages written to a connection while handling one round of ready channels
+ * and tasks go to the socket with one gathering write. The queue is flushed earlier when
+ * it has more unflushed bytes or older unflushed bytes than the flush limits allow.
+ *
+ * <p>A small message may also be encoded in place: {@link #reserve(int)} returns the free
+ * end of a pooled buffer at the tail of the queue, and writing that buffer back with
+ * {@link #write(ByteBuffer)} appends the bytes written into it to the queue without
+ * copying them.
+ *
+ * <p>Bytes that cannot be written when flushing stay queued. When the queue grows above
+ * the high water mark, the {@link OverflowPolicy} is applied to new writes until the
+ * queue has been drained below the low water mark.
+ *
  * @author Henrik Hedberg &lt;henrik.hedberg@iki.fi&gt;
- * @version 1.0 (20160312)
+ * @version 1.1 (20160312)
  */
 public class TcpServerConnection {
+
+	/**
+	 * What to do with new writes while the write queue is above the water marks.
+	 */
+	public static enum OverflowPolicy {
+		/** Drop the new writes. */
+		DROP,
+		/** Replace a queued write with the same key, queue writes without a key. */
+		CONFLATE,
+		/** Discard the queue and let the handler end the connection. */
+		DISCONNECT
+	}
+
 	private TcpServer tcpServer;
+	private SelectorLoop selectorLoop;
+	private int worker;
 	private SocketChannel socketChannel;
+	private SelectorLoop.Registration registration;
 	private Handler handler;
-	private LinkedList<ByteBuffer> writeBuffers = new LinkedList<>();
+	private ByteBuffer[] writeBuffers = new ByteBuffer[16];
+	private BufferOwner[] writeOwners = new BufferOwner[16];
+	private long[] writeKeys = new long[16];
+	private int writeHead;
+	private int writeCount;
+	private long writeSequence;
+	private HashMap<Long, Long> writeSequencesByKey = new HashMap<>();
 	private SelectorLoop.WritableHandler writableHandler;
+	private boolean writeBlocked;
+	private final AtomicInteger handedWrites = new AtomicInteger();
+
+	private static final int APPEND_BUFFER_SIZE = 4096;
+	private BufferPool bufferPool;
+	private ByteBuffer appendBuffer;
+	private ByteBuffer appendView;
+	private boolean appendQueued;
+	private final BufferOwner appendOwner = new BufferOwner() {
+		public void release(ByteBuffer buffer) {
+			if (buffer == appendBuffer) {
+				appendBuffer = null;
+				appendView = null;
+			}
+			bufferPool.release(buffer);
+		}
+	};
+
+	private int flushBytes = 64 * 1024;
+	private long flushDelay = 1000000;
+	private int unflushedBytes;
+	private long flushDeadline;
+	private boolean flushScheduled;
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flushScheduled = false;
+			if (closed)
+				return;
+			try {
+				flush();
+			} catch (IOException e) {
+				writeFailed(e);
+			}
+		}
+	};
+
+	private int lowWaterMark = 64 * 1024;
+	private int highWaterMark = 256 * 1024;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.CONFLATE;
+	private boolean overflow;
+	private volatile int writeQueueLength;
+	private volatile int writeQueueBytes;
+	private volatile int droppedWrites;
+	private volatile long bytesWritten;
 	
-	TcpServerConnection(TcpServer tcpServer, SocketChannel socketChannel) throws IOException {
+	private long lingerTimeout = 10000;
+	private SelectorLoop.Timeout lingerTimer;
+	private boolean closing;
+	private boolean closed;
+	
+	TcpServerConnection(TcpServer tcpServer, SelectorLoop selectorLoop, int worker, SocketChannel socketChannel) throws IOException {
 		this.tcpServer = tcpServer;
+		this.selectorLoop = selectorLoop;
+		this.worker = worker;
 		this.socketChannel = socketChannel;
 
 		socketChannel.configureBlocking(false);
-		tcpServer.registerReadableHandler(socketChannel, new SelectorLoop.ReadableHandler() {
+		registration = selectorLoop.register(socketChannel);
+		registration.setReadableHandler(new SelectorLoop.ReadableHandler() {
 			public void handleReadable(SelectableChannel channel) {
 				if (handler != null)
 					handler.handleData(TcpServerConnection.this);
 			}
 		});
+		tcpServer.connectionOpened(this);
 	}
 	
 	public void close() throws IOException {
-		tcpServer.registerReadableHandler(socketChannel, null);
+		if (!selectorLoop.isLoopThread()) {
+			selectorLoop.execute(new Runnable() {
+				public void run() {
+					try {
+						close();
+					} catch (IOException e) {
+					}
+				}
+			});
+			return;
+		}
+
+		if (closed)
+			return;
+		closed = true;
+		if (lingerTimer != null)
+			lingerTimer.cancel();
+		tcpServer.connectionClosed(this);
+		registration.setReadableHandler(null);
 		socketChannel.close();
+		while (writeCount > 0)
+			removeWriteBuffer();
+		writeSequencesByKey.clear();
+		if (appendBuffer != null)
+			appendOwner.release(appendBuffer);
+	}
+	
+	/**
+	 * Closes the connection after the queued bytes have been written. Reading stops
+	 * immediately and new writes are dropped, so a final message written just before
+	 * this is the last one the peer gets. If writing fails or the peer does not read
+	 * the bytes within the linger timeout, the connection is closed without reporting
+	 * an exception to the handler.
+	 */
+	public void closeWhenWritten() throws IOException {
+		// after the pending handed writes, so that they are not dropped
+		if (!selectorLoop.isLoopThread() || handedWrites.get() > 0) {
+			selectorLoop.execute(new Runnable() {
+				public void run() {
+					try {
+						closeWhenWritten();
+					} catch (IOException e) {
+					}
+				}
+			});
+			return;
+		}
+
+		if (closed || closing)
+			return;
+		if (writeCount == 0) {
+			close();
+			return;
+		}
+		closing = true;
+		registration.setReadableHandler(null);
+		lingerTimer = selectorLoop.schedule(new Runnable() {
+			public void run() {
+				try {
+					close();
+				} catch (IOException e) {
+				}
+			}
+		}, lingerTimeout);
+	}
+
+	/**
+	 * Sets the time {@link #closeWhenWritten()} waits for the queued bytes to be written.
+	 *
+	 * @param lingerTimeout the timeout in milliseconds
+	 */
+	public void setLingerTimeout(final long lingerTimeout) {
+		runInLoop(new Runnable() {
+			public void run() {
+				TcpServerConnection.this.lingerTimeout = lingerTimeout;
+			}
+		});
+	}
+
+	/**
+	 * Returns the {@link SelectorLoop} this connection is pinned to.
+	 *
+	 * @return loop handling this connection
+	 */
+	public SelectorLoop getSelectorLoop() {
+		return selectorLoop;
+	}
+
+	int getWorker() {
+		return worker;
 	}
 	
 	public SocketAddress getRemoteAddress() throws IOException {
@@ -65,44 +248,454 @@ public class TcpServerConnection {
 		this.handler = handler;
 	}
 
+	/**
+	 * Sets the water marks of the write queue in bytes.
+	 *
+	 * @param lowWaterMark queue size below which writes are queued normally again
+	 * @param highWaterMark queue size above which the overflow policy is applied
+	 */
+	public void setWaterMarks(final int lowWaterMark, final int highWaterMark) {
+		if (lowWaterMark < 0 || lowWaterMark > highWaterMark)
+			throw new IllegalArgumentException("The low water mark must be between zero and the high water mark.");
+
+		runInLoop(new Runnable() {
+			public void run() {
+				TcpServerConnection.this.lowWaterMark = lowWaterMark;
+				TcpServerConnection.this.highWaterMark = highWaterMark;
+			}
+		});
+	}
+
+	/**
+	 * Sets how long writes may wait for the end of the iteration of the loop. A write
+	 * flushes the queue immediately when there are at least the given amount of unflushed
+	 * bytes, or when the oldest of them has waited the given time. Zero bytes flushes
+	 * every write immediately.
+	 *
+	 * @param flushBytes unflushed bytes that are flushed immediately
+	 * @param flushDelay microseconds after which the unflushed bytes are flushed by the next write
+	 */
+	public void setFlushLimits(final int flushBytes, final long flushDelay) {
+		if (flushBytes < 0 || flushDelay < 0)
+			throw new IllegalArgumentException("The flush limits must not be negative.");
+
+		runInLoop(new Runnable() {
+			public void run() {
+				TcpServerConnection.this.flushBytes = flushBytes;
+				TcpServerConnection.this.flushDelay = flushDelay * 1000;
+			}
+		});
+	}
+
+	/**
+	 * Sets the pool of the buffers into which {@link #reserve(int)} lets messages be
+	 * encoded in place. Without a pool, nothing is encoded in place.
+	 *
+	 * @param bufferPool the pool, or null
+	 */
+	public void setBufferPool(final BufferPool bufferPool) {
+		runInLoop(new Runnable() {
+			public void run() {
+				TcpServerConnection.this.bufferPool = bufferPool;
+			}
+		});
+	}
+
+	public void setOverflowPolicy(final OverflowPolicy overflowPolicy) {
+		runInLoop(new Runnable() {
+			public void run() {
+				TcpServerConnection.this.overflowPolicy = overflowPolicy;
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of buffers waiting in the write queue. May be called from any thread.
+	 *
+	 * @return queued buffers
+	 */
+	public int getWriteQueueLength() {
+		return writeQueueLength;
+	}
+
+	/**
+	 * Returns the number of bytes waiting in the write queue. May be called from any thread.
+	 *
+	 * @return queued bytes
+	 */
+	public int getWriteQueueBytes() {
+		return writeQueueBytes;
+	}
+
+	/**
+	 * Returns the number of writes dropped or replaced by the overflow policy.
+	 * May be called from any thread.
+	 *
+	 * @return dropped writes
+	 */
+	public int getDroppedWrites() {
+		return droppedWrites;
+	}
+
+	/**
+	 * Returns the number of bytes written to the socket so far. May be called from any thread.
+	 *
+	 * @return written bytes
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
 	public int read(ByteBuffer buffer) throws IOException {
 		return socketChannel.read(buffer);
 	}
 	
+	/**
+	 * Reserves at least the given amount of bytes at the tail of the write queue for
+	 * writing in place. The returned buffer is positioned at the reserved bytes and
+	 * limited to the end of the free space. Once the bytes have been written from that
+	 * position on, the buffer is given to {@link #write(ByteBuffer)}, which queues them
+	 * without copying. Nothing else may be written to the connection in between, and
+	 * a reserved buffer that is not written is reused by the next reservation.
+	 *
+	 * <p>A write can be done in place only in the loop of the connection while nothing
+	 * is handed to it, the queue is not overflowing and the connection is not closing.
+	 *
+	 * @param length the least amount of bytes to reserve
+	 * @return the buffer to write into, or null if the write can not be done in place
+	 * @see #setBufferPool(BufferPool)
+	 */
+	public ByteBuffer reserve(int length) {
+		if (bufferPool == null || length > APPEND_BUFFER_SIZE || closed || closing || overflow || !selectorLoop.isLoopThread() || handedWrites.get() > 0)
+			return null;
+
+		if (appendBuffer == null || (appendQueued && (!isQueueTail(appendBuffer) || appendBuffer.capacity() - appendBuffer.limit() < length))) {
+			appendBuffer = bufferPool.acquire(APPEND_BUFFER_SIZE);
+			appendBuffer.limit(0);
+			appendView = appendBuffer.duplicate();
+			appendQueued = false;
+		}
+		appendView.limit(appendView.capacity()).position(appendBuffer.limit());
+
+		return appendView;
+	}
+
+	private boolean isQueueTail(ByteBuffer buffer) {
+		return writeCount > 0 && writeBuffers[(writeHead + writeCount - 1) & (writeBuffers.length - 1)] == buffer;
+	}
+
+	/**
+	 * Queues the given buffer to be written at the end of the iteration of the loop,
+	 * or immediately when the flush limits are exceeded. The buffer must not be
+	 * modified after this.
+	 *
+	 * <p>If called from other thread than the loop of the connection, the write is handed
+	 * to the loop and an {@link IOException} is reported to the handler. A write in the loop
+	 * is handed to the loop too while earlier handed writes are pending, so that the bytes
+	 * are written in the order of the calls.
+	 *
+	 * <p>A buffer returned by {@link #reserve(int)} is not queued itself. Instead, the
+	 * bytes written into it since the reservation are appended to the queue.
+	 *
+	 * @param buffer the bytes to write
+	 * @return whether the buffer was fully written immediately
+	 * @see #setFlushLimits(int, long)
+	 */
 	public boolean write(ByteBuffer buffer) throws IOException {
-		if (writeBuffers.size() == 0) {
-			socketChannel.write(buffer);
-			if (!buffer.hasRemaining())
-				return true;
+		return write(buffer, -1, null);
+	}
 
-			if (writableHandler == null)
-				writableHandler = new WritableHandler();
-			tcpServer.registerWritableHandler(socketChannel, writableHandler);
+	/**
+	 * Writes the given buffer like {@link #write(ByteBuffer)}. While the write queue is
+	 * overflowing, a queued buffer that has the same non-negative key and has not been
+	 * started to be written is replaced with this one under {@link OverflowPolicy#CONFLATE}.
+	 *
+	 * <p>If an owner is given, the buffer is released to it once it has been written,
+	 * replaced, dropped or discarded when closing, also when this method throws.
+	 *
+	 * @param buffer the bytes to write
+	 * @param key conflation key, or -1 if the buffer must not be replaced
+	 * @param owner the owner of the buffer, or null
+	 * @return whether the buffer was fully written immediately
+	 */
+	public boolean write(final ByteBuffer buffer, final long key, final BufferOwner owner) throws IOException {
+		if (buffer == appendView && buffer != null)
+			return writeReserved();
+		if (!selectorLoop.isLoopThread() || handedWrites.get() > 0) {
+			handedWrites.incrementAndGet();
+			selectorLoop.execute(new Runnable() {
+				public void run() {
+					handedWrites.decrementAndGet();
+					try {
+						writeInLoop(buffer, key, owner);
+					} catch (IOException e) {
+						if (handler != null)
+							handler.handleIOException(e);
+					}
+				}
+			});
+			return false;
+		}
+
+		return writeInLoop(buffer, key, owner);
+	}
+
+	private boolean writeInLoop(ByteBuffer buffer, long key, BufferOwner owner) throws IOException {
+
+		if (closed || closing) {
+			release(buffer, owner);
+			if (closed)
+				throw new ClosedChannelException();
+			return false;
+		}
+
+		if (writeCount > 0) {
+			if (!overflow && writeQueueBytes + buffer.remaining() > highWaterMark)
+				overflow = true;
+			if (overflow && !handleOverflow(buffer, key, owner))
+				return false;
 		}
 		
-		writeBuffers.add(buffer);
+		addWriteBuffer(buffer, key, owner);
+		return queued(buffer.remaining());
+	}
+
+	/**
+	 * Appends the bytes written in place since {@link #reserve(int)} to the queue.
+	 */
+	private boolean writeReserved() throws IOException {
+		if (!selectorLoop.isLoopThread())
+			throw new IllegalStateException("A reserved buffer must be written in the loop of the connection.");
+		if (closed)
+			throw new ClosedChannelException();
+
+		int length = appendView.position() - appendBuffer.limit();
+		if (closing || length == 0)
+			return false;
+
+		if (appendQueued && !isQueueTail(appendBuffer))
+			throw new IllegalStateException("The connection has been written after the reservation.");
+
+		appendBuffer.limit(appendView.position());
+		if (appendQueued)
+			writeQueueBytes += length;
+		else {
+			appendQueued = true;
+			addWriteBuffer(appendBuffer, -1, appendOwner);
+		}
+		if (writeQueueBytes > highWaterMark)
+			overflow = true;
+
+		return queued(length);
+	}
+
+	/**
+	 * Flushes the queue after the given amount of bytes has been queued, if the flush
+	 * limits are exceeded, or schedules the flush to the end of the iteration.
+	 */
+	private boolean queued(int length) throws IOException {
+		if (writeBlocked)
+			return false;
+
+		long now = System.nanoTime();
+		if (unflushedBytes == 0)
+			flushDeadline = now + flushDelay;
+		unflushedBytes += length;
+		if (unflushedBytes >= flushBytes || now - flushDeadline >= 0) {
+			flush();
+			return writeCount == 0;
+		}
+		if (!flushScheduled) {
+			flushScheduled = true;
+			selectorLoop.executeAtEnd(flushTask);
+		}
 
 		return false;
 	}
 
+	/**
+	 * Writes the queue with gathering writes, and waits for the socket to become
+	 * writable if it would block.
+	 */
+	private void flush() throws IOException {
+		unflushedBytes = 0;
+		if (writeCount == 0 || writeBlocked)
+			return;
+
+		writeQueued();
+		if (writeCount > 0) {
+			if (writableHandler == null)
+				writableHandler = new WritableHandler();
+			registration.setWritableHandler(writableHandler);
+			writeBlocked = true;
+		} else if (closing)
+			close();
+	}
+
+	private void writeFailed(IOException exception) {
+		if (closing) {
+			try {
+				close();
+			} catch (IOException e) {
+			}
+		} else if (handler != null)
+			handler.handleIOException(exception);
+	}
+
+	/**
+	 * Applies the overflow policy to a new buffer. Returns whether the buffer should
+	 * still be queued. A buffer that is not queued has been released.
+	 */
+	private boolean handleOverflow(ByteBuffer buffer, long key, BufferOwner owner) throws IOException {
+		switch (overflowPolicy) {
+			case CONFLATE:
+				if (key == -1)
+					return true;
+				Long sequence = writeSequencesByKey.get(Long.valueOf(key));
+				if (sequence == null)
+					return true;
+				int index = (writeHead + (int)(sequence.longValue() - writeSequence)) & (writeBuffers.length - 1);
+				if (index == writeHead && writeBuffers[index].position() > 0)
+					return true;
+				writeQueueBytes += buffer.remaining() - writeBuffers[index].remaining();
+				release(writeBuffers[index], writeOwners[index]);
+				writeBuffers[index] = buffer;
+				writeOwners[index] = owner;
+				droppedWrites++;
+				return false;
+
+			case DISCONNECT:
+				// keep a partially written buffer so that the stream stays framed
+				int keep = writeBuffers[writeHead].position() > 0 ? 1 : 0;
+				droppedWrites += writeCount - keep + 1;
+				release(buffer, owner);
+				while (writeCount > keep)
+					removeWriteBuffer((writeHead + writeCount - 1) & (writeBuffers.length - 1));
+				overflow = false;
+				if (handler != null)
+					handler.handleOverflow(this);
+				else
+					close();
+				return false;
+
+			default:
+				droppedWrites++;
+				release(buffer, owner);
+				return false;
+		}
+	}
+
+	private void runInLoop(Runnable runnable) {
+		if (selectorLoop.isLoopThread())
+			runnable.run();
+		else
+			selectorLoop.execute(runnable);
+	}
+
+	private static void release(ByteBuffer buffer, BufferOwner owner) {
+		if (owner != null)
+			owner.release(buffer);
+	}
+
+	private void addWriteBuffer(ByteBuffer buffer, long key, BufferOwner owner) {
+		if (writeCount == writeBuffers.length) {
+			ByteBuffer[] newBuffers = new ByteBuffer[writeBuffers.length * 2];
+			BufferOwner[] newOwners = new BufferOwner[writeOwners.length * 2];
+			long[] newKeys = new long[writeKeys.length * 2];
+			int first = writeBuffers.length - writeHead;
+			System.arraycopy(writeBuffers, writeHead, newBuffers, 0, first);
+			System.arraycopy(writeBuffers, 0, newBuffers, first, writeHead);
+			System.arraycopy(writeOwners, writeHead, newOwners, 0, first);
+			System.arraycopy(writeOwners, 0, newOwners, first, writeHead);
+			System.arraycopy(writeKeys, writeHead, newKeys, 0, first);
+			System.arraycopy(writeKeys, 0, newKeys, first, writeHead);
+			writeBuffers = newBuffers;
+			writeOwners = newOwners;
+			writeKeys = newKeys;
+			writeHead = 0;
+		}
+		int index = (writeHead + writeCount) & (writeBuffers.length - 1);
+		writeBuffers[index] = buffer;
+		writeOwners[index] = owner;
+		writeKeys[index] = key;
+		if (key != -1)
+			writeSequencesByKey.put(Long.valueOf(key), Long.valueOf(writeSequence + writeCount));
+		writeCount++;
+		writeQueueLength = writeCount;
+		writeQueueBytes += buffer.remaining();
+	}
+
+	private void removeWriteBuffer() {
+		removeWriteBuffer(writeHead);
+		writeHead = (writeHead + 1) & (writeBuffers.length - 1);
+		writeSequence++;
+	}
+
+	/**
+	 * Removes the buffer at the given index, which must be either the head or the tail
+	 * of the queue. The caller moves the head.
+	 */
+	private void removeWriteBuffer(int index) {
+		long key = writeKeys[index];
+		if (key != -1) {
+			long sequence = writeSequence + ((index - writeHead) & (writeBuffers.length - 1));
+			Long current = writeSequencesByKey.get(Long.valueOf(key));
+			if (current != null && current.longValue() == sequence)
+				writeSequencesByKey.remove(Long.valueOf(key));
+		}
+		writeQueueBytes -= writeBuffers[index].remaining();
+		release(writeBuffers[index], writeOwners[index]);
+		writeBuffers[index] = null;
+		writeOwners[index] = null;
+		writeCount--;
+		writeQueueLength = writeCount;
+	}
+
+	/**
+	 * Writes queued buffers with gathering writes until the queue is empty or the
+	 * socket would block. A wrapped queue takes two writes per round.
+	 */
+	private void writeQueued() throws IOException {
+		while (writeCount > 0) {
+			int length = Math.min(writeCount, writeBuffers.length - writeHead);
+			long written = socketChannel.write(writeBuffers, writeHead, length);
+			writeQueueBytes -= (int)written;
+			bytesWritten += written;
+			for (; length > 0 && !writeBuffers[writeHead].hasRemaining(); length--)
+				removeWriteBuffer();
+			if (overflow && writeQueueBytes <= lowWaterMark)
+				overflow = false;
+			if (length > 0)
+				return;
+		}
+	}
+
 	public static interface Handler {
 		public void handleData(TcpServerConnection connection);
 		public void handleIOException(IOException exception);
+
+		/**
+		 * Called when the write queue overflowed under {@link OverflowPolicy#DISCONNECT}.
+		 * The queue has been discarded. The handler should write a final message if any
+		 * and close the connection with {@link TcpServerConnection#closeWhenWritten()}.
+		 *
+		 * @param connection the overflowed connection
+		 */
+		public void handleOverflow(TcpServerConnection connection);
 	}
 	
 	private class WritableHandler implements SelectorLoop.WritableHandler {
 		public void handleWritable(SelectableChannel channel) {
 			try {
-				ByteBuffer buffer = writeBuffers.element();
-				socketChannel.write(buffer);
-				if (!buffer.hasRemaining()) {
-					writeBuffers.remove();
-					if (writeBuffers.size() == 0)
-						tcpServer.registerWritableHandler(socketChannel, null);
+				writeQueued();
+				if (writeCount == 0) {
+					registration.setWritableHandler(null);
+					writeBlocked = false;
+					if (closing)
+						close();
 				}
 			} catch (IOException e) {
-				if (handler != null)
-					handler.handleIOException(e);
+				writeFailed(e);
 			}
 		}
 	}